@@ -49,6 +49,10 @@ android {
     buildFeatures {
         buildConfig = true
     }
+    testOptions {
+        // Local unit tests call android.util.Log through the classes under test; return defaults instead of throwing
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -65,4 +69,5 @@ dependencies {
     implementation("com.fasterxml.jackson.core:jackson-core:2.20.1")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.20.1")
     implementation("com.tom-roush:pdfbox-android:2.0.27.0")
+    implementation("com.squareup.okhttp3:okhttp:4.12.0")
 }
\ No newline at end of file
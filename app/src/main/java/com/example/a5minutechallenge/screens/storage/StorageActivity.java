@@ -28,6 +28,7 @@ import com.example.a5minutechallenge.datawrapper.subject.Subject;
 import com.example.a5minutechallenge.datawrapper.subject.SubjectFile;
 import com.example.a5minutechallenge.datawrapper.subject.StorageListItem;
 import com.example.a5minutechallenge.screens.challenge.ChallengeListActivity;
+import com.example.a5minutechallenge.service.GenerationCancelledException;
 import com.example.a5minutechallenge.service.SubjectGenerationService;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
@@ -44,6 +45,7 @@ public class StorageActivity extends AppCompatActivity {
     private Subject subject;
     private EditText searchBar;
     private AlertDialog loadingDialog;
+    private SubjectGenerationService generationService;
     private ProgressBar loadingProgress;
     private TextView loadingStatus;
     private Handler loadingAnimationHandler;
@@ -54,6 +56,9 @@ public class StorageActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.storage_screen);
 
+        // Generation usually starts from this screen, have a connection ready by then
+        SubjectGenerationService.prewarmConnection();
+
         int subjectId = getIntent().getIntExtra("SUBJECT_ID", 0);
         subject = new Subject(subjectId);
         storageList = subject.getStorageItems();
@@ -112,57 +117,101 @@ public class StorageActivity extends AppCompatActivity {
         addFileFab.setOnClickListener(v -> openFilePicker());
 
         FloatingActionButton genContentFab = findViewById(R.id.gen_content_fab);
-        genContentFab.setOnClickListener(v -> {
-            // Show loading dialog and disable the button
-            showLoadingDialog();
-            genContentFab.setEnabled(false);
-
-            // Instantiate and call the asynchronous service
-            SubjectGenerationService generationService = new SubjectGenerationService();
-            generationService.generateContent(subject, StorageActivity.this,
-                    new SubjectGenerationService.GenerationCallback() {
-                        @Override
-                        public void onGenerationSuccess(Subject updatedSubject) {
-                            // This is executed on the main thread
-                            dismissLoadingDialog();
-                            genContentFab.setEnabled(true);
-                            Toast.makeText(StorageActivity.this, "Content generated successfully!", Toast.LENGTH_LONG)
-                                    .show();
-
-                            // Navigate to the next screen to show the generated content
-                            Intent intent = new Intent(StorageActivity.this, ChallengeListActivity.class);
-                            intent.putExtra("SUBJECT_ID", updatedSubject.getSubjectId());
-                            startActivity(intent);
-                            finish(); // Finish this activity
-                        }
+        // Only new uploads are generated, an interrupted run is continued
+        genContentFab.setOnClickListener(v -> startGeneration(genContentFab, false));
+        genContentFab.setOnLongClickListener(v -> {
+            showRegenerateAllDialog(genContentFab);
+            return true;
+        });
+    }
+
+    /** Asks before generating everything again, which replaces the subject's content and progress. */
+    private void showRegenerateAllDialog(FloatingActionButton genContentFab) {
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.regenerate_all))
+                .setMessage(getString(R.string.confirm_regenerate_all))
+                .setPositiveButton(getString(R.string.regenerate_all),
+                        (dialog, which) -> startGeneration(genContentFab, true))
+                .setNegativeButton(getString(R.string.cancel), null)
+                .show();
+    }
+
+    /**
+     * Starts generation and shows its progress.
+     *
+     * @param regenerateAll Generates all files again with fresh API calls
+     *                      instead of only the changed uploads
+     */
+    private void startGeneration(FloatingActionButton genContentFab, boolean regenerateAll) {
+        // Instantiate and call the asynchronous service
+        if (generationService == null) {
+            generationService = new SubjectGenerationService();
+        }
+
+        // Show loading dialog and disable the button
+        showLoadingDialog(() -> {
+            // Stops the requests in flight, nothing of the run is saved
+            generationService.cancel();
+            dismissLoadingDialog();
+            genContentFab.setEnabled(true);
+            Toast.makeText(StorageActivity.this, "Generation cancelled", Toast.LENGTH_SHORT).show();
+        });
+        genContentFab.setEnabled(false);
+
+        SubjectGenerationService.GenerationCallback generationCallback =
+                new SubjectGenerationService.GenerationCallback() {
+                    @Override
+                    public void onGenerationSuccess(Subject updatedSubject) {
+                        // This is executed on the main thread
+                        dismissLoadingDialog();
+                        genContentFab.setEnabled(true);
+                        Toast.makeText(StorageActivity.this, "Content generated successfully!", Toast.LENGTH_LONG)
+                                .show();
+
+                        // Navigate to the next screen to show the generated content
+                        Intent intent = new Intent(StorageActivity.this, ChallengeListActivity.class);
+                        intent.putExtra("SUBJECT_ID", updatedSubject.getSubjectId());
+                        startActivity(intent);
+                        finish(); // Finish this activity
+                    }
 
-                        @Override
-                        public void onGenerationFailure(Exception e) {
-                            // This is executed on the main thread
-                            dismissLoadingDialog();
-                            genContentFab.setEnabled(true);
-                            Log.e("GenerationFailed", "Error generating content", e);
-                            new AlertDialog.Builder(StorageActivity.this)
-                                    .setTitle("Generation Failed")
-                                    .setMessage(
-                                            "Could not generate content. Please check your connection and API key. Error: "
-                                                    + e.getMessage())
-                                    .setPositiveButton(android.R.string.ok, null)
-                                    .show();
+                    @Override
+                    public void onGenerationFailure(Exception e) {
+                        // This is executed on the main thread
+                        if (e instanceof GenerationCancelledException) {
+                            return; // The dialog was closed when the run was cancelled
                         }
+                        dismissLoadingDialog();
+                        genContentFab.setEnabled(true);
+                        Log.e("GenerationFailed", "Error generating content", e);
+                        new AlertDialog.Builder(StorageActivity.this)
+                                .setTitle("Generation Failed")
+                                .setMessage(
+                                        "Could not generate content. Please check your connection and API key. Error: "
+                                                + e.getMessage())
+                                .setPositiveButton(android.R.string.ok, null)
+                                .show();
+                    }
 
-                        @Override
-                        public void onProgress(int progress, String message) {
-                            // This is executed on the main thread
-                            if (loadingProgress != null) {
-                                loadingProgress.setProgress(progress);
-                            }
-                            if (loadingStatus != null) {
-                                loadingStatus.setText(message);
-                            }
+                    @Override
+                    public void onProgress(int progress, String message) {
+                        // This is executed on the main thread
+                        if (loadingProgress != null) {
+                            loadingProgress.setProgress(progress);
                         }
-                    });
-        });
+                        if (loadingStatus != null) {
+                            loadingStatus.setText(message);
+                        }
+                    }
+                };
+
+        // Bypassing the response cache makes every request go to the API again
+        generationService.setForceFreshGeneration(regenerateAll);
+        if (regenerateAll) {
+            generationService.generateContent(subject, StorageActivity.this, generationCallback);
+        } else {
+            generationService.generateContentIncremental(subject, StorageActivity.this, generationCallback);
+        }
     }
 
     private void openFilePicker() {
@@ -269,12 +318,14 @@ public class StorageActivity extends AppCompatActivity {
     /**
      * Shows a loading dialog during content generation.
      * Uses the same visual style as the countdown dialog with a progress bar.
+     * Its cancel button runs onCancel.
      */
-    private void showLoadingDialog() {
+    private void showLoadingDialog(Runnable onCancel) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         View dialogView = LayoutInflater.from(this).inflate(R.layout.dialog_loading, null);
         builder.setView(dialogView);
         builder.setCancelable(false);
+        builder.setNegativeButton(android.R.string.cancel, (dialog, which) -> onCancel.run());
 
         loadingProgress = dialogView.findViewById(R.id.loading_progress);
         loadingStatus = dialogView.findViewById(R.id.loading_status);
@@ -319,6 +370,10 @@ public class StorageActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         dismissLoadingDialog();
+        // Leaving the screen stops a running generation instead of letting it use up the quota
+        if (generationService != null) {
+            generationService.shutdown();
+        }
     }
 
     interface OnNameEnteredListener {
@@ -0,0 +1,99 @@
+/** Additive-increase/multiplicative-decrease limiter for in-flight Gemini requests.
+ * A 429 halves the allowed concurrency, every success grows it back by roughly one request per round
+ * trip. Shared by all calls so a quota burst slows everyone down instead of each thread retrying alone.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import java.util.function.IntSupplier;
+
+class AdaptiveConcurrencyLimiter {
+
+    private static final String TAG = "ConcurrencyLimiter";
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final int minLimit;
+    private final IntSupplier maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecreaseNanos = Long.MIN_VALUE;
+
+    /** Handle for one admitted request; remembers when it was admitted. */
+    static final class Permit {
+        private final long admittedNanos;
+        private boolean released = false;
+
+        private Permit(long admittedNanos) {
+            this.admittedNanos = admittedNanos;
+        }
+    }
+
+    /**
+     * @param maxLimit Upper bound, read on every change so it follows e.g. the
+     *                 scheduler's worker count when that is reconfigured
+     */
+    AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, IntSupplier maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit.getAsInt(), initialLimit));
+    }
+
+    /**
+     * Blocks until the number of in-flight requests is below the current limit.
+     */
+    synchronized Permit acquire() throws InterruptedException {
+        limit = Math.max(minLimit, Math.min(maxLimit.getAsInt(), limit)); // The bound may have been lowered
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return new Permit(System.nanoTime());
+    }
+
+    /** Additive increase: about +1 to the limit once a full window of requests succeeded. */
+    synchronized void onSuccess(Permit permit) {
+        if (!release(permit))
+            return;
+        limit = Math.max(minLimit, Math.min(maxLimit.getAsInt(), limit + 1.0 / limit));
+        notifyAll();
+    }
+
+    /**
+     * Multiplicative decrease. Only requests admitted after the last decrease can
+     * shrink the limit again, so one burst of 429s counts as a single signal.
+     */
+    synchronized void onRateLimited(Permit permit) {
+        if (!release(permit))
+            return;
+        if (permit.admittedNanos > lastDecreaseNanos) {
+            limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+            lastDecreaseNanos = System.nanoTime();
+            Log.w(TAG, String.format("Rate limited, concurrency limit lowered to %d (in flight: %d)",
+                    (int) limit, inFlight));
+        }
+        notifyAll();
+    }
+
+    /** Releases the permit without adjusting the limit (e.g. network or server errors). */
+    synchronized void onIgnored(Permit permit) {
+        if (release(permit))
+            notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private boolean release(Permit permit) {
+        if (permit == null || permit.released)
+            return false;
+        permit.released = true;
+        inFlight--;
+        return true;
+    }
+}
@@ -0,0 +1,54 @@
+/** Asynchronous bulk generation: many GenerateContent requests are submitted as one job and collected
+ * when the job is done, trading latency for throughput and a lower price per token. The default
+ * implementation uses the Gemini Batch API; a local stub can fake it.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+public interface BatchJobClient {
+
+    enum State {
+        PENDING, RUNNING, SUCCEEDED, FAILED, CANCELLED, EXPIRED;
+
+        boolean isDone() {
+            return this != PENDING && this != RUNNING;
+        }
+    }
+
+    /** State of a job and, once it succeeded, the responses by request key. */
+    class JobStatus {
+        public final State state;
+        public final Map<String, JSONObject> responses;
+
+        public JobStatus(State state, Map<String, JSONObject> responses) {
+            this.state = state;
+            this.responses = responses == null ? Collections.emptyMap() : responses;
+        }
+    }
+
+    /**
+     * Submits the requests as one job.
+     *
+     * @param model       Model name, e.g. "gemini-2.5-flash-lite"
+     * @param displayName Name shown in the job list
+     * @param requests    GenerateContent request bodies by a key unique within the job
+     * @return Job name to poll
+     */
+    String submit(String model, String displayName, Map<String, JSONObject> requests)
+            throws IOException, JSONException;
+
+    /**
+     * Returns the job's state. Responses are GenerateContentResponse bodies; a
+     * request that failed inside the job has no entry.
+     */
+    JobStatus poll(String jobName) throws IOException, JSONException;
+
+    /** Asks the server to stop a job that is no longer needed. */
+    void cancel(String jobName) throws IOException;
+}
@@ -0,0 +1,65 @@
+/** Groups Stage 2 requests so that several of them are answered by one Gemini call.
+ * Items are packed in order into batches whose estimated output fits the response token limit, with
+ * some headroom since the estimates are rough. An optional context size keeps the combined prompt
+ * context of a batch within the per-request budget. An item too large for any batch gets a batch of
+ * its own.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+class BatchPlanner {
+
+    private final long outputTokenBudget;
+    private final int maxBatchSize;
+
+    /**
+     * @param maxOutputTokens Output token limit of one response
+     * @param outputHeadroom  Share of the limit batches are planned against (0..1)
+     * @param maxBatchSize    Most items per batch
+     */
+    BatchPlanner(long maxOutputTokens, double outputHeadroom, int maxBatchSize) {
+        this.outputTokenBudget = (long) (maxOutputTokens * outputHeadroom);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /** Batches by estimated output only. */
+    <T> List<List<T>> plan(List<T> items, ToLongFunction<T> outputTokens) {
+        return plan(items, outputTokens, item -> 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Batches by estimated output and prompt context.
+     *
+     * @param contextTokens Estimated context tokens the item adds to the prompt
+     * @param contextBudget Most context tokens per batch
+     */
+    <T> List<List<T>> plan(List<T> items, ToLongFunction<T> outputTokens, ToLongFunction<T> contextTokens,
+            long contextBudget) {
+        List<List<T>> batches = new ArrayList<>();
+        List<T> batch = new ArrayList<>();
+        long batchOutput = 0;
+        long batchContext = 0;
+
+        for (T item : items) {
+            long output = outputTokens.applyAsLong(item);
+            long context = contextTokens.applyAsLong(item);
+            if (!batch.isEmpty() && (batch.size() >= maxBatchSize || batchOutput + output > outputTokenBudget
+                    || batchContext + context > contextBudget)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchOutput = 0;
+                batchContext = 0;
+            }
+            batch.add(item);
+            batchOutput += output;
+            batchContext += context;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,87 @@
+/** Cooperative cancellation of a generation run.
+ * The run checks the token between steps and registers callbacks for work that cannot check it
+ * itself: interrupting a worker thread, disconnecting an open HTTP connection, dropping queued tasks.
+ * Waits that go through {@link #sleep} end as soon as the token is cancelled.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CancellationToken {
+
+    /** Undoes an {@link #onCancel} registration once the guarded work is over. */
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private final List<Runnable> callbacks = new ArrayList<>();
+
+    /**
+     * Cancels the run and runs the registered callbacks. Safe to call more than
+     * once and from any thread.
+     */
+    public void cancel() {
+        synchronized (callbacks) {
+            if (cancelled.getCount() == 0)
+                return;
+            cancelled.countDown();
+            // Run under the lock, so a callback never fires after its registration was closed
+            for (Runnable callback : callbacks) {
+                try {
+                    callback.run();
+                } catch (RuntimeException ignored) {
+                }
+            }
+            callbacks.clear();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled.getCount() == 0;
+    }
+
+    public void throwIfCancelled() throws GenerationCancelledException {
+        if (isCancelled())
+            throw new GenerationCancelledException();
+    }
+
+    /**
+     * Registers a callback for cancellation. If the token is already cancelled
+     * the callback runs right away. Callbacks must be quick and must not block.
+     */
+    public Registration onCancel(Runnable callback) {
+        synchronized (callbacks) {
+            if (isCancelled()) {
+                callback.run();
+                return () -> {
+                };
+            }
+            callbacks.add(callback);
+        }
+        return () -> {
+            synchronized (callbacks) {
+                callbacks.remove(callback);
+            }
+        };
+    }
+
+    /**
+     * Sleeps for the given time. Throws {@link GenerationCancelledException} as
+     * soon as the token is cancelled.
+     */
+    public void sleep(long millis) throws InterruptedIOException {
+        try {
+            if (cancelled.await(millis, TimeUnit.MILLISECONDS))
+                throw new GenerationCancelledException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting");
+        }
+    }
+}
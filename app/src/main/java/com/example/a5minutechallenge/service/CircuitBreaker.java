@@ -0,0 +1,171 @@
+/** Circuit breaker around the Gemini endpoint.
+ * Opens when the failure rate over the recent calls crosses a threshold, fails every request fast while
+ * open, and after a cool-down lets a few trial requests through (half-open) to decide whether to close
+ * again. Only server errors and timeouts count as failures; rate limits and bad content do not.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+public class CircuitBreaker {
+
+    private static final String TAG = "CircuitBreaker";
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /** Notified on every state transition. */
+    public interface StateListener {
+        void onStateChanged(State from, State to);
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openDurationMs;
+    private final int halfOpenTrials;
+
+    // Ring buffer of the most recent outcomes, true = failure
+    private final boolean[] outcomes;
+    private int outcomeCount = 0;
+    private int outcomeIndex = 0;
+    private int failureCount = 0;
+
+    private State state = State.CLOSED;
+    private long openedAtMs = 0;
+    private int trialsInFlight = 0;
+    private int trialSuccesses = 0;
+    private volatile StateListener stateListener;
+
+    /**
+     * @param windowSize           Number of recent calls the failure rate is computed over
+     * @param minimumCalls         Calls needed in the window before the breaker may open
+     * @param failureRateThreshold Failure rate (0..1) at which the breaker opens
+     * @param openDurationMs       Time the breaker stays open before allowing trial requests
+     * @param halfOpenTrials       Successful trial requests needed to close again
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openDurationMs,
+            int halfOpenTrials) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationMs = openDurationMs;
+        this.halfOpenTrials = halfOpenTrials;
+        this.outcomes = new boolean[windowSize];
+    }
+
+    public void setStateListener(StateListener listener) {
+        this.stateListener = listener;
+    }
+
+    /**
+     * Checks whether a request may be sent. Throws immediately while the breaker is
+     * open, or while half-open and all trial slots are taken; the exception carries
+     * the time until the next probe for the retry policy to wait out.
+     */
+    public void acquirePermission() throws GeminiApiException {
+        State from;
+        synchronized (this) {
+            from = state;
+            if (state == State.OPEN) {
+                long remainingMs = openedAtMs + openDurationMs - System.currentTimeMillis();
+                if (remainingMs > 0) {
+                    throw GeminiApiException.forOpenCircuit(
+                            "Gemini endpoint unavailable (circuit open, next probe in " + (remainingMs / 1000) + "s)",
+                            remainingMs);
+                }
+                transitionTo(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialsInFlight >= halfOpenTrials) {
+                    throw GeminiApiException.forOpenCircuit(
+                            "Gemini endpoint unavailable (circuit half-open, probe in progress)", 0);
+                }
+                trialsInFlight++;
+            }
+        }
+        notifyIfChanged(from);
+    }
+
+    /** Records a successful call. */
+    public void onSuccess() {
+        State from;
+        synchronized (this) {
+            from = state;
+            if (state == State.HALF_OPEN) {
+                trialsInFlight = Math.max(0, trialsInFlight - 1);
+                if (++trialSuccesses >= halfOpenTrials) {
+                    transitionTo(State.CLOSED);
+                }
+            } else if (state == State.CLOSED) {
+                record(false);
+            }
+        }
+        notifyIfChanged(from);
+    }
+
+    /** Records a server error or timeout. */
+    public void onFailure() {
+        State from;
+        synchronized (this) {
+            from = state;
+            if (state == State.HALF_OPEN) {
+                trialsInFlight = Math.max(0, trialsInFlight - 1);
+                transitionTo(State.OPEN);
+            } else if (state == State.CLOSED) {
+                record(true);
+                if (outcomeCount >= minimumCalls && (double) failureCount / outcomeCount >= failureRateThreshold) {
+                    transitionTo(State.OPEN);
+                }
+            }
+        }
+        notifyIfChanged(from);
+    }
+
+    /** Records a call whose outcome says nothing about endpoint health (e.g. a 429). */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (outcomeCount == windowSize) {
+            if (outcomes[outcomeIndex])
+                failureCount--;
+        } else {
+            outcomeCount++;
+        }
+        outcomes[outcomeIndex] = failure;
+        if (failure)
+            failureCount++;
+        outcomeIndex = (outcomeIndex + 1) % windowSize;
+    }
+
+    private void transitionTo(State newState) {
+        Log.w(TAG, "Circuit " + state + " -> " + newState);
+        state = newState;
+        trialsInFlight = 0;
+        trialSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAtMs = System.currentTimeMillis();
+        } else if (newState == State.CLOSED) {
+            outcomeCount = 0;
+            outcomeIndex = 0;
+            failureCount = 0;
+        }
+    }
+
+    private void notifyIfChanged(State from) {
+        State to = getState();
+        StateListener listener = stateListener;
+        if (from != to && listener != null) {
+            listener.onStateChanged(from, to);
+        }
+    }
+}
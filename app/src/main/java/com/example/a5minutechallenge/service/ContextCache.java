@@ -0,0 +1,27 @@
+/** Server-side prefix cache for prompt content that several requests of a run share.
+ * The content is uploaded once and later requests reference it by handle instead of resending it. The
+ * default implementation uses Gemini cached contents; a local stand-in can fake it.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+public interface ContextCache {
+
+    /**
+     * Uploads the parts as a cached prefix for the model.
+     *
+     * @param model      Model name, e.g. "gemini-2.5-flash-lite"
+     * @param parts      Content parts every referencing request starts with
+     * @param ttlSeconds Time after which the server may drop the cache on its own
+     * @return Handle to pass as "cachedContent" in later requests
+     */
+    String create(String model, List<JSONObject> parts, long ttlSeconds) throws IOException, JSONException;
+
+    /** Deletes a cache created by {@link #create}. */
+    void delete(String handle) throws IOException;
+}
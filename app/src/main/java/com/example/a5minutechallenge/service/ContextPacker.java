@@ -0,0 +1,282 @@
+/** Packs the document context for a Stage 2 prompt into a fixed token budget.
+ * Section references are merged per file, the referenced pages are ranked against the challenge being
+ * generated using the run's {@link PageIndex}, and the best pages are added until the page limit or the
+ * budget is reached. The page that crosses the budget is cut at a word boundary; everything ranked below
+ * it is dropped. Pages are then emitted in document order so the model still reads them in sequence.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ContextPacker {
+
+    private static final int MIN_TRUNCATED_TOKENS = 200; // Smaller remainders are not worth a partial page
+    private static final String TRUNCATION_MARKER = " [...]";
+
+    /** What was packed for one request. */
+    static class Result {
+        final List<JSONObject> parts = new ArrayList<>();
+        long estimatedTokens = 0;
+        int pagesIncluded = 0;
+        int pagesDropped = 0;
+        int pagesTruncated = 0;
+        boolean usedFallback = false;
+    }
+
+    /** Inclusive page range of one file; an empty file name matches every file. */
+    static class PageRange {
+        final String fileName;
+        final int startPage;
+        final int endPage;
+
+        PageRange(String fileName, int startPage, int endPage) {
+            this.fileName = fileName;
+            this.startPage = Math.min(startPage, endPage);
+            this.endPage = Math.max(startPage, endPage);
+        }
+    }
+
+    private static class Candidate {
+        final int documentIndex;
+        final GeminiContentProcessor.DocumentContent document;
+        final GeminiContentProcessor.PageContent page; // null for an image document
+        final long tokens;
+        double score;
+
+        Candidate(int documentIndex, GeminiContentProcessor.DocumentContent document,
+                GeminiContentProcessor.PageContent page, long tokens) {
+            this.documentIndex = documentIndex;
+            this.document = document;
+            this.page = page;
+            this.tokens = tokens;
+        }
+
+        int pageNumber() {
+            return page == null ? 0 : page.pageNumber;
+        }
+    }
+
+    private final PageIndex index;
+    private final long tokenBudget;
+
+    ContextPacker(PageIndex index, long tokenBudget) {
+        this.index = index;
+        this.tokenBudget = tokenBudget;
+    }
+
+    /**
+     * Selects and formats the context for one request.
+     *
+     * @param documents All extracted documents of the run
+     * @param ranges    Page ranges the topic refers to; when none match, the whole
+     *                  corpus is ranked instead
+     * @param query     Text describing what is generated (topic, challenge title and
+     *                  description), used to rank pages
+     * @param maxPages  Most text pages to include, or 0 for no limit besides the
+     *                  budget. Only applies when some page matches the query.
+     */
+    Result pack(List<GeminiContentProcessor.DocumentContent> documents, List<PageRange> ranges, String query,
+            int maxPages) throws JSONException {
+        Result result = new Result();
+        List<PageRange> merged = mergeRanges(ranges);
+        List<Candidate> candidates = collectCandidates(documents, merged);
+        if (candidates.isEmpty()) {
+            result.usedFallback = true;
+            merged = null;
+            candidates = collectCandidates(documents, null);
+        }
+
+        boolean anyMatch = rank(candidates, query, merged);
+
+        // Greedy fill in rank order; ties keep document order so the result is deterministic
+        List<Candidate> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator.comparingDouble((Candidate c) -> -c.score)
+                .thenComparingInt(c -> c.documentIndex)
+                .thenComparingInt(Candidate::pageNumber));
+
+        Map<Candidate, String> selected = new HashMap<>();
+        long remaining = tokenBudget;
+        boolean full = false;
+        int textPages = 0;
+        for (Candidate candidate : ranked) {
+            boolean overPageLimit = anyMatch && candidate.page != null && maxPages > 0
+                    && (textPages >= maxPages || candidate.score <= 0);
+            if (full || overPageLimit) {
+                result.pagesDropped++;
+                continue;
+            }
+            if (candidate.page != null)
+                textPages++;
+            if (candidate.tokens <= remaining) {
+                selected.put(candidate, candidate.page == null ? null : candidate.page.text);
+                remaining -= candidate.tokens;
+            } else {
+                // Cut the page that crosses the budget, images cannot be cut
+                if (candidate.page != null && remaining >= MIN_TRUNCATED_TOKENS) {
+                    selected.put(candidate, truncate(candidate.page.text,
+                            (int) (remaining * GeminiContentProcessor.CHARS_PER_TOKEN)));
+                    result.pagesTruncated++;
+                    remaining = 0;
+                } else {
+                    result.pagesDropped++;
+                }
+                full = true;
+            }
+        }
+
+        emit(candidates, selected, result);
+        return result;
+    }
+
+    /** Sorts ranges per file and merges overlapping or adjacent ones. */
+    static List<PageRange> mergeRanges(List<PageRange> ranges) {
+        Map<String, List<PageRange>> byFile = new LinkedHashMap<>();
+        for (PageRange range : ranges) {
+            byFile.computeIfAbsent(range.fileName, k -> new ArrayList<>()).add(range);
+        }
+
+        List<PageRange> merged = new ArrayList<>();
+        for (List<PageRange> fileRanges : byFile.values()) {
+            fileRanges.sort(Comparator.comparingInt(r -> r.startPage));
+            PageRange current = null;
+            for (PageRange range : fileRanges) {
+                if (current != null && range.startPage <= current.endPage + 1) {
+                    current = new PageRange(current.fileName, current.startPage,
+                            Math.max(current.endPage, range.endPage));
+                } else {
+                    if (current != null)
+                        merged.add(current);
+                    current = range;
+                }
+            }
+            if (current != null)
+                merged.add(current);
+        }
+        return merged;
+    }
+
+    /** Pages covered by the ranges, each once, or every page when ranges is null. */
+    private List<Candidate> collectCandidates(List<GeminiContentProcessor.DocumentContent> documents,
+            List<PageRange> ranges) {
+        List<Candidate> candidates = new ArrayList<>();
+        Set<String> images = new HashSet<>();
+        for (int d = 0; d < documents.size(); d++) {
+            GeminiContentProcessor.DocumentContent doc = documents.get(d);
+            if (doc.isImage) {
+                // An image uploaded twice is sent once
+                if ((ranges == null || matchesFile(ranges, doc.fileName))
+                        && images.add(GeminiContentProcessor.imageKey(doc))) {
+                    candidates.add(new Candidate(d, doc, null, GeminiContentProcessor.imageTokens(doc)));
+                }
+                continue;
+            }
+            for (GeminiContentProcessor.PageContent page : doc.pages) {
+                if (ranges == null || inRanges(ranges, doc.fileName, page.pageNumber)) {
+                    candidates.add(new Candidate(d, doc, page, estimateTokens(page.text)));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean matchesFile(List<PageRange> ranges, String fileName) {
+        for (PageRange range : ranges) {
+            if (range.fileName.isEmpty() || range.fileName.equals(fileName))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean inRanges(List<PageRange> ranges, String fileName, int pageNumber) {
+        for (PageRange range : ranges) {
+            if ((range.fileName.isEmpty() || range.fileName.equals(fileName))
+                    && pageNumber >= range.startPage && pageNumber <= range.endPage)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scores the candidates with BM25 from the page index. Images have no text and
+     * rank first, since the topic explicitly refers to them. Returns whether any
+     * page matched the query at all.
+     */
+    private boolean rank(List<Candidate> candidates, String query, List<PageRange> ranges) {
+        Map<GeminiContentProcessor.PageContent, Double> scores = index.score(query,
+                ranges == null ? null : (fileName, pageNumber) -> inRanges(ranges, fileName, pageNumber));
+        for (Candidate candidate : candidates) {
+            if (candidate.page == null) {
+                candidate.score = Double.MAX_VALUE;
+            } else {
+                Double score = scores.get(candidate.page);
+                candidate.score = score == null ? 0 : score;
+            }
+        }
+        return !scores.isEmpty();
+    }
+
+    /** Writes the selected pages in document order, one text part per file. */
+    private static void emit(List<Candidate> candidates, Map<Candidate, String> selected, Result result)
+            throws JSONException {
+        StringBuilder text = null;
+        GeminiContentProcessor.DocumentContent currentDoc = null;
+        for (Candidate candidate : candidates) {
+            if (!selected.containsKey(candidate))
+                continue;
+            result.pagesIncluded++;
+
+            if (candidate.page == null) {
+                flush(text, result);
+                text = null;
+                currentDoc = null;
+                result.parts.add(candidate.document.imageData);
+                result.estimatedTokens += candidate.tokens;
+                continue;
+            }
+
+            if (candidate.document != currentDoc) {
+                flush(text, result);
+                currentDoc = candidate.document;
+                text = new StringBuilder();
+                text.append("\n\n=== ").append(currentDoc.fileName).append(" ===\n");
+            }
+            text.append("\n--- Page ").append(candidate.page.pageNumber).append(" ---\n");
+            text.append(selected.get(candidate));
+        }
+        flush(text, result);
+    }
+
+    private static void flush(StringBuilder text, Result result) throws JSONException {
+        if (text == null)
+            return;
+        result.parts.add(new JSONObject().put("text", text.toString()));
+        result.estimatedTokens += estimateTokens(text);
+    }
+
+    /** Cuts text to at most maxChars, at the last whitespace before the limit. */
+    static String truncate(String text, int maxChars) {
+        int limit = Math.max(0, maxChars - TRUNCATION_MARKER.length());
+        if (text.length() <= limit)
+            return text;
+        int cut = limit;
+        while (cut > limit / 2 && !Character.isWhitespace(text.charAt(cut)))
+            cut--;
+        if (cut <= limit / 2)
+            cut = limit; // No whitespace nearby, cut mid-word
+        return text.substring(0, cut).trim() + TRUNCATION_MARKER;
+    }
+
+    static long estimateTokens(CharSequence text) {
+        return text.length() / GeminiContentProcessor.CHARS_PER_TOKEN;
+    }
+}
@@ -0,0 +1,133 @@
+/** Persistent cache for extracted document text, stored under subject_<id>/extract_cache/.
+ * Entries are keyed by the SHA-256 of the file bytes, so renamed or re-uploaded copies of an unchanged
+ * file still hit the cache and skip PDF parsing entirely.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import com.example.a5minutechallenge.util.fileutil.fileutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class ExtractionCache {
+
+    private static final String TAG = "ExtractionCache";
+    private static final String CACHE_DIR_NAME = "extract_cache";
+    private static final String ENTRY_SUFFIX = ".pages";
+    private static final int MAGIC = 0x35504743; // "5PGC"
+    private static final int FORMAT_VERSION = 1;
+
+    private final File cacheDir;
+
+    ExtractionCache(File subjectDir) {
+        this.cacheDir = new File(subjectDir, CACHE_DIR_NAME);
+    }
+
+    /**
+     * Loads a cached extraction. Returns null on a miss or if the entry is unreadable.
+     * For images only the metadata is cached; the caller re-attaches the image bytes.
+     */
+    GeminiContentProcessor.DocumentContent load(String hash, String fileName) {
+        File entry = entryFile(hash);
+        if (!entry.isFile())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(entry))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                return null;
+
+            GeminiContentProcessor.DocumentContent doc = new GeminiContentProcessor.DocumentContent(fileName);
+            doc.isImage = in.readBoolean();
+            if (doc.isImage) {
+                doc.imageMimeType = in.readUTF();
+                in.readLong(); // original byte size, informational only
+            }
+
+            int pageCount = in.readInt();
+            for (int i = 0; i < pageCount; i++) {
+                int pageNumber = in.readInt();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                doc.pages.add(new GeminiContentProcessor.PageContent(pageNumber,
+                        new String(text, StandardCharsets.UTF_8)));
+            }
+            return doc;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable cache entry " + entry.getName() + ": " + e.getMessage());
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores an extraction result. Written atomically so a crash never leaves a
+     * truncated entry behind, and identical uploads extracted in parallel never
+     * write into each other's entry.
+     */
+    void store(String hash, GeminiContentProcessor.DocumentContent doc, long originalSize) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.w(TAG, "Could not create cache directory: " + cacheDir);
+            return;
+        }
+
+        try {
+            fileutil.writeAtomically(entryFile(hash), file -> {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new GZIPOutputStream(file)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeBoolean(doc.isImage);
+                    if (doc.isImage) {
+                        out.writeUTF(doc.imageMimeType != null ? doc.imageMimeType : "");
+                        out.writeLong(originalSize);
+                    }
+
+                    out.writeInt(doc.pages.size());
+                    for (GeminiContentProcessor.PageContent page : doc.pages) {
+                        byte[] text = page.text.getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(page.pageNumber);
+                        out.writeInt(text.length);
+                        out.write(text);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cache entry for " + doc.fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes every entry whose hash is not in the given set, so the cache only
+     * holds extractions of the subject's current uploads.
+     */
+    void retainOnly(Set<String> hashes) {
+        File[] entries = cacheDir.listFiles();
+        if (entries == null)
+            return;
+
+        for (File entry : entries) {
+            String name = entry.getName();
+            String hash = name.endsWith(ENTRY_SUFFIX) ? name.substring(0, name.length() - ENTRY_SUFFIX.length())
+                    : null;
+            if (hash == null || !hashes.contains(hash)) {
+                entry.delete();
+            }
+        }
+    }
+
+    private File entryFile(String hash) {
+        return new File(cacheDir, hash + ENTRY_SUFFIX);
+    }
+}
@@ -0,0 +1,418 @@
+/** Transport side of the Gemini generateContent API.
+ * Sends one request at a time on behalf of the processor: paced by the process-wide rate limiter and
+ * adaptive concurrency limit, guarded by the circuit breaker, written through the pooled HTTP transport
+ * and decoded from the response stream. Retrying is left to the caller's RetryPolicy.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+class GeminiApiClient {
+
+    private static final String TAG = "GeminiApiClient";
+    static final String DEFAULT_API_BASE_URL = "https://generativelanguage.googleapis.com";
+    private static final String SSE_DATA_PREFIX = "data:";
+    private static final int INITIAL_CONCURRENCY_LIMIT = 8; // In-flight requests before any 429 feedback
+    private static final int DEFAULT_REQUESTS_PER_MINUTE = 4000;
+    private static final long DEFAULT_TOKENS_PER_MINUTE = 4_000_000;
+    private static final int BREAKER_WINDOW_SIZE = 20; // Recent calls the failure rate is computed over
+    private static final int BREAKER_MINIMUM_CALLS = 5;
+    private static final double BREAKER_FAILURE_RATE = 0.5;
+    private static final long BREAKER_OPEN_DURATION_MS = 15000; // 15 seconds before probing again
+    private static final int BREAKER_HALF_OPEN_TRIALS = 2;
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int READ_TIMEOUT_MS = 120000; // 2 min read timeout for large responses
+    private static final int REQUEST_BUFFER_SIZE = 8192; // gzip buffer of a streamed request body
+
+    // Shared by every Gemini call in the process so 429s throttle all threads together. Capped at the
+    // scheduler's worker count: generation runs on those workers, so a higher limit is never reached.
+    private static final AdaptiveConcurrencyLimiter CONCURRENCY_LIMITER = new AdaptiveConcurrencyLimiter(
+            INITIAL_CONCURRENCY_LIMIT, 1, GenerationScheduler::getMaxConcurrency);
+
+    // Pooled keep-alive connections, shared by every client so a warmed-up connection is reused
+    private static volatile HttpTransport httpTransport = new OkHttpTransport(true, CONNECT_TIMEOUT_MS,
+            READ_TIMEOUT_MS);
+
+    // Paces requests to the project's RPM/TPM quota before they are sent
+    private static volatile TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(
+            DEFAULT_REQUESTS_PER_MINUTE, DEFAULT_TOKENS_PER_MINUTE);
+
+    /** Reads the body of a successful response while the connection is still open. */
+    interface ResponseReader<T> {
+        T read(BufferedReader body, TokenBucketRateLimiter.Reservation reservation) throws IOException, JSONException;
+    }
+
+    private final String model;
+    private final String apiKey;
+    private final AtomicLong totalTokensProcessed = new AtomicLong(0);
+    private final AtomicLong promptTokensSent = new AtomicLong(0);
+    private final AtomicInteger activeThreads = new AtomicInteger(0);
+    private volatile String baseUrl = DEFAULT_API_BASE_URL;
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker(BREAKER_WINDOW_SIZE, BREAKER_MINIMUM_CALLS,
+            BREAKER_FAILURE_RATE, BREAKER_OPEN_DURATION_MS, BREAKER_HALF_OPEN_TRIALS);
+    private volatile boolean requestCompressionEnabled = false;
+
+    GeminiApiClient(String model, String apiKey) {
+        this.model = model;
+        this.apiKey = apiKey;
+    }
+
+    /** @see GeminiContentProcessor#configureQuota */
+    static void configureQuota(int requestsPerMinute, long inputTokensPerMinute) {
+        rateLimiter = new TokenBucketRateLimiter(requestsPerMinute, inputTokensPerMinute);
+    }
+
+    /** @see GeminiContentProcessor#setHttpTransport */
+    static void setHttpTransport(HttpTransport transport) {
+        httpTransport = transport;
+    }
+
+    /** @see GeminiContentProcessor#setHttp2Enabled */
+    static void setHttp2Enabled(boolean enabled) {
+        httpTransport = new OkHttpTransport(enabled, CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+    }
+
+    /** @see GeminiContentProcessor#prewarmConnection */
+    static void prewarmConnection() {
+        httpTransport.warmUp(DEFAULT_API_BASE_URL + "/");
+    }
+
+    /** @see GeminiContentProcessor#configureCircuitBreaker */
+    void configureCircuitBreaker(double failureRateThreshold, long openDurationMs) {
+        circuitBreaker = new CircuitBreaker(BREAKER_WINDOW_SIZE, BREAKER_MINIMUM_CALLS, failureRateThreshold,
+                openDurationMs, BREAKER_HALF_OPEN_TRIALS);
+    }
+
+    void setBreakerStateListener(CircuitBreaker.StateListener listener) {
+        circuitBreaker.setStateListener(listener);
+    }
+
+    /** @param baseUrl Base URL without trailing slash, or null for the real API */
+    void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl == null ? DEFAULT_API_BASE_URL : baseUrl.replaceAll("/+$", "");
+    }
+
+    void setRequestCompressionEnabled(boolean enabled) {
+        this.requestCompressionEnabled = enabled;
+    }
+
+    /** Prompt tokens reported by the API for all requests of this client so far. */
+    long getPromptTokensSent() {
+        return promptTokensSent.get();
+    }
+
+    long getTotalTokensProcessed() {
+        return totalTokensProcessed.get();
+    }
+
+    /**
+     * Body that writes the request straight to the connection. Pre-encoded
+     * shared parts are copied as bytes; images are base64-encoded from their
+     * files while the body is written.
+     *
+     * @param shared      Pre-encoded parts sent first, or null
+     * @param handle      Cached context the request refers to, or null
+     * @param inlineFiles Image files by the content hash their inline_file parts
+     *                    refer to
+     */
+    HttpTransport.RequestBody requestBody(RequestBodyWriter.Fragment shared, String handle, List<JSONObject> parts,
+            JSONObject generationConfig, Map<String, File> inlineFiles) {
+        boolean gzip = requestCompressionEnabled;
+        return new HttpTransport.RequestBody() {
+            @Override
+            public long contentLength() {
+                return -1; // Only known once written
+            }
+
+            @Override
+            public String contentEncoding() {
+                return gzip ? "gzip" : null;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                OutputStream target = gzip ? new GZIPOutputStream(out, REQUEST_BUFFER_SIZE) : out;
+                try {
+                    new RequestBodyWriter(inlineFiles, target).writeRequest(shared, parts, handle, generationConfig);
+                } catch (JSONException e) {
+                    throw new GeminiApiException(RetryPolicy.FailureClass.FATAL,
+                            "Failed to write request: " + e.getMessage(), e);
+                }
+                if (gzip)
+                    ((GZIPOutputStream) target).finish(); // Leaves the connection's stream open
+            }
+        };
+    }
+
+    /**
+     * Sends one request to the model's method (e.g. ":generateContent") through
+     * the circuit breaker. Server errors and timeouts count against the endpoint;
+     * while the breaker is open this fails immediately.
+     */
+    <T> T post(String method, HttpTransport.RequestBody request, long estimatedTokens,
+            CancellationToken cancellation, ResponseReader<T> reader) throws IOException, JSONException {
+        CircuitBreaker breaker = circuitBreaker;
+        breaker.acquirePermission();
+        try {
+            T response = sendRequest(baseUrl + "/v1beta/models/" + model + method, request, estimatedTokens,
+                    cancellation, reader);
+            breaker.onSuccess();
+            return response;
+        } catch (IOException e) {
+            if (cancellation.isCancelled()) {
+                // Disconnected by the cancellation, says nothing about the endpoint
+                breaker.onIgnored();
+                throw new GenerationCancelledException();
+            }
+            RetryPolicy.FailureClass failureClass = RetryPolicy.classify(e);
+            if (failureClass == RetryPolicy.FailureClass.SERVER_ERROR
+                    || failureClass == RetryPolicy.FailureClass.TIMEOUT) {
+                breaker.onFailure();
+            } else {
+                breaker.onIgnored();
+            }
+            throw e;
+        } catch (RuntimeException | JSONException e) {
+            breaker.onIgnored();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends one request. Failures are thrown as classified exceptions.
+     */
+    private <T> T sendRequest(String endpoint, HttpTransport.RequestBody request, long estimatedTokens,
+            CancellationToken cancellation, ResponseReader<T> reader) throws IOException, JSONException {
+        TokenBucketRateLimiter.Reservation reservation;
+        AdaptiveConcurrencyLimiter.Permit permit;
+        try {
+            reservation = rateLimiter.reserve(estimatedTokens);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot");
+        }
+        try {
+            permit = CONCURRENCY_LIMITER.acquire();
+        } catch (InterruptedException e) {
+            reservation.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot");
+        }
+
+        activeThreads.incrementAndGet();
+        HttpTransport.Call call = httpTransport.newPost(
+                endpoint + (endpoint.contains("?") ? "&" : "?") + "key=" + apiKey, "application/json", request);
+        // Aborts a blocked connect, write or read when the run is cancelled
+        CancellationToken.Registration abort = cancellation.onCancel(call::cancel);
+        // Closing the response returns its connection to the transport's pool
+        try (HttpTransport.Response response = call.execute()) {
+            int responseCode = response.code();
+
+            if (responseCode >= 400) {
+                String errorBody = readErrorBody(response);
+
+                if (responseCode == 429) {
+                    // Shrink the shared limit; the rejected request's tokens go back to the bucket
+                    CONCURRENCY_LIMITER.onRateLimited(permit);
+                    reservation.cancel();
+                    Log.w(TAG, String.format("Rate limited (%d in flight, concurrency limit now %d)",
+                            CONCURRENCY_LIMITER.getInFlight(), CONCURRENCY_LIMITER.getLimit()));
+                }
+                throw GeminiApiException.forHttpStatus(responseCode, errorBody, response.header("Retry-After"));
+            }
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8));
+            T result = reader.read(br, reservation);
+            CONCURRENCY_LIMITER.onSuccess(permit);
+            return result;
+        } finally {
+            // No-op if the permit was already released above
+            CONCURRENCY_LIMITER.onIgnored(permit);
+            activeThreads.decrementAndGet();
+            abort.close();
+        }
+    }
+
+    /**
+     * Sends a request to a path under the API root, e.g. "/v1beta/cachedContents",
+     * for the calls that manage cached contents and batch jobs. Only generation
+     * requests count against the rate limits and the circuit breaker, so these go
+     * around them. A cancellation aborts the call.
+     *
+     * @param body JSON request body, or null to send none
+     * @return The JSON response, empty if the response has no body
+     */
+    JSONObject send(String httpMethod, String path, JSONObject body, CancellationToken cancellation)
+            throws IOException, JSONException {
+        HttpTransport.RequestBody requestBody = null;
+        if (body != null) {
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            requestBody = new HttpTransport.RequestBody() {
+                @Override
+                public long contentLength() {
+                    return bytes.length;
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(bytes);
+                }
+            };
+        }
+        HttpTransport.Call call = httpTransport.newCall(httpMethod, baseUrl + path + "?key=" + apiKey,
+                body != null ? "application/json" : null, requestBody);
+        CancellationToken.Registration abort = cancellation.onCancel(call::cancel);
+        try (HttpTransport.Response response = call.execute()) {
+            if (response.code() >= 400) {
+                throw GeminiApiException.forHttpStatus(response.code(), readErrorBody(response),
+                        response.header("Retry-After"));
+            }
+            String text = readText(response);
+            return text.isEmpty() ? new JSONObject() : new JSONObject(text);
+        } catch (IOException e) {
+            if (cancellation.isCancelled())
+                throw new GenerationCancelledException();
+            throw e;
+        } finally {
+            abort.close();
+        }
+    }
+
+    private static String readText(HttpTransport.Response response) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null)
+                text.append(line);
+        }
+        return text.toString();
+    }
+
+    /** The error body for the exception's message, empty if it cannot be read. */
+    private static String readErrorBody(HttpTransport.Response response) {
+        try {
+            return readText(response);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /** {@link ResponseReader} of a complete GenerateContentResponse; returns its cleaned text. */
+    String readResponse(BufferedReader body, TokenBucketRateLimiter.Reservation reservation) throws IOException {
+        GenerateContentDecoder.Result response = GenerateContentDecoder.decode(body);
+        if (response.usage != null) {
+            recordUsage(response.usage, reservation);
+        }
+        if (response.text == null) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE, "Gemini response has no text");
+        }
+        return cleanResponseText(response.text);
+    }
+
+    /**
+     * Records the usage of an already parsed GenerateContentResponse, e.g. from a
+     * batch job, and returns its cleaned text. The reservation is null for
+     * responses that did not go through the rate limiter.
+     */
+    String extractResponseText(JSONObject jsonResponse, TokenBucketRateLimiter.Reservation reservation)
+            throws IOException {
+        try {
+            // Extract and log token usage
+            if (jsonResponse.has("usageMetadata")) {
+                recordUsage(GenerateContentDecoder.Usage.of(jsonResponse.getJSONObject("usageMetadata")), reservation);
+            }
+
+            String text = jsonResponse.getJSONArray("candidates").getJSONObject(0)
+                    .getJSONObject("content").getJSONArray("parts").getJSONObject(0).getString("text");
+            return cleanResponseText(text);
+        } catch (JSONException e) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE,
+                    "Failed to parse Gemini response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a server-sent event stream of GenerateContentResponse chunks, feeding
+     * every text delta to the parser. Usage metadata is cumulative, so only the
+     * last chunk's counts are recorded.
+     */
+    String readEventStream(BufferedReader body, TokenBucketRateLimiter.Reservation reservation,
+            IncrementalJsonParser parser) throws IOException {
+        GenerateContentDecoder.Usage usage = null;
+        try {
+            String line;
+            while ((line = body.readLine()) != null) {
+                if (!line.startsWith(SSE_DATA_PREFIX))
+                    continue; // Blank separators, comments and other event fields
+                String data = line.substring(SSE_DATA_PREFIX.length()).trim();
+                if (data.isEmpty())
+                    continue;
+
+                GenerateContentDecoder.Result chunk = GenerateContentDecoder.decode(data);
+                if (chunk.usage != null) {
+                    usage = chunk.usage;
+                }
+                if (chunk.text != null && !chunk.text.isEmpty()) {
+                    feedParser(parser, chunk.text);
+                }
+            }
+            if (usage != null) {
+                recordUsage(usage, reservation);
+            }
+        } catch (JSONException e) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE,
+                    "Failed to parse Gemini stream: " + e.getMessage(), e);
+        }
+
+        if (parser.getText().isEmpty()) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE, "Gemini stream had no text");
+        }
+        return cleanResponseText(parser.getText());
+    }
+
+    /** Feeds text to a parser, passing through IO and JSON failures raised by its listener. */
+    static void feedParser(IncrementalJsonParser parser, String text) throws IOException, JSONException {
+        try {
+            parser.feed(text);
+        } catch (IOException | JSONException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void recordUsage(GenerateContentDecoder.Usage usage, TokenBucketRateLimiter.Reservation reservation) {
+        int promptTokens = usage.promptTokens;
+        int candidateTokens = usage.candidatesTokens;
+        int totalTokens = usage.totalTokens;
+
+        // Replace the estimated TPM reservation with the real prompt size
+        if (reservation != null)
+            reservation.settle(promptTokens);
+        promptTokensSent.addAndGet(promptTokens);
+        totalTokensProcessed.addAndGet(totalTokens);
+        Log.i(TAG, String.format("Token Usage - Prompt: %d, Candidates: %d, Total: %d",
+                promptTokens, candidateTokens, totalTokens));
+    }
+
+    /** Strips markdown code fences and other text the model sometimes wraps JSON in. */
+    private static String cleanResponseText(String text) {
+        return ModelJsonReader.extractValue(text);
+    }
+}
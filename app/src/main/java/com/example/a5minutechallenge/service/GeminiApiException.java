@@ -0,0 +1,98 @@
+/** IOException raised for a failed Gemini request, carrying the failure class the retry policy acts on.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class GeminiApiException extends IOException {
+
+    // google.rpc.RetryInfo in the error body, e.g. "retryDelay": "37s"
+    private static final Pattern RETRY_DELAY_PATTERN = Pattern.compile("\"retryDelay\"\\s*:\\s*\"([0-9.]+)s\"");
+
+    private final RetryPolicy.FailureClass failureClass;
+    private final int statusCode;
+    private final long retryAfterMs;
+
+    public GeminiApiException(RetryPolicy.FailureClass failureClass, String message) {
+        this(failureClass, message, 0, 0, null);
+    }
+
+    public GeminiApiException(RetryPolicy.FailureClass failureClass, String message, Throwable cause) {
+        this(failureClass, message, 0, 0, cause);
+    }
+
+    private GeminiApiException(RetryPolicy.FailureClass failureClass, String message, int statusCode,
+            long retryAfterMs, Throwable cause) {
+        super(message, cause);
+        this.failureClass = failureClass;
+        this.statusCode = statusCode;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /** Request refused by the open circuit breaker; retryAfterMs is the time until the next probe. */
+    static GeminiApiException forOpenCircuit(String message, long retryAfterMs) {
+        return new GeminiApiException(RetryPolicy.FailureClass.CIRCUIT_OPEN, message, 0, retryAfterMs, null);
+    }
+
+    /**
+     * Builds the exception for an HTTP error status. The server's requested delay
+     * is taken from the Retry-After header, or from RetryInfo in the body.
+     */
+    static GeminiApiException forHttpStatus(int statusCode, String errorBody, String retryAfterHeader) {
+        RetryPolicy.FailureClass failureClass;
+        if (statusCode == 429) {
+            failureClass = RetryPolicy.FailureClass.RATE_LIMITED;
+        } else if (statusCode == 408) {
+            failureClass = RetryPolicy.FailureClass.TIMEOUT;
+        } else if (statusCode >= 500) {
+            failureClass = RetryPolicy.FailureClass.SERVER_ERROR;
+        } else {
+            failureClass = RetryPolicy.FailureClass.FATAL;
+        }
+
+        long retryAfterMs = parseRetryAfterHeader(retryAfterHeader);
+        if (retryAfterMs <= 0 && errorBody != null) {
+            Matcher matcher = RETRY_DELAY_PATTERN.matcher(errorBody);
+            if (matcher.find()) {
+                retryAfterMs = (long) (Double.parseDouble(matcher.group(1)) * 1000);
+            }
+        }
+        return new GeminiApiException(failureClass, "HTTP " + statusCode + ": " + errorBody, statusCode,
+                retryAfterMs, null);
+    }
+
+    private static long parseRetryAfterHeader(String header) {
+        if (header == null || header.trim().isEmpty())
+            return 0;
+        try {
+            return (long) (Double.parseDouble(header.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // HTTP-date form
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                return Math.max(0, format.parse(header.trim()).getTime() - System.currentTimeMillis());
+            } catch (ParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    public RetryPolicy.FailureClass getFailureClass() {
+        return failureClass;
+    }
+
+    /** HTTP status code, or 0 if the failure did not come from an HTTP response. */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** Delay requested by the server, or 0 if none was given. */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
@@ -0,0 +1,103 @@
+/** {@link BatchJobClient} backed by the Gemini Batch API with inlined requests.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class GeminiBatchJobClient implements BatchJobClient {
+
+    private final GeminiApiClient api;
+    private final CancellationToken cancellation;
+
+    /** @param cancellation The run's token; aborts a submit or poll in flight */
+    GeminiBatchJobClient(GeminiApiClient api, CancellationToken cancellation) {
+        this.api = api;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public String submit(String model, String displayName, Map<String, JSONObject> requests)
+            throws IOException, JSONException {
+        JSONArray inlined = new JSONArray();
+        for (Map.Entry<String, JSONObject> entry : requests.entrySet()) {
+            inlined.put(new JSONObject()
+                    .put("request", entry.getValue())
+                    .put("metadata", new JSONObject().put("key", entry.getKey())));
+        }
+        JSONObject batch = new JSONObject()
+                .put("display_name", displayName)
+                .put("input_config", new JSONObject().put("requests", new JSONObject().put("requests", inlined)));
+
+        // e.g. "batches/abc123"
+        return api.send("POST", "/v1beta/models/" + model + ":batchGenerateContent",
+                new JSONObject().put("batch", batch), cancellation).getString("name");
+    }
+
+    @Override
+    public JobStatus poll(String jobName) throws IOException, JSONException {
+        JSONObject operation = api.send("GET", "/v1beta/" + jobName, null, cancellation);
+
+        // The job is returned as a long-running operation, its details live in the metadata
+        JSONObject job = operation.optJSONObject("metadata") != null ? operation.getJSONObject("metadata")
+                : operation;
+        State state = parseState(job.optString("state", ""));
+        if (state != State.SUCCEEDED) {
+            return new JobStatus(state, null);
+        }
+
+        JSONObject output = operation.optJSONObject("response");
+        if (output == null)
+            output = job.optJSONObject("output");
+        JSONObject inlinedResponses = output == null ? null : output.optJSONObject("inlinedResponses");
+        JSONArray items = inlinedResponses == null ? null : inlinedResponses.optJSONArray("inlinedResponses");
+
+        Map<String, JSONObject> responses = new LinkedHashMap<>();
+        for (int i = 0; items != null && i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            JSONObject response = item.optJSONObject("response");
+            if (response == null)
+                continue; // Failed inside the job, the item carries an "error" instead
+            JSONObject metadata = item.optJSONObject("metadata");
+            responses.put(metadata != null ? metadata.optString("key", String.valueOf(i)) : String.valueOf(i),
+                    response);
+        }
+        return new JobStatus(state, responses);
+    }
+
+    @Override
+    public void cancel(String jobName) throws IOException {
+        try {
+            // Also stops the jobs of a cancelled run, so it is not tied to the run's token
+            api.send("POST", "/v1beta/" + jobName + ":cancel", new JSONObject(), new CancellationToken());
+        } catch (GeminiApiException e) {
+            if (e.getStatusCode() != 404)
+                throw e;
+        } catch (JSONException ignored) {
+            // Cancelled, the response body is not needed
+        }
+    }
+
+    private static State parseState(String state) {
+        // e.g. "BATCH_STATE_RUNNING" or "JOB_STATE_RUNNING"
+        switch (state.substring(state.lastIndexOf('_') + 1)) {
+            case "SUCCEEDED":
+                return State.SUCCEEDED;
+            case "FAILED":
+                return State.FAILED;
+            case "CANCELLED":
+                return State.CANCELLED;
+            case "EXPIRED":
+                return State.EXPIRED;
+            case "RUNNING":
+                return State.RUNNING;
+            default:
+                return State.PENDING;
+        }
+    }
+}
@@ -9,11 +9,11 @@
 package com.example.a5minutechallenge.service;
 
 import android.content.Context;
-import android.util.Base64;
 import android.util.Log;
 
 import com.example.a5minutechallenge.BuildConfig;
 import com.example.a5minutechallenge.datawrapper.subject.SubjectFile;
+import com.example.a5minutechallenge.util.fileutil.fileutil;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -21,42 +21,85 @@ import org.json.JSONObject;
 
 import com.tom_roush.pdfbox.android.PDFBoxResourceLoader;
 import com.tom_roush.pdfbox.pdmodel.PDDocument;
-import com.tom_roush.pdfbox.text.PDFTextStripper;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class GeminiContentProcessor {
 
     private static final String TAG = "GeminiContentProcessor";
-    private static final String API_ENDPOINT = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.5-flash-lite:generateContent";
+    private static final String MODEL = "gemini-2.5-flash-lite";
     private static final int MAX_FILE_SIZE = 50 * 1024 * 1024; // 50MB
-    private static final long MAX_RETRY_DURATION_MS = 30 * 60 * 1000; // 30 minutes
-    private static final long INITIAL_RETRY_DELAY_MS = 2000; // 2 seconds
-    private static final long MAX_RETRY_DELAY_MS = 30000; // 30 seconds
-    private static final int MAX_STRUCTURE_RETRIES = 2; // Total 3 attempts (original + 2 retries)
-
-    private final String apiKey;
-    private final AtomicLong totalTokensProcessed = new AtomicLong(0);
-    private final AtomicInteger activeThreads = new AtomicInteger(0);
-    private final AtomicInteger rateLimitedThreads = new AtomicInteger(0);
+    private static final long MAX_RETRY_BACKOFF_MS = 5 * 60 * 1000; // 5 minutes of backoff per request
+    private static final int MAX_RUN_RETRIES = 500; // Shared by all requests of a run
+    private static final int MAX_EXTRACTION_THREADS = 4; // PDF parsing is memory heavy, keep the pool small
+    static final int CHARS_PER_TOKEN = 4; // Rough estimate for prompt sizing
+    static final int IMAGE_TOKEN_ESTIMATE = 1032; // 4 tiles of 258 tokens, for images of unknown size
+    private static final long DEFAULT_IMAGE_MAX_PIXELS = 1024 * 1024; // ~1 MP, at most 4 tiles
+    private static final int DEFAULT_IMAGE_QUALITY = 80;
+    private static final long DEFAULT_CONTEXT_TOKEN_BUDGET = 32_000; // Document context per Stage 2 request
+    private static final int CHALLENGE_CONTEXT_PAGES = 6; // Best matching pages sent with each Stage 2b request
+    private static final long FUSED_PLAN_MAX_TOKENS = 6000; // Inputs up to a few pages are generated in one call
+    private static final int FUSED_PLAN_MAX_PAGES = 6;
+    private static final long DEFAULT_STRUCTURE_WINDOW_TOKENS = 100_000; // Larger corpora are analysed in windows
+    private static final int STRUCTURE_WINDOW_PAGES = 60; // Keeps one window's section list well below maxOutputTokens
+    private static final int MAX_OUTPUT_TOKENS = 8192;
+    private static final double BATCH_OUTPUT_HEADROOM = 0.75; // Output estimates are rough, leave room for longer answers
+    private static final long OUTLINE_OUTPUT_TOKEN_ESTIMATE = 400; // 3-5 challenge titles and descriptions
+    private static final long CHALLENGE_OUTPUT_TOKEN_ESTIMATE = 2000; // About 10 TOON containers
+    private static final int MAX_OUTLINE_BATCH_SIZE = 8;
+    private static final int MAX_CHALLENGE_BATCH_SIZE = 4;
+    private static final long BATCH_JOB_POLL_INTERVAL_MS = 30_000;
+    private static final long BATCH_JOB_MAX_WAIT_MS = 24L * 60 * 60 * 1000; // Jobs expire server-side after 24 hours
+    private static final long BATCH_JOB_MAX_INLINE_CHARS = 16L * 1024 * 1024; // Inlined requests are limited to 20MB
+    private static final String RESPONSE_CACHE_DIR = "gemini_responses";
+    private static final long RESPONSE_CACHE_MAX_BYTES = 32L * 1024 * 1024; // 32MB
+    private static final String PREPARED_IMAGE_DIR = "gemini_images";
+    private static final long PREPARED_IMAGE_MAX_BYTES = 64L * 1024 * 1024; // 64MB
+
+    private final GeminiApiClient api;
+    private final AtomicInteger responseCacheHits = new AtomicInteger(0);
+    private ResponseCache responseCache;
+    private volatile boolean bypassResponseCache = false;
+    private volatile boolean streamingEnabled = false;
+    private volatile ContainerStreamListener containerStreamListener;
+    private volatile boolean pipelinedEnabled = false;
+    private volatile long contextTokenBudget = DEFAULT_CONTEXT_TOKEN_BUDGET;
+    private volatile boolean contextCachingEnabled = true;
+    private volatile boolean fusedPlanEnabled = true;
+    private volatile long structureWindowTokens = DEFAULT_STRUCTURE_WINDOW_TOKENS;
+    private volatile boolean requestBatchingEnabled = true;
+    private volatile boolean batchJobEnabled = false;
+    private volatile long imageMaxPixels = DEFAULT_IMAGE_MAX_PIXELS;
+    private volatile int imageQuality = DEFAULT_IMAGE_QUALITY;
+    private volatile BatchJobClient batchJobClient;
+    private volatile ContextCache contextCache;
+    private volatile TopicResultListener topicResultListener;
 
     /**
      * Interface for tracking progress during content generation
@@ -65,11 +108,213 @@ public class GeminiContentProcessor {
         void onProgress(int progress, String message);
     }
 
+    /**
+     * Receives each container of a challenge while Stage 2b is still streaming it,
+     * already validated and expanded, so it can be shown or persisted early.
+     * Containers are provisional: a failed attempt is retried from the start, so a
+     * challenge's containers can arrive again from index 0. The challenge's final
+     * content is the one in its topic's result; a challenge left out after all
+     * retries never gets one.
+     */
+    public interface ContainerStreamListener {
+        /**
+         * An attempt at the challenge starts streaming. Containers received for an
+         * earlier attempt of the same challenge are void.
+         *
+         * @param attempt 0 for the first attempt
+         */
+        void onAttemptStarted(String topicTitle, String challengeTitle, int attempt);
+
+        void onContainer(String topicTitle, String challengeTitle, int attempt, int index, JSONObject container);
+    }
+
+    /**
+     * Receives each generated topic as soon as all of its challenges are done, in
+     * completion order. The index is the topic's position in the Stage 1 outline.
+     */
+    public interface TopicResultListener {
+        void onTopicCompleted(int index, JSONObject topic);
+    }
+
     public GeminiContentProcessor() {
-        this.apiKey = BuildConfig.GEMINI_API_KEY;
+        String apiKey = BuildConfig.GEMINI_API_KEY;
         if (apiKey == null || apiKey.isEmpty() || apiKey.equals("null")) {
             throw new IllegalStateException("GEMINI_API_KEY not configured in local.properties");
         }
+        this.api = new GeminiApiClient(MODEL, apiKey);
+    }
+
+    /**
+     * Configures the Gemini quota that requests are paced against. Applies to all
+     * processors in the process.
+     */
+    public static void configureQuota(int requestsPerMinute, long inputTokensPerMinute) {
+        GeminiApiClient.configureQuota(requestsPerMinute, inputTokensPerMinute);
+    }
+
+    /**
+     * Replaces the HTTP transport of all processors in the process, e.g. with
+     * {@link UrlConnectionTransport} or a local stand-in.
+     */
+    public static void setHttpTransport(HttpTransport transport) {
+        GeminiApiClient.setHttpTransport(transport);
+    }
+
+    /**
+     * Selects the default pooled transport, with or without HTTP/2. With HTTP/2
+     * the concurrent requests of a run share one multiplexed connection.
+     */
+    public static void setHttp2Enabled(boolean enabled) {
+        GeminiApiClient.setHttp2Enabled(enabled);
+    }
+
+    /**
+     * Opens a connection to the Gemini API in the background, so the first
+     * request of the next run finds it in the pool. Call it when generation is
+     * likely, e.g. when the upload screen opens.
+     */
+    public static void prewarmConnection() {
+        GeminiApiClient.prewarmConnection();
+    }
+
+    /**
+     * Replaces the circuit breaker settings: the failure rate (0..1) over the last
+     * calls at which requests start failing fast, and how long to wait before
+     * sending trial requests again.
+     */
+    public void configureCircuitBreaker(double failureRateThreshold, long openDurationMs) {
+        api.configureCircuitBreaker(failureRateThreshold, openDurationMs);
+    }
+
+    /**
+     * When enabled, cached Gemini responses are ignored and every request goes to
+     * the API. Fresh responses still refresh the cache.
+     */
+    public void setBypassResponseCache(boolean bypass) {
+        this.bypassResponseCache = bypass;
+    }
+
+    /**
+     * Overrides the Gemini API base URL, e.g. to point the processor at a local
+     * stand-in server. Paths and the API key are appended as for the real API.
+     */
+    public void setApiBaseUrl(String baseUrl) {
+        api.setBaseUrl(baseUrl);
+    }
+
+    /**
+     * When enabled, Stage 2b uses the streamGenerateContent (SSE) endpoint and
+     * validates each container as soon as it is complete. An invalid container
+     * aborts the stream instead of waiting for the whole challenge.
+     */
+    public void setStreamingEnabled(boolean enabled) {
+        this.streamingEnabled = enabled;
+    }
+
+    public void setContainerStreamListener(ContainerStreamListener listener) {
+        this.containerStreamListener = listener;
+    }
+
+    /**
+     * When enabled, Stage 1 is streamed and Stage 2 starts for each topic as soon as
+     * its outline has been parsed, instead of after the whole topic list. Finished
+     * topics go to the {@link TopicResultListener} in completion order; the returned
+     * JSON still lists topics in outline order.
+     */
+    public void setPipelinedEnabled(boolean enabled) {
+        this.pipelinedEnabled = enabled;
+    }
+
+    public void setTopicResultListener(TopicResultListener listener) {
+        this.topicResultListener = listener;
+    }
+
+    /**
+     * Sets the estimated number of document tokens a single Stage 2 request may
+     * carry. Pages are ranked against the challenge and the least relevant ones
+     * are dropped once the budget is reached.
+     */
+    public void setContextTokenBudget(long tokens) {
+        this.contextTokenBudget = tokens;
+    }
+
+    /**
+     * When enabled (the default), the document corpus used by Stages 0 and 1 and
+     * the static Stage 2b instructions are uploaded once per run as cached
+     * contents and referenced by handle. Too small contexts are always sent inline.
+     */
+    public void setContextCachingEnabled(boolean enabled) {
+        this.contextCachingEnabled = enabled;
+    }
+
+    /**
+     * When enabled (the default), small uploads are generated with a single request
+     * instead of the staged pipeline. Larger inputs always use the stages.
+     */
+    public void setFusedPlanEnabled(boolean enabled) {
+        this.fusedPlanEnabled = enabled;
+    }
+
+    /**
+     * Sets the estimated document tokens Stage 0 sends in one request. Larger
+     * corpora are split into page windows that are analysed in parallel and
+     * stitched back together.
+     */
+    public void setStructureWindowTokens(long tokens) {
+        this.structureWindowTokens = tokens;
+    }
+
+    /**
+     * When enabled (the default), Stage 2a asks for the challenge outlines of
+     * several small topics in one request, and Stage 2b generates several
+     * challenges of a topic per request. Batches are sized so the expected answer
+     * fits maxOutputTokens. Challenges are not batched while streaming is enabled.
+     */
+    public void setRequestBatchingEnabled(boolean enabled) {
+        this.requestBatchingEnabled = enabled;
+    }
+
+    /**
+     * When enabled, all Stage 2b requests of a run are submitted as one
+     * asynchronous batch job and collected when it is done, for bulk
+     * pre-generation where throughput matters more than latency. Challenges the
+     * job does not answer are generated interactively afterwards.
+     */
+    public void setBatchJobEnabled(boolean enabled) {
+        this.batchJobEnabled = enabled;
+    }
+
+    /**
+     * When enabled, request bodies are gzip-compressed while they are written.
+     * Saves upload time on slow links for text-heavy prompts at some CPU cost.
+     */
+    public void setRequestCompressionEnabled(boolean enabled) {
+        api.setRequestCompressionEnabled(enabled);
+    }
+
+    /** Replaces the Gemini Batch API client, e.g. with a local stand-in. */
+    public void setBatchJobClient(BatchJobClient client) {
+        this.batchJobClient = client;
+    }
+
+    /**
+     * Sets how uploaded images are shrunk before they are sent: scaled down to
+     * at most maxPixels and re-encoded at the given quality (0 to 100). A
+     * maxPixels of 0 sends images as uploaded.
+     */
+    public void setImagePreprocessing(long maxPixels, int quality) {
+        this.imageMaxPixels = Math.max(0, maxPixels);
+        this.imageQuality = Math.max(0, Math.min(100, quality));
+    }
+
+    /** Replaces the Gemini cachedContents client, e.g. with a local stand-in. */
+    public void setContextCache(ContextCache cache) {
+        this.contextCache = cache;
+    }
+
+    /** Prompt tokens reported by the API for all requests of this processor so far. */
+    public long getPromptTokensSent() {
+        return api.getPromptTokensSent();
     }
 
     /**
@@ -81,40 +326,283 @@ public class GeminiContentProcessor {
      */
     public String processFiles(List<SubjectFile> files, String subjectTitle, Context context, ProgressListener listener)
             throws IOException, JSONException {
+        return processFiles(files, subjectTitle, null, context, listener);
+    }
+
+    /**
+     * Same as {@link #processFiles(List, String, Context, ProgressListener)}, but keeps
+     * per-subject caches under the given subject_<id> directory so unchanged
+     * uploads are not parsed again, and journals the run there so it can be
+     * resumed. A null directory disables caching and journaling.
+     */
+    public String processFiles(List<SubjectFile> files, String subjectTitle, File subjectDir, Context context,
+            ProgressListener listener) throws IOException, JSONException {
+        return processFiles(files, subjectTitle, subjectDir, context, listener, new CancellationToken());
+    }
+
+    /**
+     * Same as {@link #processFiles(List, String, File, Context, ProgressListener)},
+     * stopped early when the token is cancelled: retry waits end, open requests
+     * are disconnected and queued work is dropped, and the call throws
+     * {@link GenerationCancelledException}.
+     */
+    public String processFiles(List<SubjectFile> files, String subjectTitle, File subjectDir, Context context,
+            ProgressListener listener, CancellationToken cancellation) throws IOException, JSONException {
+        return runFiles(files, subjectTitle, subjectDir, context, listener, false, null, cancellation);
+    }
+
+    /**
+     * Continues a run that did not finish, e.g. because the process died. Stage
+     * outputs and challenges found in the run journal under subject_<id> are
+     * reused; only the missing work is done. If the journal is missing or the
+     * files changed, this is a fresh run. The caller discards the journal with
+     * {@link #discardRunJournal} once the result is saved.
+     */
+    public String resumeFiles(List<SubjectFile> files, String subjectTitle, File subjectDir, Context context,
+            ProgressListener listener, CancellationToken cancellation) throws IOException, JSONException {
+        if (subjectDir == null) {
+            throw new IllegalArgumentException("Resuming needs the subject directory");
+        }
+        return runFiles(files, subjectTitle, subjectDir, context, listener, true, null, cancellation);
+    }
+
+    /**
+     * Generates topics for files added to a subject that already has content.
+     * Only the given files go through Stages 0-2; the existing topic titles are
+     * passed to topic extraction so the new topics do not repeat them. Each topic
+     * lists the files it was generated from under "sourceFiles". The run is
+     * journaled under subject_<id> and resumed like {@link #resumeFiles} if the
+     * same files are processed again after an interruption.
+     */
+    public String processAddedFiles(List<SubjectFile> addedFiles, List<String> existingTopicTitles,
+            String subjectTitle, File subjectDir, Context context, ProgressListener listener,
+            CancellationToken cancellation) throws IOException, JSONException {
+        if (subjectDir == null) {
+            throw new IllegalArgumentException("Incremental generation needs the subject directory");
+        }
+        return runFiles(addedFiles, subjectTitle, subjectDir, context, listener, true,
+                existingTopicTitles != null ? existingTopicTitles : Collections.emptyList(), cancellation);
+    }
+
+    /** Whether subject_<id> holds the journal of a run that can be resumed. */
+    public static boolean hasResumableRun(File subjectDir) {
+        return new RunJournal(subjectDir).exists();
+    }
+
+    /** Deletes the run journal under subject_<id>. */
+    public static void discardRunJournal(File subjectDir) {
+        new RunJournal(subjectDir).clear();
+    }
+
+    /**
+     * @param existingTopics Topic titles the subject already has when only added
+     *                       files are processed, null for a run over all files
+     */
+    private String runFiles(List<SubjectFile> files, String subjectTitle, File subjectDir, Context context,
+            ProgressListener listener, boolean resume, List<String> existingTopics, CancellationToken cancellation)
+            throws IOException, JSONException {
+        // Wakes this thread from waits on extraction and Stage 2 futures
+        Thread runThread = Thread.currentThread();
+        try (CancellationToken.Registration interruptRun = cancellation.onCancel(runThread::interrupt)) {
+            GenerationRun run = newRun(context, existingTopics, cancellation);
+            try {
+                return runFiles(files, subjectTitle, subjectDir, context, listener, resume, run);
+            } finally {
+                run.images.release();
+            }
+        } catch (IOException | JSONException | RuntimeException e) {
+            // Whatever the aborted work failed with, the run was cancelled
+            cancellation.throwIfCancelled();
+            throw e;
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private GenerationRun newRun(Context context, List<String> existingTopics, CancellationToken cancellation) {
+        // Images are staged per run, shrunk first unless preprocessing is off
+        InlineImages images = new InlineImages(context != null && imageMaxPixels > 0
+                ? new ImagePreprocessor(new File(context.getCacheDir(), PREPARED_IMAGE_DIR), imageMaxPixels,
+                        imageQuality, PREPARED_IMAGE_MAX_BYTES)
+                : null);
+        ContextCache cache = contextCache != null ? contextCache
+                : new GeminiContextCache(api, cancellation);
+        return new GenerationRun(cancellation, new RetryPolicy(MAX_RETRY_BACKOFF_MS, MAX_RUN_RETRIES, cancellation),
+                images, new SharedContexts(contextCachingEnabled ? cache : null, MODEL, images), existingTopics);
+    }
+
+    private String runFiles(List<SubjectFile> files, String subjectTitle, File subjectDir, Context context,
+            ProgressListener listener, boolean resume, GenerationRun run) throws IOException, JSONException {
         try {
             PDFBoxResourceLoader.init(context);
         } catch (Exception e) {
             Log.w(TAG, "PDFBoxResourceLoader.init failed: " + e.getMessage());
         }
 
+        if (responseCache == null && context != null) {
+            responseCache = ResponseCache.getInstance(new File(context.getCacheDir(), RESPONSE_CACHE_DIR),
+                    RESPONSE_CACHE_MAX_BYTES);
+        }
+
         if (files == null || files.isEmpty()) {
             throw new IllegalArgumentException("No files provided for processing");
         }
 
+        // Remember the last progress value so breaker state changes can be reported in place
+        ProgressListener callerListener = listener;
+        if (callerListener != null) {
+            listener = (progress, message) -> {
+                run.lastReportedProgress = progress;
+                callerListener.onProgress(progress, message);
+            };
+        }
+        ProgressListener runListener = listener;
+        api.setBreakerStateListener((from, to) -> {
+            if (runListener == null)
+                return;
+            if (to == CircuitBreaker.State.OPEN) {
+                runListener.onProgress(run.lastReportedProgress, "Gemini is not responding, pausing requests...");
+            } else if (to == CircuitBreaker.State.HALF_OPEN) {
+                runListener.onProgress(run.lastReportedProgress, "Checking whether Gemini is available again...");
+            } else {
+                runListener.onProgress(run.lastReportedProgress, "Gemini connection restored, resuming...");
+            }
+        });
+
         if (listener != null)
             listener.onProgress(5, "Extracting document content...");
 
         // 1. Extract full document content with page-level granularity
         Log.i(TAG, "Extracting document content...");
-        List<DocumentContent> documents = extractDocumentContents(files);
+        ExtractionCache extractionCache = subjectDir != null ? new ExtractionCache(subjectDir) : null;
+        // An incremental run sees only the added files, the other cache entries are still needed
+        List<DocumentContent> documents = extractDocumentContents(files, extractionCache, listener,
+                run.existingTopicTitles == null, run);
         if (documents.isEmpty()) {
             throw new IOException("No readable content found in files");
         }
 
+        // Built once per run, ranks pages for every Stage 2 request
+        run.pageIndex = new PageIndex(documents);
+        Log.i(TAG, "Indexed " + run.pageIndex.getPageCount() + " pages for context retrieval");
+
+        if (subjectDir != null) {
+            RunJournal journal = new RunJournal(subjectDir);
+            boolean resumed = journal.begin(fingerprintRun(documents, subjectTitle, run.existingTopicTitles), resume);
+            Log.i(TAG, resumed ? "Resuming journaled run" : "Journaling new run");
+            run.journal = journal;
+        }
+
+        try {
+            return generateContent(documents, subjectTitle, listener, run);
+        } finally {
+            run.sharedContexts.release();
+        }
+    }
+
+    /** Plans the run and generates the content with the chosen plan. */
+    private String generateContent(List<DocumentContent> documents, String subjectTitle, ProgressListener listener,
+            GenerationRun run) throws IOException, JSONException {
+        // With the fused plan disabled no input is small enough for it
+        PipelinePlanner planner = fusedPlanEnabled
+                ? new PipelinePlanner(FUSED_PLAN_MAX_TOKENS, FUSED_PLAN_MAX_PAGES)
+                : new PipelinePlanner(0, 0);
+        PipelinePlanner.Decision decision = planner.choose(documents);
+        Log.i(TAG, "Pipeline plan: " + decision);
+
+        if (decision.plan == PipelinePlanner.Plan.FUSED) {
+            JSONArray fusedTopics = generateFused(documents, subjectTitle, listener, run);
+            if (fusedTopics != null) {
+                return finishRun(fusedTopics, listener, run);
+            }
+            Log.w(TAG, "Pipeline plan: falling back to " + PipelinePlanner.Plan.MULTI_STAGE);
+        }
+
         if (listener != null)
             listener.onProgress(15, "Analyzing document structure...");
 
         // 2. Stage 0: Semantic Document Analysis - Get logical sections from LLM
         Log.i(TAG, "Stage 0: Analyzing document structure...");
-        List<SemanticSection> semanticSections = analyzeDocumentStructure(documents, subjectTitle);
+        String journaledSections = run.journalGet(JOURNAL_STAGE_0);
+        List<SemanticSection> semanticSections;
+        if (journaledSections != null) {
+            semanticSections = parseSemanticSections(journaledSections, documents);
+            Log.i(TAG, "Stage 0: restored from run journal");
+        } else {
+            semanticSections = analyzeDocumentStructure(documents, subjectTitle, run);
+            run.journalPut(JOURNAL_STAGE_0, sectionsToJson(semanticSections).toString());
+        }
         Log.i(TAG, "Found " + semanticSections.size() + " semantic sections.");
 
         if (listener != null)
             listener.onProgress(30, "Extracting topics...");
 
+        JSONArray generatedTopics;
+        if (batchJobEnabled) {
+            generatedTopics = generateTopicsBatchJob(documents, semanticSections, subjectTitle, listener, run);
+        } else if (pipelinedEnabled) {
+            generatedTopics = generateTopicsPipelined(documents, semanticSections, subjectTitle, listener, run);
+        } else {
+            generatedTopics = generateTopics(documents, semanticSections, subjectTitle, listener, run);
+        }
+
+        return finishRun(generatedTopics, listener, run);
+    }
+
+    /**
+     * The corpus for Stages 0 and 1 as a shared context, uploaded by the first
+     * request that needs it. A resumed run whose stages are journaled never does.
+     */
+    private SharedContext corpusContext(List<DocumentContent> documents, GenerationRun run) throws JSONException {
+        synchronized (run) {
+            if (run.corpusContext == null) {
+                List<JSONObject> parts = buildCorpusParts(documents);
+                run.corpusContext = run.sharedContexts.create("document corpus", parts, estimatePromptTokens(parts));
+            }
+            return run.corpusContext;
+        }
+    }
+
+    /** The Stage 2b guidelines as a shared context, uploaded by the first request that needs it. */
+    private SharedContext guidelinesContext(GenerationRun run) throws JSONException {
+        synchronized (run) {
+            if (run.guidelinesContext == null) {
+                List<JSONObject> parts = Collections.singletonList(new JSONObject().put("text", CHALLENGE_GUIDELINES));
+                run.guidelinesContext = run.sharedContexts.create("challenge guidelines", parts,
+                        estimatePromptTokens(parts));
+            }
+            return run.guidelinesContext;
+        }
+    }
+
+    private String finishRun(JSONArray generatedTopics, ProgressListener listener, GenerationRun run)
+            throws IOException, JSONException {
+        // Cancelled topics are missing, the result must not be mistaken for a complete one
+        run.cancellation.throwIfCancelled();
+        if (listener != null)
+            listener.onProgress(98, "Finalizing structure...");
+
+        // 5. Wrap in final structure
+        JSONObject finalResult = new JSONObject();
+        finalResult.put("topics", generatedTopics);
+
+        Log.i(TAG, String.format(
+                "Processing complete. Total tokens used: %d (prompt: %d), cached responses replayed: %d",
+                api.getTotalTokensProcessed(), api.getPromptTokensSent(), responseCacheHits.get()));
+        if (listener != null)
+            listener.onProgress(100, "Generation complete");
+        return finalResult.toString();
+    }
+
+    /**
+     * Stages 1 and 2 with a barrier in between: all topics are known before any
+     * content is generated, and results are gathered in outline order.
+     */
+    private JSONArray generateTopics(List<DocumentContent> documents, List<SemanticSection> semanticSections,
+            String subjectTitle, ProgressListener listener, GenerationRun run) throws IOException, JSONException {
         // 3. Stage 1: Extract Topics mapped to semantic sections
         Log.i(TAG, "Stage 1: Extracting topics...");
-        List<TopicOutline> topicOutlines = extractTopics(documents, semanticSections, subjectTitle);
+        List<TopicOutline> topicOutlines = extractTopicsJournaled(documents, semanticSections, subjectTitle, run);
         Log.i(TAG, "Found " + topicOutlines.size() + " topics.");
 
         if (topicOutlines.isEmpty()) {
@@ -122,70 +610,581 @@ public class GeminiContentProcessor {
         }
 
         // 4. Stage 2: Generate Content for each Topic (Parallelized)
+        // All topics and challenges share the process-wide scheduler, so the number of
+        // threads does not grow with the number of topics.
         Log.i(TAG, "Stage 2: Generating content for topics...");
-        // Increased thread pool size to handle more parallel requests (especially with
-        // individual challenges)
-        ExecutorService topicExecutor = Executors.newFixedThreadPool(15);
-        List<Future<JSONObject>> topicFutures = new ArrayList<>();
+        GenerationScheduler scheduler = GenerationScheduler.getInstance();
+        List<CompletableFuture<JSONObject>> topicFutures = new ArrayList<>();
+
+        int baseProgress = 40;
+        int totalProgressRange = 55; // From 40 to 95
+        int totalTopics = topicOutlines.size();
+        List<CompletableFuture<List<ChallengeOutline>>> outlineFutures = requestBatchingEnabled
+                ? scheduleChallengeOutlineBatches(topicOutlines, documents, scheduler, listener, baseProgress,
+                        totalProgressRange, run)
+                : null;
+
+        for (int i = 0; i < totalTopics; i++) {
+            TopicOutline outline = topicOutlines.get(i);
+            int topicBaseProgress = baseProgress + (i * totalProgressRange / totalTopics);
+            int topicProgressRange = totalProgressRange / totalTopics;
+            CompletableFuture<List<ChallengeOutline>> challengeOutlines = outlineFutures != null
+                    ? outlineFutures.get(i)
+                    : scheduleChallengeOutlines(outline, documents, scheduler, listener, topicBaseProgress, run);
+
+            topicFutures.add(generateTopicContent(outline, challengeOutlines, documents, scheduler, listener,
+                    topicBaseProgress, topicProgressRange, run).exceptionally(e -> {
+                        return skipUnlessEndpointFailure(e, "Topic generation failed for: " + outline.title);
+                    }));
+        }
+
+        return gatherTopicResults(topicFutures);
+    }
+
+    /**
+     * Stages 1 and 2 overlapped: Stage 1 is streamed and every topic is handed to
+     * Stage 2 as soon as its outline closes, so slow topics no longer hold back the
+     * ones behind them.
+     */
+    private JSONArray generateTopicsPipelined(List<DocumentContent> documents, List<SemanticSection> semanticSections,
+            String subjectTitle, ProgressListener listener, GenerationRun run) throws IOException, JSONException {
+        Log.i(TAG, "Stage 1+2 (pipelined): Extracting topics and generating content as they arrive...");
+        GenerationScheduler scheduler = GenerationScheduler.getInstance();
+        List<CompletableFuture<JSONObject>> topicFutures = new ArrayList<>();
+        Set<String> submittedTitles = new HashSet<>();
+        AtomicInteger submittedTopics = new AtomicInteger(0);
+        AtomicInteger completedTopics = new AtomicInteger(0);
+        TopicResultListener resultListener = topicResultListener;
+
+        // Runs on this thread, from the Stage 1 stream parser and after Stage 1 returns
+        TopicConsumer submitTopic = outline -> {
+            // A Stage 1 retry streams the topics again, only start the new ones
+            if (!submittedTitles.add(outline.title.trim().toLowerCase(Locale.ROOT)))
+                return;
+            int index = submittedTopics.getAndIncrement();
+            Log.i(TAG, "Pipelined: starting Stage 2 for topic " + (index + 1) + ": " + outline.title);
+
+            int topicBaseProgress = run.lastReportedProgress;
+            topicFutures.add(generateTopicContent(outline,
+                    scheduleChallengeOutlines(outline, documents, scheduler, listener, topicBaseProgress, run),
+                    documents, scheduler, listener, topicBaseProgress, 0, run)
+                    .exceptionally(e -> {
+                        return skipUnlessEndpointFailure(e, "Topic generation failed for: " + outline.title);
+                    }).thenApply(topicContent -> {
+                        // The total is still growing while Stage 1 streams, so progress is relative to topics seen
+                        int completed = completedTopics.incrementAndGet();
+                        if (listener != null) {
+                            int progress = 40 + completed * 55 / Math.max(submittedTopics.get(), completed);
+                            listener.onProgress(progress,
+                                    String.format("Finished topic %d: %s", completed, outline.title));
+                        }
+                        if (topicContent != null && resultListener != null) {
+                            try {
+                                resultListener.onTopicCompleted(index, topicContent);
+                            } catch (RuntimeException e) {
+                                Log.w(TAG, "Topic result listener failed: " + e.getMessage());
+                            }
+                        }
+                        return topicContent;
+                    }));
+        };
+
+        List<TopicOutline> topicOutlines = journaledTopics(run);
+        if (topicOutlines == null) {
+            topicOutlines = extractTopicsStreaming(documents, semanticSections, subjectTitle, submitTopic, run);
+            journalTopics(topicOutlines, run);
+        }
+        // Topics the stream parser could not see (e.g. wrapped in an object) start now
+        for (TopicOutline outline : topicOutlines) {
+            submitTopic.accept(outline);
+        }
+        Log.i(TAG, "Found " + topicFutures.size() + " topics.");
+
+        if (topicFutures.isEmpty()) {
+            throw new IOException("No topics could be extracted from the documents");
+        }
+        return gatherTopicResults(topicFutures);
+    }
+
+    /**
+     * Stages 1 and 2a as in {@link #generateTopics}, then every Stage 2b request of
+     * the run in asynchronous batch jobs. Challenges already in the response cache
+     * are not submitted; challenges the jobs do not answer with valid content are
+     * generated interactively.
+     */
+    private JSONArray generateTopicsBatchJob(List<DocumentContent> documents, List<SemanticSection> semanticSections,
+            String subjectTitle, ProgressListener listener, GenerationRun run) throws IOException, JSONException {
+        Log.i(TAG, "Stage 1: Extracting topics...");
+        List<TopicOutline> topicOutlines = extractTopicsJournaled(documents, semanticSections, subjectTitle, run);
+        Log.i(TAG, "Found " + topicOutlines.size() + " topics.");
+        if (topicOutlines.isEmpty()) {
+            throw new IOException("No topics could be extracted from the documents");
+        }
+
+        if (listener != null)
+            listener.onProgress(40, "Extracting challenge outlines...");
+        GenerationScheduler scheduler = GenerationScheduler.getInstance();
+        List<CompletableFuture<List<ChallengeOutline>>> outlineFutures;
+        // Stage 2a reports from 40 to 60, the batch jobs take over from there
+        if (requestBatchingEnabled) {
+            outlineFutures = scheduleChallengeOutlineBatches(topicOutlines, documents, scheduler, listener, 40, 20,
+                    run);
+        } else {
+            outlineFutures = new ArrayList<>();
+            for (int t = 0; t < topicOutlines.size(); t++) {
+                outlineFutures.add(scheduleChallengeOutlines(topicOutlines.get(t), documents, scheduler, listener,
+                        40 + t * 20 / topicOutlines.size(), run));
+            }
+        }
+        List<List<ChallengeOutline>> challengeOutlines = new ArrayList<>();
+        for (int t = 0; t < topicOutlines.size(); t++) {
+            try {
+                challengeOutlines.add(outlineFutures.get(t).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during Stage 2a");
+            } catch (ExecutionException e) {
+                throwIfEndpointFailure(e);
+                Log.e(TAG, "Topic generation failed for: " + topicOutlines.get(t).title, unwrap(e));
+                challengeOutlines.add(new ArrayList<>());
+            }
+        }
+
+        // Stage 2b: one request per challenge, keyed by its journal key so a resumed run can match job responses
+        Map<String, JSONObject> requests = new LinkedHashMap<>();
+        Map<String, String> cacheKeys = new HashMap<>();
+        Map<String, JSONObject> results = new ConcurrentHashMap<>();
+        for (int t = 0; t < topicOutlines.size(); t++) {
+            for (int c = 0; c < challengeOutlines.get(t).size(); c++) {
+                String key = challengeKey(topicOutlines.get(t), challengeOutlines.get(t).get(c));
+                JSONObject journaled = journaledChallenge(topicOutlines.get(t), challengeOutlines.get(t).get(c), run);
+                if (journaled != null) {
+                    results.put(key, journaled);
+                    continue;
+                }
+                List<JSONObject> promptParts = buildChallengeParts(topicOutlines.get(t),
+                        challengeOutlines.get(t).get(c), documents, run);
+                String cacheKey = responseCacheKey(guidelinesContext(run), promptParts);
+                JSONObject cached = parseChallengeResponse(cachedResponse(cacheKey, true));
+                if (cached != null) {
+                    results.put(key, cached);
+                    continue;
+                }
+                // Jobs may outlive the run's cached contents, so the guidelines are sent inline
+                requests.put(key, buildRequest(guidelinesContext(run), null, promptParts, run));
+                if (cacheKey != null)
+                    cacheKeys.put(key, cacheKey);
+            }
+        }
+        Log.i(TAG, String.format("Stage 2b (batch job): %d challenges, %d already done", requests.size()
+                + results.size(), results.size()));
+        if (!requests.isEmpty()) {
+            runBatchJobs(subjectTitle, requests, cacheKeys, results, listener, run);
+            for (int t = 0; t < topicOutlines.size(); t++) {
+                for (int c = 0; c < challengeOutlines.get(t).size(); c++) {
+                    String key = challengeKey(topicOutlines.get(t), challengeOutlines.get(t).get(c));
+                    if (requests.containsKey(key) && results.containsKey(key)) {
+                        journalChallenge(topicOutlines.get(t), challengeOutlines.get(t).get(c), results.get(key), run);
+                    }
+                }
+            }
+        }
+
+        // Anything the jobs did not deliver is generated interactively
+        List<CompletableFuture<Void>> fallbacks = new ArrayList<>();
+        for (int t = 0; t < topicOutlines.size(); t++) {
+            for (int c = 0; c < challengeOutlines.get(t).size(); c++) {
+                String key = challengeKey(topicOutlines.get(t), challengeOutlines.get(t).get(c));
+                if (results.containsKey(key))
+                    continue;
+                TopicOutline topic = topicOutlines.get(t);
+                ChallengeOutline outline = challengeOutlines.get(t).get(c);
+                fallbacks.add(scheduler.submit(() -> {
+                    JSONObject challenge = generateChallengeContent(topic, outline, documents, run);
+                    if (challenge != null)
+                        results.put(key, challenge);
+                    return null;
+                }, run.cancellation));
+            }
+        }
+        if (!fallbacks.isEmpty()) {
+            Log.i(TAG, "Stage 2b (batch job): generating " + fallbacks.size() + " challenges interactively");
+            if (listener != null)
+                listener.onProgress(90, "Generating " + fallbacks.size() + " remaining challenges...");
+            try {
+                CompletableFuture.allOf(fallbacks.toArray(new CompletableFuture[0])).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during Stage 2b");
+            } catch (ExecutionException e) {
+                throwIfEndpointFailure(e);
+                Log.e(TAG, "Challenge failed: " + unwrap(e).getMessage());
+            }
+        }
+
+        JSONArray generatedTopics = new JSONArray();
+        for (int t = 0; t < topicOutlines.size(); t++) {
+            List<JSONObject> challenges = new ArrayList<>();
+            for (int c = 0; c < challengeOutlines.get(t).size(); c++) {
+                JSONObject challenge = results.get(challengeKey(topicOutlines.get(t), challengeOutlines.get(t).get(c)));
+                if (challenge != null)
+                    challenges.add(challenge);
+            }
+            generatedTopics.put(buildTopicResult(topicOutlines.get(t), challenges));
+        }
+        return generatedTopics;
+    }
+
+    /**
+     * Submits the requests as batch jobs of at most BATCH_JOB_MAX_INLINE_CHARS each
+     * and polls until all are done or the wait limit is reached. Valid challenges
+     * are put into results and their responses into the response cache. Jobs that
+     * cannot be submitted or do not succeed leave their keys missing. Submitted
+     * jobs are journaled; a resumed run waits for the earlier run's jobs instead of
+     * submitting their requests again.
+     */
+    private void runBatchJobs(String subjectTitle, Map<String, JSONObject> requests, Map<String, String> cacheKeys,
+            Map<String, JSONObject> results, ProgressListener listener, GenerationRun run) throws IOException {
+        BatchJobClient client = batchJobClient != null ? batchJobClient
+                : new GeminiBatchJobClient(api, run.cancellation);
+
+        // Pending jobs with the request keys they answer
+        Map<String, List<String>> pendingJobs = new LinkedHashMap<>();
+        Map<String, JSONObject> unsubmitted = new LinkedHashMap<>(requests);
+        for (Map.Entry<String, List<String>> job : journaledBatchJobs(run).entrySet()) {
+            List<String> keys = new ArrayList<>(job.getValue());
+            keys.retainAll(requests.keySet());
+            if (keys.isEmpty())
+                continue; // Everything it answers is journaled already
+            pendingJobs.put(job.getKey(), keys);
+            unsubmitted.keySet().removeAll(keys);
+            Log.i(TAG, "Re-attached to batch job " + job.getKey() + " with " + keys.size() + " open requests");
+        }
+
+        List<Map<String, JSONObject>> chunks = new ArrayList<>();
+        Map<String, JSONObject> chunk = new LinkedHashMap<>();
+        long chunkChars = 0;
+        for (Map.Entry<String, JSONObject> entry : unsubmitted.entrySet()) {
+            long chars = entry.getValue().toString().length();
+            if (!chunk.isEmpty() && chunkChars + chars > BATCH_JOB_MAX_INLINE_CHARS) {
+                chunks.add(chunk);
+                chunk = new LinkedHashMap<>();
+                chunkChars = 0;
+            }
+            chunk.put(entry.getKey(), entry.getValue());
+            chunkChars += chars;
+        }
+        if (!chunk.isEmpty())
+            chunks.add(chunk);
+
+        for (int i = 0; i < chunks.size(); i++) {
+            String displayName = String.format(Locale.ROOT, "%s (%d/%d)", subjectTitle, i + 1, chunks.size());
+            try {
+                String job = client.submit(MODEL, displayName, chunks.get(i));
+                pendingJobs.put(job, new ArrayList<>(chunks.get(i).keySet()));
+                journalBatchJobs(pendingJobs, run);
+                Log.i(TAG, "Submitted batch job " + job + " with " + chunks.get(i).size() + " requests");
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Failed to submit batch job " + displayName + ": " + e.getMessage());
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + BATCH_JOB_MAX_WAIT_MS;
+        long startTime = System.currentTimeMillis();
+        while (!pendingJobs.isEmpty()) {
+            if (System.currentTimeMillis() >= deadline) {
+                Log.w(TAG, "Batch jobs did not finish in time, cancelling " + pendingJobs.size());
+                cancelBatchJobs(client, pendingJobs.keySet());
+                pendingJobs.clear();
+                journalBatchJobs(pendingJobs, run);
+                return;
+            }
+            try {
+                run.cancellation.sleep(BATCH_JOB_POLL_INTERVAL_MS);
+            } catch (InterruptedIOException e) {
+                cancelBatchJobs(client, pendingJobs.keySet());
+                pendingJobs.clear();
+                journalBatchJobs(pendingJobs, run);
+                throw e;
+            }
+
+            boolean finished = false;
+            for (String job : new ArrayList<>(pendingJobs.keySet())) {
+                BatchJobClient.JobStatus status;
+                try {
+                    status = client.poll(job);
+                } catch (IOException | JSONException e) {
+                    Log.w(TAG, "Polling batch job " + job + " failed, trying again: " + e.getMessage());
+                    continue;
+                }
+                if (!status.state.isDone())
+                    continue;
+
+                List<String> keys = pendingJobs.remove(job);
+                finished = true;
+                Log.i(TAG, String.format("Batch job %s %s with %d responses", job, status.state,
+                        status.responses.size()));
+                for (Map.Entry<String, JSONObject> entry : status.responses.entrySet()) {
+                    if (keys.contains(entry.getKey()))
+                        collectBatchResponse(entry.getKey(), entry.getValue(), cacheKeys, results);
+                }
+            }
+            if (finished)
+                journalBatchJobs(pendingJobs, run);
+
+            if (listener != null) {
+                long minutes = (System.currentTimeMillis() - startTime) / 60_000;
+                listener.onProgress(60, String.format(Locale.ROOT,
+                        "Waiting for batch generation (%d jobs pending, %d min)...", pendingJobs.size(), minutes));
+            }
+        }
+    }
+
+    /** Asks the server to stop the jobs, off this thread so a cancelled run ends right away. */
+    private static void cancelBatchJobs(BatchJobClient client, Collection<String> jobs) {
+        List<String> pending = new ArrayList<>(jobs);
+        GenerationScheduler.getInstance().submit(() -> {
+            for (String job : pending) {
+                try {
+                    client.cancel(job);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to cancel batch job " + job + ": " + e.getMessage());
+                }
+            }
+            return null;
+        });
+    }
+
+    private void collectBatchResponse(String key, JSONObject response, Map<String, String> cacheKeys,
+            Map<String, JSONObject> results) {
+        try {
+            String text = api.extractResponseText(response, null);
+            JSONObject challenge = parseChallengeResponse(text);
+            if (challenge == null) {
+                Log.w(TAG, "Batch response " + key + " does not meet guidelines");
+                return;
+            }
+            results.put(key, challenge);
+            String cacheKey = cacheKeys.get(key);
+            if (cacheKey != null) {
+                responseCache.put(cacheKey, text);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Batch response " + key + " unusable: " + e.getMessage());
+        }
+    }
+
+    /** Validates and expands a Stage 2b response text; null if missing or invalid. */
+    private JSONObject parseChallengeResponse(String jsonResponse) {
+        if (jsonResponse == null)
+            return null;
+        try {
+            JSONObject toonData = ModelJsonReader.readObject(jsonResponse);
+            return validateToonChallenge(toonData) ? expandChallenge(toonData) : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for all topics and collects the generated ones in outline order. A
+     * topic that failed because the endpoint is unavailable fails the run, so the
+     * journal keeps the finished work for a resume instead of a partial subject
+     * being saved.
+     */
+    private JSONArray gatherTopicResults(List<CompletableFuture<JSONObject>> topicFutures) throws IOException {
+        JSONArray generatedTopics = new JSONArray();
+        try {
+            for (Future<JSONObject> future : topicFutures) {
+                JSONObject topicContent = future.get();
+                if (topicContent != null) {
+                    generatedTopics.put(topicContent);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while gathering topic results");
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Topic generation failed: " + cause.getMessage(), cause);
+        } finally {
+            for (Future<JSONObject> future : topicFutures) {
+                future.cancel(true);
+            }
+        }
+        return generatedTopics;
+    }
+
+    /**
+     * For exceptionally(): logs the failure and yields null so the item is left
+     * out, unless the endpoint is unavailable; that failure is passed on to fail
+     * the run.
+     */
+    private static <T> T skipUnlessEndpointFailure(Throwable e, String message) {
+        Throwable cause = unwrap(e);
+        if (RetryPolicy.isEndpointFailure(cause))
+            throw new CompletionException(cause);
+        Log.e(TAG, message, cause);
+        return null;
+    }
+
+    /** Rethrows the cause of a failed task if the endpoint is unavailable. */
+    private static void throwIfEndpointFailure(ExecutionException e) throws IOException {
+        Throwable cause = unwrap(e);
+        if (RetryPolicy.isEndpointFailure(cause))
+            throw (IOException) cause;
+    }
+
+    // --- Run Journal ---
+
+    private static final String JOURNAL_STAGE_0 = "stage0";
+    private static final String JOURNAL_STAGE_1 = "stage1";
+    private static final String JOURNAL_BATCH_JOBS = "batch_jobs";
+
+    /** Identifies the run's input, so a journal is only resumed for the same documents and subject. */
+    private static String fingerprintRun(List<DocumentContent> documents, String subjectTitle,
+            List<String> existingTopics) {
+        MessageDigest digest = fileutil.newSha256();
+        digest.update(("subject:" + subjectTitle + "\n").getBytes(StandardCharsets.UTF_8));
+        if (existingTopics != null) {
+            for (String title : existingTopics) {
+                digest.update(("existing:" + title + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        for (DocumentContent doc : documents) {
+            digest.update(("file:" + doc.fileName + "\n").getBytes(StandardCharsets.UTF_8));
+            if (doc.isImage) {
+                digest.update(doc.imageData.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            for (PageContent page : doc.pages) {
+                digest.update(("page:" + page.pageNumber + "\n").getBytes(StandardCharsets.UTF_8));
+                digest.update(page.text.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return fileutil.toHex(digest.digest());
+    }
+
+    /** Batch jobs the run submitted and has not collected yet, by name, with their request keys. */
+    private static Map<String, List<String>> journaledBatchJobs(GenerationRun run) {
+        Map<String, List<String>> jobs = new LinkedHashMap<>();
+        String json = run.journalGet(JOURNAL_BATCH_JOBS);
+        if (json == null)
+            return jobs;
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject job = array.getJSONObject(i);
+                JSONArray keys = job.getJSONArray("keys");
+                List<String> keyList = new ArrayList<>();
+                for (int k = 0; k < keys.length(); k++)
+                    keyList.add(keys.getString(k));
+                jobs.put(job.getString("name"), keyList);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring unreadable journaled batch jobs: " + e.getMessage());
+            jobs.clear();
+        }
+        return jobs;
+    }
 
-        int baseProgress = 40;
-        int totalProgressRange = 55; // From 40 to 95
-        AtomicInteger completedTopics = new AtomicInteger(0);
-        int totalTopics = topicOutlines.size();
+    private static void journalBatchJobs(Map<String, List<String>> jobs, GenerationRun run) {
+        if (run.journal == null)
+            return;
+        try {
+            JSONArray array = new JSONArray();
+            for (Map.Entry<String, List<String>> job : jobs.entrySet())
+                array.put(new JSONObject().put("name", job.getKey()).put("keys", new JSONArray(job.getValue())));
+            run.journalPut(JOURNAL_BATCH_JOBS, array.toString());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to journal batch jobs: " + e.getMessage());
+        }
+    }
 
-        for (int i = 0; i < totalTopics; i++) {
-            TopicOutline outline = topicOutlines.get(i);
-            int topicIndex = i;
-            topicFutures.add(topicExecutor.submit(() -> {
-                try {
-                    int topicBaseProgress = baseProgress + (topicIndex * totalProgressRange / totalTopics);
-                    int topicProgressRange = totalProgressRange / totalTopics;
+    private List<TopicOutline> journaledTopics(GenerationRun run) throws JSONException {
+        String json = run.journalGet(JOURNAL_STAGE_1);
+        if (json == null)
+            return null;
+        Log.i(TAG, "Stage 1: restored from run journal");
+        return parseTopicOutlines(json);
+    }
 
-                    return generateTopicContent(outline, documents, listener, topicBaseProgress,
-                            topicProgressRange);
-                } catch (Exception e) {
-                    Log.e(TAG, "Topic generation failed for: " + outline.title, e);
-                    return null;
-                } finally {
-                    completedTopics.incrementAndGet();
-                }
-            }));
+    private void journalTopics(List<TopicOutline> topics, GenerationRun run) throws JSONException {
+        if (run.journal == null)
+            return;
+        JSONArray array = new JSONArray();
+        for (TopicOutline topic : topics) {
+            JSONArray refs = new JSONArray();
+            for (SectionRef ref : topic.sectionRefs) {
+                refs.put(new JSONObject().put("f", ref.fileName).put("sp", ref.startPage).put("ep", ref.endPage));
+            }
+            array.put(new JSONObject().put("t", topic.title).put("refs", refs));
         }
+        run.journalPut(JOURNAL_STAGE_1, array.toString());
+    }
 
-        JSONArray generatedTopics = new JSONArray();
+    private List<ChallengeOutline> journaledChallengeOutlines(TopicOutline topic, GenerationRun run)
+            throws JSONException {
+        String json = run.journalGet(RunJournal.key("outlines", topic.title));
+        return json != null ? parseChallengeOutlines(json) : null;
+    }
+
+    private void journalChallengeOutlines(TopicOutline topic, List<ChallengeOutline> outlines, GenerationRun run) {
+        if (run.journal == null)
+            return;
         try {
-            for (Future<JSONObject> future : topicFutures) {
-                JSONObject topicContent = future.get();
-                if (topicContent != null) {
-                    generatedTopics.put(topicContent);
-                }
+            JSONArray array = new JSONArray();
+            for (ChallengeOutline outline : outlines) {
+                array.put(new JSONObject().put("t", outline.title).put("d", outline.description));
             }
-        } catch (InterruptedException | ExecutionException e) {
-            Log.e(TAG, "Error gathering topic results: " + e.getMessage());
-        } finally {
-            topicExecutor.shutdown();
+            run.journalPut(RunJournal.key("outlines", topic.title), array.toString());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to journal outlines of " + topic.title + ": " + e.getMessage());
         }
+    }
 
-        if (listener != null)
-            listener.onProgress(98, "Finalizing structure...");
+    /**
+     * Journal key of a challenge. The outline's position keeps two challenges
+     * with the same title in one topic apart.
+     */
+    private static String challengeKey(TopicOutline topic, ChallengeOutline outline) {
+        return RunJournal.key("challenge", topic.title + "\n" + outline.index + "\n" + outline.title);
+    }
 
-        // 5. Wrap in final structure
-        JSONObject finalResult = new JSONObject();
-        finalResult.put("topics", generatedTopics);
+    private JSONObject journaledChallenge(TopicOutline topic, ChallengeOutline outline, GenerationRun run) {
+        String json = run.journalGet(challengeKey(topic, outline));
+        if (json == null)
+            return null;
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring unreadable journaled challenge " + outline.title);
+            return null;
+        }
+    }
 
-        Log.i(TAG, String.format("Processing complete. Total tokens used: %d", totalTokensProcessed.get()));
-        if (listener != null)
-            listener.onProgress(100, "Generation complete");
-        return finalResult.toString();
+    private void journalChallenge(TopicOutline topic, ChallengeOutline outline, JSONObject challenge,
+            GenerationRun run) {
+        run.journalPut(challengeKey(topic, outline), challenge.toString());
+    }
+
+    private static JSONArray sectionsToJson(List<SemanticSection> sections) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (SemanticSection section : sections) {
+            array.put(new JSONObject().put("s", section.title).put("f", section.fileName)
+                    .put("sp", section.startPage).put("ep", section.endPage));
+        }
+        return array;
     }
 
     // --- Data Structures ---
 
     /** Represents a full document with per-page text extraction */
-    private static class DocumentContent {
+    static class DocumentContent {
         String fileName;
         List<PageContent> pages; // Individual pages
         boolean isImage;
+        String imageMimeType; // For binary images
         JSONObject imageData; // For binary images
 
         DocumentContent(String fileName) {
@@ -195,8 +1194,20 @@ public class GeminiContentProcessor {
         }
     }
 
+    /** Estimated prompt tokens of an image document, from its prepared size if known. */
+    static int imageTokens(DocumentContent doc) {
+        JSONObject ref = doc.imageData != null ? doc.imageData.optJSONObject(RequestBodyWriter.INLINE_FILE) : null;
+        return ref != null ? ref.optInt("tokens", IMAGE_TOKEN_ESTIMATE) : IMAGE_TOKEN_ESTIMATE;
+    }
+
+    /** Identifies an image by content, so the same picture uploaded twice is sent once. */
+    static String imageKey(DocumentContent doc) {
+        JSONObject ref = doc.imageData != null ? doc.imageData.optJSONObject(RequestBodyWriter.INLINE_FILE) : null;
+        return ref != null ? ref.optString("sha256", doc.fileName) : doc.fileName;
+    }
+
     /** Represents a single page of text content */
-    private static class PageContent {
+    static class PageContent {
         int pageNumber;
         String text;
 
@@ -207,17 +1218,23 @@ public class GeminiContentProcessor {
     }
 
     /** Represents a semantic section identified by the LLM */
-    private static class SemanticSection {
+    static class SemanticSection {
         String title;
         String fileName;
         int startPage;
         int endPage;
+        boolean continued; // Continues a section from the previous Stage 0 window
 
         SemanticSection(String title, String fileName, int startPage, int endPage) {
+            this(title, fileName, startPage, endPage, false);
+        }
+
+        SemanticSection(String title, String fileName, int startPage, int endPage, boolean continued) {
             this.title = title;
             this.fileName = fileName;
             this.startPage = startPage;
             this.endPage = endPage;
+            this.continued = continued;
         }
     }
 
@@ -249,29 +1266,204 @@ public class GeminiContentProcessor {
     private static class ChallengeOutline {
         String title;
         String description;
+        int index; // Position in its topic's outline list
 
-        ChallengeOutline(String title, String description) {
+        ChallengeOutline(String title, String description, int index) {
             this.title = title;
             this.description = description;
+            this.index = index;
+        }
+    }
+
+    // --- Fused plan: whole subject in one request ---
+
+    /**
+     * Generates topics, challenges and containers in a single request. Returns
+     * null if no valid result came back within the retries, so the caller can
+     * fall back to the staged pipeline. Throws if the endpoint is unavailable.
+     */
+    private JSONArray generateFused(List<DocumentContent> documents, String subjectTitle, ProgressListener listener,
+            GenerationRun run) throws IOException, JSONException {
+        if (listener != null)
+            listener.onProgress(15, "Generating content...");
+
+        List<JSONObject> promptParts = new ArrayList<>(buildCorpusParts(documents));
+        promptParts.add(new JSONObject().put("text", buildFusedPrompt(subjectTitle, run)));
+
+        try {
+            return run.retryPolicy.execute("Fused plan", attempt -> {
+                String jsonResponse = callGemini(null, promptParts, attempt == 0, run);
+                JSONArray topics = parseFusedTopics(jsonResponse);
+                if (topics.length() == 0) {
+                    throw new GeminiApiException(RetryPolicy.FailureClass.VALIDATION_FAILED,
+                            "Fused response contains no valid challenges");
+                }
+                return topics;
+            });
+        } catch (IOException | JSONException e) {
+            if (RetryPolicy.isEndpointFailure(e))
+                throw e;
+            Log.e(TAG, "Fused plan failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String buildFusedPrompt(String subjectTitle, GenerationRun run) {
+        return String.format("""
+                Create a short course for the subject "%s" from the documents above.
+                Output MUST be in English, regardless of the document's language.
+
+                Return a JSON object:
+                {
+                  "ts": [
+                    {
+                      "t": "Topic Title",
+                      "ch": [ <challenge>, ... ]
+                    }
+                  ]
+                }
+
+                Rules:
+                1. Use 1-3 topics with 1-2 challenges each, covering the whole material.
+                2. Every <challenge> follows the TOON challenge format below.
+                3. Use roughly 6 containers per challenge so the whole answer stays short.
+                """, subjectTitle) + buildExistingTopicsNote(run) + "\n" + CHALLENGE_GUIDELINES;
+    }
+
+    /**
+     * Expands the fused response into the final topic structure. Challenges that
+     * fail validation are dropped, topics left without challenges too.
+     */
+    private JSONArray parseFusedTopics(String jsonResponse) throws JSONException {
+        JSONObject root = ModelJsonReader.readObject(jsonResponse);
+        JSONArray topicsArray = root.has("ts") ? root.getJSONArray("ts") : root.optJSONArray("topics");
+        JSONArray topics = new JSONArray();
+        if (topicsArray == null)
+            return topics;
+
+        for (int i = 0; i < topicsArray.length(); i++) {
+            JSONObject topic = topicsArray.getJSONObject(i);
+            JSONArray challengesArray = topic.optJSONArray("ch");
+            List<JSONObject> challenges = new ArrayList<>();
+            for (int j = 0; challengesArray != null && j < challengesArray.length(); j++) {
+                JSONObject toonChallenge = challengesArray.optJSONObject(j);
+                if (validateToonChallenge(toonChallenge)) {
+                    challenges.add(expandChallenge(toonChallenge));
+                } else {
+                    Log.w(TAG, "Fused plan: dropping invalid challenge " + j + " of topic " + i);
+                }
+            }
+            if (!challenges.isEmpty()) {
+                String title = topic.optString("t", topic.optString("title", "Topic " + (i + 1)));
+                topics.put(buildTopicResult(new TopicOutline(title, new ArrayList<>()), challenges));
+            }
         }
+        return topics;
     }
 
     // --- Stage 0: Semantic Document Analysis ---
 
-    private List<SemanticSection> analyzeDocumentStructure(List<DocumentContent> documents, String subjectTitle)
-            throws IOException, JSONException {
+    private List<SemanticSection> analyzeDocumentStructure(List<DocumentContent> documents, String subjectTitle,
+            GenerationRun run) throws IOException, JSONException {
+        StructureMapReduce mapReduce = new StructureMapReduce(structureWindowTokens, STRUCTURE_WINDOW_PAGES);
+        List<List<DocumentContent>> windows = mapReduce.split(documents);
+        if (windows.size() > 1) {
+            return analyzeDocumentStructureWindowed(windows, subjectTitle, run);
+        }
+
+        // The document content comes first, from the shared corpus context
         List<JSONObject> promptParts = new ArrayList<>();
+        promptParts.add(new JSONObject().put("text", buildDocumentAnalysisPrompt(subjectTitle)));
+
+        return run.retryPolicy.execute("Stage 0", attempt -> {
+            String jsonResponse = callGemini(corpusContext(documents, run), promptParts, attempt == 0, run);
+            return parseSemanticSections(jsonResponse, documents);
+        });
+    }
+
+    /**
+     * Stage 0 for corpora larger than one window: every window is analysed in
+     * parallel on the shared scheduler, then the section lists are stitched at the
+     * window boundaries. A window that keeps failing is covered by one section per
+     * file instead of failing the run.
+     */
+    private List<SemanticSection> analyzeDocumentStructureWindowed(List<List<DocumentContent>> windows,
+            String subjectTitle, GenerationRun run) throws IOException, JSONException {
+        Log.i(TAG, "Stage 0: corpus split into " + windows.size() + " windows");
+        GenerationScheduler scheduler = GenerationScheduler.getInstance();
+        List<CompletableFuture<List<SemanticSection>>> windowFutures = new ArrayList<>();
+
+        for (int i = 0; i < windows.size(); i++) {
+            List<DocumentContent> window = windows.get(i);
+            String label = String.format(Locale.ROOT, "Stage 0 window %d/%d", i + 1, windows.size());
+            List<JSONObject> promptParts = new ArrayList<>(buildCorpusParts(window));
+            promptParts.add(new JSONObject().put("text", buildDocumentAnalysisPrompt(subjectTitle)
+                    + buildWindowNote(i, windows.size())));
+
+            windowFutures.add(scheduler.submit(() -> {
+                try {
+                    return run.retryPolicy.execute(label, attempt -> {
+                        String jsonResponse = callGemini(null, promptParts, attempt == 0, run);
+                        return parseSemanticSections(jsonResponse, window);
+                    });
+                } catch (IOException | JSONException e) {
+                    if (RetryPolicy.isEndpointFailure(e))
+                        throw e;
+                    Log.w(TAG, label + " failed, using one section per file: " + e.getMessage());
+                    return parseSemanticSections("[]", window);
+                }
+            }, run.cancellation));
+        }
+
+        List<List<SemanticSection>> windowSections = new ArrayList<>();
+        try {
+            for (int i = 0; i < windowFutures.size(); i++) {
+                windowSections.add(StructureMapReduce.clampToWindow(windowFutures.get(i).get(), windows.get(i)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during Stage 0");
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof JSONException)
+                throw (JSONException) cause;
+            throw new IOException("Stage 0 failed: " + cause.getMessage(), cause);
+        } finally {
+            for (Future<List<SemanticSection>> future : windowFutures) {
+                future.cancel(true);
+            }
+        }
+
+        List<SemanticSection> sections = StructureMapReduce.stitch(windowSections);
+        Log.i(TAG, String.format("Stage 0: stitched %d window sections into %d", countSections(windowSections),
+                sections.size()));
+        return sections;
+    }
+
+    private static int countSections(List<List<SemanticSection>> windowSections) {
+        int count = 0;
+        for (List<SemanticSection> sections : windowSections)
+            count += sections.size();
+        return count;
+    }
+
+    private String buildWindowNote(int windowIndex, int windowCount) {
+        return String.format(Locale.ROOT, """
 
-        // Build the analysis prompt
-        StringBuilder promptBuilder = new StringBuilder();
-        promptBuilder.append(buildDocumentAnalysisPrompt(subjectTitle));
-        promptBuilder.append("\n\nDOCUMENT CONTENT:\n");
-        promptParts.add(new JSONObject().put("text", promptBuilder.toString()));
+                The pages above are part %d of %d of a larger corpus; only analyze these pages.
+                If the FIRST section you list continues a section that started before these pages,
+                add "c": true to it.
+                """, windowIndex + 1, windowCount);
+    }
 
-        // Add all document content with clear page markers
+    /** Full text of every document with clear file and page markers, plus each distinct image once. */
+    private List<JSONObject> buildCorpusParts(List<DocumentContent> documents) throws JSONException {
+        List<JSONObject> parts = new ArrayList<>();
+        Set<String> images = new HashSet<>();
         for (DocumentContent doc : documents) {
             if (doc.isImage) {
-                promptParts.add(doc.imageData);
+                if (images.add(imageKey(doc)))
+                    parts.add(doc.imageData);
             } else {
                 StringBuilder docText = new StringBuilder();
                 docText.append("\n\n========== FILE: ").append(doc.fileName).append(" ==========\n");
@@ -279,30 +1471,10 @@ public class GeminiContentProcessor {
                     docText.append("\n--- PAGE ").append(page.pageNumber).append(" ---\n");
                     docText.append(page.text);
                 }
-                promptParts.add(new JSONObject().put("text", docText.toString()));
-            }
-        }
-
-        int attempts = 0;
-        while (true) {
-            try {
-                String jsonResponse = callGemini(promptParts);
-                return parseSemanticSections(jsonResponse, documents);
-            } catch (JSONException | IOException e) {
-                attempts++;
-                if (attempts > MAX_STRUCTURE_RETRIES) {
-                    throw e;
-                }
-                Log.w(TAG, "Stage 0: Malformed structure (" + e.getMessage() + "), retrying... (Attempt "
-                        + (attempts + 1) + "/" + (MAX_STRUCTURE_RETRIES + 1) + ")");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted during retry wait", ie);
-                }
+                parts.add(new JSONObject().put("text", docText.toString()));
             }
         }
+        return parts;
     }
 
     private String buildDocumentAnalysisPrompt(String subjectTitle) {
@@ -347,10 +1519,10 @@ public class GeminiContentProcessor {
         List<SemanticSection> sections = new ArrayList<>();
 
         JSONArray array;
-        if (jsonResponse.trim().startsWith("[")) {
-            array = new JSONArray(jsonResponse);
+        if (jsonResponse.startsWith("[")) {
+            array = ModelJsonReader.readArray(jsonResponse);
         } else {
-            JSONObject obj = new JSONObject(jsonResponse);
+            JSONObject obj = ModelJsonReader.readObject(jsonResponse);
             if (obj.has("sections"))
                 array = obj.getJSONArray("sections");
             else if (obj.has("s")) {
@@ -375,21 +1547,25 @@ public class GeminiContentProcessor {
             String fileName = item.optString("f", item.optString("file", ""));
             int startPage = item.optInt("sp", item.optInt("startPage", 1));
             int endPage = item.optInt("ep", item.optInt("endPage", startPage));
+            boolean continued = item.optBoolean("c", false);
 
             // If no filename specified, use first document
             if (fileName.isEmpty() && !documents.isEmpty()) {
                 fileName = documents.get(0).fileName;
             }
 
-            sections.add(new SemanticSection(title, fileName, startPage, endPage));
+            sections.add(new SemanticSection(title, fileName, startPage, endPage, continued));
         }
 
         // Fallback: if no sections found, create one section per document
         if (sections.isEmpty()) {
             for (DocumentContent doc : documents) {
                 if (!doc.isImage && !doc.pages.isEmpty()) {
+                    // Documents of a Stage 0 window may start mid-file
+                    int firstPage = doc.pages.get(0).pageNumber;
                     int lastPage = doc.pages.get(doc.pages.size() - 1).pageNumber;
-                    sections.add(new SemanticSection("Full Document: " + doc.fileName, doc.fileName, 1, lastPage));
+                    sections.add(new SemanticSection("Full Document: " + doc.fileName, doc.fileName, firstPage,
+                            lastPage));
                 }
             }
         }
@@ -399,53 +1575,59 @@ public class GeminiContentProcessor {
 
     // --- Stage 1: Topic Extraction ---
 
+    /** Receives topic outlines as Stage 1 produces them. */
+    private interface TopicConsumer {
+        void accept(TopicOutline outline) throws IOException, JSONException;
+    }
+
     private List<TopicOutline> extractTopics(List<DocumentContent> documents, List<SemanticSection> sections,
-            String subjectTitle) throws IOException, JSONException {
-        List<JSONObject> promptParts = new ArrayList<>();
+            String subjectTitle, GenerationRun run) throws IOException, JSONException {
+        List<JSONObject> promptParts = buildTopicExtractionParts(sections, subjectTitle, run);
 
-        // Build prompt with section information
-        StringBuilder promptBuilder = new StringBuilder();
-        promptBuilder.append(buildTopicExtractionPrompt(subjectTitle, sections));
-        promptParts.add(new JSONObject().put("text", promptBuilder.toString()));
+        return run.retryPolicy.execute("Stage 1", attempt -> {
+            String jsonResponse = callGemini(corpusContext(documents, run), promptParts, attempt == 0, run);
+            return parseTopicOutlines(jsonResponse);
+        });
+    }
 
-        // Add document content for context
-        for (DocumentContent doc : documents) {
-            if (doc.isImage) {
-                promptParts.add(doc.imageData);
-            } else {
-                StringBuilder docText = new StringBuilder();
-                docText.append("\n\n========== FILE: ").append(doc.fileName).append(" ==========\n");
-                for (PageContent page : doc.pages) {
-                    docText.append("\n--- PAGE ").append(page.pageNumber).append(" ---\n");
-                    docText.append(page.text);
-                }
-                promptParts.add(new JSONObject().put("text", docText.toString()));
-            }
+    /** Stage 1, or its journaled result when resuming. */
+    private List<TopicOutline> extractTopicsJournaled(List<DocumentContent> documents, List<SemanticSection> sections,
+            String subjectTitle, GenerationRun run) throws IOException, JSONException {
+        List<TopicOutline> topicOutlines = journaledTopics(run);
+        if (topicOutlines == null) {
+            topicOutlines = extractTopics(documents, sections, subjectTitle, run);
+            journalTopics(topicOutlines, run);
         }
+        return topicOutlines;
+    }
 
-        int attempts = 0;
-        while (true) {
-            try {
-                String jsonResponse = callGemini(promptParts);
-                return parseTopicOutlines(jsonResponse);
-            } catch (JSONException | IOException e) {
-                attempts++;
-                if (attempts > MAX_STRUCTURE_RETRIES) {
-                    throw e;
-                }
-                Log.w(TAG, "Stage 1: Malformed structure (" + e.getMessage() + "), retrying... (Attempt "
-                        + (attempts + 1) + "/" + (MAX_STRUCTURE_RETRIES + 1) + ")");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted during retry wait", ie);
-                }
-            }
-        }
+    /**
+     * Stage 1 over the streaming endpoint. Each topic of the top-level array is
+     * passed to the consumer as soon as it is complete; the full list is returned
+     * at the end.
+     */
+    private List<TopicOutline> extractTopicsStreaming(List<DocumentContent> documents, List<SemanticSection> sections,
+            String subjectTitle, TopicConsumer consumer, GenerationRun run) throws IOException, JSONException {
+        List<JSONObject> promptParts = buildTopicExtractionParts(sections, subjectTitle, run);
+        SharedContext corpus = corpusContext(documents, run);
+
+        return run.retryPolicy.execute("Stage 1", attempt -> {
+            IncrementalJsonParser parser = new IncrementalJsonParser(null,
+                    (index, item) -> consumer.accept(parseTopicOutline(item, index)));
+            String jsonResponse = callGeminiStreaming(corpus, promptParts, attempt == 0, parser, run);
+            return parseTopicOutlines(jsonResponse);
+        });
+    }
+
+    private List<JSONObject> buildTopicExtractionParts(List<SemanticSection> sections, String subjectTitle,
+            GenerationRun run) throws JSONException {
+        // The document content comes first, from the shared corpus context
+        List<JSONObject> promptParts = new ArrayList<>();
+        promptParts.add(new JSONObject().put("text", buildTopicExtractionPrompt(subjectTitle, sections, run)));
+        return promptParts;
     }
 
-    private String buildTopicExtractionPrompt(String subjectTitle, List<SemanticSection> sections) {
+    private String buildTopicExtractionPrompt(String subjectTitle, List<SemanticSection> sections, GenerationRun run) {
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("""
                 Based on the provided documents for subject: "%s", identify the main LEARNING TOPICS.
@@ -489,18 +1671,37 @@ public class GeminiContentProcessor {
                 3. Each topic should be suitable for 1-3 challenges (lessons).
                 4. Output valid JSON array only.
                 """);
+        sb.append(buildExistingTopicsNote(run));
 
         return sb.toString();
     }
 
+    /**
+     * For an incremental run, lists the topics the subject already has so the
+     * new material is not turned into duplicates of them. Empty otherwise.
+     */
+    private String buildExistingTopicsNote(GenerationRun run) {
+        List<String> existing = run.existingTopicTitles;
+        if (existing == null || existing.isEmpty())
+            return "";
+
+        StringBuilder sb = new StringBuilder(
+                "\nThe subject already has these topics from earlier documents. Do not create topics that repeat them;"
+                        + " only cover what the documents above add:\n");
+        for (String title : existing) {
+            sb.append("- ").append(title).append('\n');
+        }
+        return sb.toString();
+    }
+
     private List<TopicOutline> parseTopicOutlines(String jsonResponse) throws JSONException {
         List<TopicOutline> outlines = new ArrayList<>();
 
         JSONArray array;
-        if (jsonResponse.trim().startsWith("[")) {
-            array = new JSONArray(jsonResponse);
+        if (jsonResponse.startsWith("[")) {
+            array = ModelJsonReader.readArray(jsonResponse);
         } else {
-            JSONObject obj = new JSONObject(jsonResponse);
+            JSONObject obj = ModelJsonReader.readObject(jsonResponse);
             if (obj.has("topics"))
                 array = obj.getJSONArray("topics");
             else if (obj.has("ts"))
@@ -510,216 +1711,544 @@ public class GeminiContentProcessor {
         }
 
         for (int i = 0; i < array.length(); i++) {
-            JSONObject item = array.getJSONObject(i);
-            String title = item.optString("t", item.optString("title", "Topic " + (i + 1)));
-            List<SectionRef> refs = new ArrayList<>();
-
-            if (item.has("refs")) {
-                JSONArray refsArray = item.getJSONArray("refs");
-                for (int j = 0; j < refsArray.length(); j++) {
-                    JSONObject refObj = refsArray.getJSONObject(j);
-                    String file = refObj.optString("f", refObj.optString("file", ""));
-                    int sp = refObj.optInt("sp", refObj.optInt("startPage", 1));
-                    int ep = refObj.optInt("ep", refObj.optInt("endPage", sp));
-                    refs.add(new SectionRef(file, sp, ep));
-                }
-            }
-            outlines.add(new TopicOutline(title, refs));
+            outlines.add(parseTopicOutline(array.getJSONObject(i), i));
         }
         return outlines;
     }
 
+    private TopicOutline parseTopicOutline(JSONObject item, int index) throws JSONException {
+        String title = item.optString("t", item.optString("title", "Topic " + (index + 1)));
+        List<SectionRef> refs = new ArrayList<>();
+
+        if (item.has("refs")) {
+            JSONArray refsArray = item.getJSONArray("refs");
+            for (int j = 0; j < refsArray.length(); j++) {
+                JSONObject refObj = refsArray.getJSONObject(j);
+                String file = refObj.optString("f", refObj.optString("file", ""));
+                int sp = refObj.optInt("sp", refObj.optInt("startPage", 1));
+                int ep = refObj.optInt("ep", refObj.optInt("endPage", sp));
+                refs.add(new SectionRef(file, sp, ep));
+            }
+        }
+        return new TopicOutline(title, refs);
+    }
+
     // --- Stage 2: Content Generation ---
 
-    private JSONObject generateTopicContent(TopicOutline topic, List<DocumentContent> documents,
-            ProgressListener listener, int baseProgress, int progressRange)
-            throws IOException, JSONException {
-        // Stage 2a: Extract Challenge Outlines for the topic
-        if (listener != null) {
-            listener.onProgress(baseProgress, "Generating topic: " + topic.title + " (Extracting structure...)");
-        }
+    /** Schedules Stage 2a for a single topic. */
+    private CompletableFuture<List<ChallengeOutline>> scheduleChallengeOutlines(TopicOutline topic,
+            List<DocumentContent> documents, GenerationScheduler scheduler, ProgressListener listener,
+            int baseProgress, GenerationRun run) {
+        return scheduler.submit(() -> {
+            if (listener != null) {
+                listener.onProgress(baseProgress, "Generating topic: " + topic.title + " (Extracting structure...)");
+            }
+
+            Log.i(TAG, "Stage 2a: Extracting challenge outlines for topic: " + topic.title);
+            List<ChallengeOutline> challengeOutlines = extractChallengeOutlines(topic, documents, run);
+            Log.i(TAG, "Found " + challengeOutlines.size() + " challenges for topic: " + topic.title);
+            return challengeOutlines;
+        }, run.cancellation);
+    }
+
+    /**
+     * Schedules Stage 2b for the topic once its challenge outlines are known: one
+     * task per challenge, or per batch of challenges when batching is enabled.
+     * Nothing blocks a scheduler thread while waiting on other tasks, so a bounded
+     * pool cannot deadlock.
+     */
+    private CompletableFuture<JSONObject> generateTopicContent(TopicOutline topic,
+            CompletableFuture<List<ChallengeOutline>> challengeOutlinesFuture, List<DocumentContent> documents,
+            GenerationScheduler scheduler, ProgressListener listener, int baseProgress, int progressRange,
+            GenerationRun run) {
+        return challengeOutlinesFuture.thenCompose(challengeOutlines -> {
+            if (challengeOutlines.isEmpty()) {
+                return CompletableFuture.completedFuture(buildTopicResult(topic, new ArrayList<>()));
+            }
+
+            // Stage 2b: Generate Content for each Challenge (Parallelized)
+            Log.i(TAG, "Stage 2b: Generating individual challenge content for topic: " + topic.title);
+            List<CompletableFuture<JSONObject>> challengeFutures = new ArrayList<>();
+
+            AtomicInteger completedChallenges = new AtomicInteger(0);
+            int totalChallenges = challengeOutlines.size();
+
+            for (CompletableFuture<JSONObject> future : scheduleChallenges(topic, challengeOutlines, documents,
+                    scheduler, run)) {
+                challengeFutures.add(future.thenApply(result -> {
+                    int completed = completedChallenges.incrementAndGet();
+
+                    if (listener != null) {
+                        // Split the topic's progress range among its challenges
+                        int progress = baseProgress + (completed * progressRange / totalChallenges);
+                        listener.onProgress(progress,
+                                String.format("Topic '%s': Generated %d/%d challenges", topic.title, completed,
+                                        totalChallenges));
+                    }
+                    return result;
+                }).exceptionally(e -> skipUnlessEndpointFailure(e, "Challenge failed for: " + topic.title)));
+            }
 
-        Log.i(TAG, "Stage 2a: Extracting challenge outlines for topic: " + topic.title);
-        List<ChallengeOutline> challengeOutlines = extractChallengeOutlines(topic, documents);
-        Log.i(TAG, "Found " + challengeOutlines.size() + " challenges for topic: " + topic.title);
+            return CompletableFuture.allOf(challengeFutures.toArray(new CompletableFuture[0]))
+                    .thenApply(v -> {
+                        List<JSONObject> generatedChallenges = new ArrayList<>();
+                        for (CompletableFuture<JSONObject> future : challengeFutures) {
+                            JSONObject challengeContent = future.join();
+                            if (challengeContent != null) {
+                                generatedChallenges.add(challengeContent);
+                            }
+                        }
+                        return buildTopicResult(topic, generatedChallenges);
+                    });
+        });
+    }
 
-        if (challengeOutlines.isEmpty()) {
-            return new JSONObject().put("title", topic.title).put("challenges", new JSONArray());
+    /**
+     * Schedules Stage 2b for the challenges of a topic, in outline order. With
+     * batching, several challenges share one request; a challenge that is missing
+     * or invalid in the batch answer, or whose batch failed, is generated on its own.
+     */
+    private List<CompletableFuture<JSONObject>> scheduleChallenges(TopicOutline topic,
+            List<ChallengeOutline> challengeOutlines, List<DocumentContent> documents, GenerationScheduler scheduler,
+            GenerationRun run) {
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+        if (!requestBatchingEnabled || streamingEnabled) {
+            for (ChallengeOutline outline : challengeOutlines) {
+                futures.add(scheduler.submit(() -> generateChallengeContent(topic, outline, documents, run),
+                        run.cancellation));
+            }
+            return futures;
         }
 
-        // Stage 2b: Generate Content for each Challenge (Parallelized)
-        Log.i(TAG, "Stage 2b: Generating individual challenge content for topic: " + topic.title);
-        ExecutorService challengeExecutor = Executors.newFixedThreadPool(Math.min(challengeOutlines.size(), 10));
-        List<Future<JSONObject>> challengeFutures = new ArrayList<>();
+        // Journaled challenges are done already, only the rest is batched
+        Map<ChallengeOutline, CompletableFuture<JSONObject>> byOutline = new HashMap<>();
+        List<ChallengeOutline> pending = new ArrayList<>();
+        for (ChallengeOutline outline : challengeOutlines) {
+            JSONObject journaled = journaledChallenge(topic, outline, run);
+            if (journaled != null) {
+                byOutline.put(outline, CompletableFuture.completedFuture(journaled));
+            } else {
+                pending.add(outline);
+            }
+        }
 
-        AtomicInteger completedChallenges = new AtomicInteger(0);
-        int totalChallenges = challengeOutlines.size();
+        List<List<ChallengeOutline>> batches = new BatchPlanner(MAX_OUTPUT_TOKENS, BATCH_OUTPUT_HEADROOM,
+                MAX_CHALLENGE_BATCH_SIZE).plan(pending, outline -> CHALLENGE_OUTPUT_TOKEN_ESTIMATE);
+        Log.i(TAG, String.format("Stage 2b: %d challenges of topic '%s' in %d requests", pending.size(),
+                topic.title, batches.size()));
 
+        for (List<ChallengeOutline> batch : batches) {
+            if (batch.size() == 1) {
+                byOutline.put(batch.get(0),
+                        scheduler.submit(() -> generateChallengeContent(topic, batch.get(0), documents, run),
+                                run.cancellation));
+                continue;
+            }
+            CompletableFuture<List<JSONObject>> batchFuture = scheduler
+                    .submit(() -> generateChallengeBatch(topic, batch, documents, run), run.cancellation);
+            for (int i = 0; i < batch.size(); i++) {
+                int position = i;
+                ChallengeOutline outline = batch.get(i);
+                byOutline.put(outline, batchFuture.handle((results, e) -> {
+                    JSONObject result = results != null ? results.get(position) : null;
+                    if (result != null)
+                        return CompletableFuture.completedFuture(result);
+                    Log.w(TAG, "Stage 2b: generating '" + outline.title + "' on its own"
+                            + (e != null ? " after batch failure: " + unwrap(e).getMessage() : ""));
+                    return scheduler.submit(() -> generateChallengeContent(topic, outline, documents, run),
+                            run.cancellation);
+                }).thenCompose(future -> future));
+            }
+        }
         for (ChallengeOutline outline : challengeOutlines) {
-            challengeFutures.add(challengeExecutor.submit(() -> {
-                JSONObject result = generateChallengeContent(topic, outline, documents);
-                int completed = completedChallenges.incrementAndGet();
-
-                if (listener != null) {
-                    // Split the topic's progress range among its challenges
-                    int progress = baseProgress + (completed * progressRange / totalChallenges);
-                    listener.onProgress(progress,
-                            String.format("Topic '%s': Generated %d/%d challenges", topic.title, completed,
-                                    totalChallenges));
-                }
-                return result;
-            }));
+            futures.add(byOutline.get(outline));
         }
+        return futures;
+    }
 
-        JSONArray generatedChallenges = new JSONArray();
-        try {
-            for (Future<JSONObject> future : challengeFutures) {
-                try {
-                    JSONObject challengeContent = future.get();
-                    if (challengeContent != null) {
-                        generatedChallenges.put(challengeContent);
+    /**
+     * Schedules Stage 2a for all topics, asking for the outlines of several small
+     * topics in one request. Returns one future per topic, in topic order. Topics
+     * the batch answer leaves out, or whose batch failed, get their own request;
+     * a batch that failed on the endpoint fails its topics instead.
+     *
+     * @param baseProgress  Progress when Stage 2a starts
+     * @param progressRange Progress shared out evenly between the topics
+     */
+    private List<CompletableFuture<List<ChallengeOutline>>> scheduleChallengeOutlineBatches(
+            List<TopicOutline> topics, List<DocumentContent> documents, GenerationScheduler scheduler,
+            ProgressListener listener, int baseProgress, int progressRange, GenerationRun run) throws JSONException {
+        // Pack every topic's context up front, so batches can be sized by it
+        List<CompletableFuture<List<ChallengeOutline>>> futures = new ArrayList<>(
+                Collections.nCopies(topics.size(), null));
+        List<TopicContext> contexts = new ArrayList<>();
+        for (int i = 0; i < topics.size(); i++) {
+            TopicOutline topic = topics.get(i);
+            List<ChallengeOutline> journaled = journaledChallengeOutlines(topic, run);
+            if (journaled != null) {
+                futures.set(i, CompletableFuture.completedFuture(journaled));
+                continue;
+            }
+            List<JSONObject> parts = new ArrayList<>();
+            ContextPacker.Result packed = addRelevantContentToPrompt(topic, topic.title, 0, documents, parts,
+                    "Stage 2a '" + topic.title + "'", run);
+            contexts.add(new TopicContext(i, topic, parts, packed.estimatedTokens));
+        }
+
+        List<List<TopicContext>> batches = new BatchPlanner(MAX_OUTPUT_TOKENS, BATCH_OUTPUT_HEADROOM,
+                MAX_OUTLINE_BATCH_SIZE).plan(contexts, context -> OUTLINE_OUTPUT_TOKEN_ESTIMATE,
+                        context -> context.estimatedTokens, contextTokenBudget);
+        Log.i(TAG, String.format("Stage 2a: %d topics in %d requests", contexts.size(), batches.size()));
+
+        for (List<TopicContext> batch : batches) {
+            if (batch.size() == 1) {
+                TopicContext context = batch.get(0);
+                futures.set(context.index, scheduleChallengeOutlines(context.topic, documents, scheduler, listener,
+                        baseProgress + context.index * progressRange / topics.size(), run));
+                continue;
+            }
+            CompletableFuture<List<List<ChallengeOutline>>> batchFuture = scheduler
+                    .submit(() -> extractChallengeOutlineBatch(batch, run), run.cancellation);
+            for (int i = 0; i < batch.size(); i++) {
+                int position = i;
+                TopicContext context = batch.get(i);
+                futures.set(context.index, batchFuture.handle((results, e) -> {
+                    List<ChallengeOutline> result = results != null ? results.get(position) : null;
+                    if (result != null && !result.isEmpty()) {
+                        Log.i(TAG, "Found " + result.size() + " challenges for topic: " + context.topic.title);
+                        journalChallengeOutlines(context.topic, result, run);
+                        return CompletableFuture.completedFuture(result);
                     }
-                } catch (ExecutionException e) {
-                    Log.e(TAG,
-                            "Challenge failed: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
-                }
+                    if (e != null && RetryPolicy.isEndpointFailure(unwrap(e)))
+                        throw new CompletionException(unwrap(e)); // Retrying each topic would only add load
+                    Log.w(TAG, "Stage 2a: extracting outlines of '" + context.topic.title + "' on its own"
+                            + (e != null ? " after batch failure: " + unwrap(e).getMessage() : ""));
+                    return scheduleChallengeOutlines(context.topic, documents, scheduler, listener,
+                            baseProgress + context.index * progressRange / topics.size(), run);
+                }).thenCompose(future -> future));
             }
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Topic content generation interrupted: " + topic.title);
-            Thread.currentThread().interrupt();
-        } finally {
-            challengeExecutor.shutdown();
+        }
+        return futures;
+    }
+
+    /** A topic of a Stage 2a batch with its packed context. */
+    private static class TopicContext {
+        final int index;
+        final TopicOutline topic;
+        final List<JSONObject> parts;
+        final long estimatedTokens;
+
+        TopicContext(int index, TopicOutline topic, List<JSONObject> parts, long estimatedTokens) {
+            this.index = index;
+            this.topic = topic;
+            this.parts = parts;
+            this.estimatedTokens = estimatedTokens;
+        }
+    }
+
+    private JSONObject buildTopicResult(TopicOutline topic, List<JSONObject> challenges) {
+        try {
+            JSONArray generatedChallenges = new JSONArray();
+            for (JSONObject challenge : challenges) {
+                generatedChallenges.put(challenge);
+            }
+
+            // Lets an incremental run tell which topics lose their material when a file is removed
+            Set<String> sourceFiles = new LinkedHashSet<>();
+            for (SectionRef ref : topic.sectionRefs) {
+                sourceFiles.add(ref.fileName);
+            }
+
+            JSONObject expandedTopic = new JSONObject();
+            expandedTopic.put("title", topic.title);
+            expandedTopic.put("challenges", generatedChallenges);
+            if (!sourceFiles.isEmpty())
+                expandedTopic.put("sourceFiles", new JSONArray(sourceFiles));
+            return expandedTopic;
+        } catch (JSONException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /** Strips the CompletionException/ExecutionException wrappers added by futures. */
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private List<ChallengeOutline> extractChallengeOutlines(TopicOutline topic, List<DocumentContent> documents,
+            GenerationRun run) throws IOException, JSONException {
+        List<ChallengeOutline> journaled = journaledChallengeOutlines(topic, run);
+        if (journaled != null)
+            return journaled;
+
+        List<JSONObject> promptParts = new ArrayList<>();
+        promptParts.add(new JSONObject().put("text", buildChallengeOutlinesPrompt(topic.title)));
+
+        // Add relevant content
+        addRelevantContentToPrompt(topic, topic.title, 0, documents, promptParts, "Stage 2a '" + topic.title + "'",
+                run);
+
+        List<ChallengeOutline> outlines = run.retryPolicy.execute("Stage 2a '" + topic.title + "'", attempt -> {
+            String jsonResponse = callGemini(null, promptParts, attempt == 0, run);
+            return parseChallengeOutlines(jsonResponse);
+        });
+        journalChallengeOutlines(topic, outlines, run);
+        return outlines;
+    }
+
+    /**
+     * Stage 2a for several topics in one request. Each topic's context follows its
+     * own header. Returns the outlines per topic in batch order; null for a topic
+     * the answer did not cover.
+     */
+    private List<List<ChallengeOutline>> extractChallengeOutlineBatch(List<TopicContext> batch, GenerationRun run)
+            throws IOException, JSONException {
+        List<JSONObject> promptParts = new ArrayList<>();
+        promptParts.add(new JSONObject().put("text", buildChallengeOutlineBatchPrompt(batch)));
+        for (int i = 0; i < batch.size(); i++) {
+            promptParts.add(new JSONObject().put("text",
+                    "\n\n########## TOPIC " + i + ": " + batch.get(i).topic.title + " ##########\n"));
+            promptParts.addAll(batch.get(i).parts);
+        }
+
+        String label = "Stage 2a batch of " + batch.size() + " topics";
+        Log.i(TAG, label + ", starting with '" + batch.get(0).topic.title + "'");
+        return run.retryPolicy.execute(label, attempt -> {
+            String jsonResponse = callGemini(null, promptParts, attempt == 0, run);
+            return parseChallengeOutlineBatch(jsonResponse, batch.size());
+        });
+    }
+
+    private String buildChallengeOutlineBatchPrompt(List<TopicContext> batch) {
+        StringBuilder topicList = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            topicList.append(String.format("%d. \"%s\"\n", i, batch.get(i).topic.title));
+        }
+        return String.format(
+                """
+                        For EACH of the following Topics, identify 3-5 individual learning challenges, based on the
+                        documents given under that topic's "TOPIC" header.
+                        Output MUST be in English, regardless of the document's language.
+
+                        Topics:
+                        %s
+                        For each challenge, provide a title and a brief description of what will be covered.
+
+                        Return a JSON array with one entry per topic:
+                        [
+                          {
+                            "i": 0,
+                            "ch": [
+                              {
+                                "t": "Challenge Title",
+                                "d": "Brief description of the learning objectives for this challenge."
+                              }
+                            ]
+                          }
+                        ]
+
+                        Rules:
+                        1. "i" is the topic number from the list above. Include every topic exactly once.
+                        2. Challenges should be cohesive and progress logically within their topic.
+                        3. Titles and descriptions MUST BE IN ENGLISH.
+                        4. Output valid JSON array only.
+                        """,
+                topicList);
+    }
+
+    private List<List<ChallengeOutline>> parseChallengeOutlineBatch(String jsonResponse, int batchSize)
+            throws IOException, JSONException {
+        JSONArray array;
+        if (jsonResponse.startsWith("[")) {
+            array = ModelJsonReader.readArray(jsonResponse);
+        } else {
+            JSONObject obj = ModelJsonReader.readObject(jsonResponse);
+            array = obj.has("topics") ? obj.getJSONArray("topics") : obj.optJSONArray("ts");
+            if (array == null)
+                array = new JSONArray();
         }
 
-        JSONObject expandedTopic = new JSONObject();
-        expandedTopic.put("title", topic.title);
-        expandedTopic.put("challenges", generatedChallenges);
-        return expandedTopic;
+        List<List<ChallengeOutline>> results = new ArrayList<>(Collections.nCopies(batchSize, null));
+        int covered = 0;
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject item = array.optJSONObject(i);
+            int index = item == null ? -1 : item.optInt("i", i);
+            JSONArray challenges = item == null ? null : item.optJSONArray("ch");
+            if (index < 0 || index >= batchSize || challenges == null || results.get(index) != null)
+                continue;
+            results.set(index, parseChallengeOutlineArray(challenges));
+            covered++;
+        }
+        if (covered == 0) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.VALIDATION_FAILED,
+                    "Batched outline response covers none of the topics");
+        }
+        return results;
     }
 
-    private List<ChallengeOutline> extractChallengeOutlines(TopicOutline topic, List<DocumentContent> documents)
-            throws IOException, JSONException {
-        List<JSONObject> promptParts = new ArrayList<>();
-        promptParts.add(new JSONObject().put("text", buildChallengeOutlinesPrompt(topic.title)));
+    /**
+     * Stage 2b for several challenges of one topic in one request. The context is
+     * packed once for all of them. Returns the expanded challenges in batch order;
+     * null for a challenge that is missing or fails validation.
+     */
+    private List<JSONObject> generateChallengeBatch(TopicOutline topic, List<ChallengeOutline> batch,
+            List<DocumentContent> documents, GenerationRun run) throws IOException, JSONException {
+        StringBuilder query = new StringBuilder();
+        for (ChallengeOutline outline : batch) {
+            query.append(outline.title).append(' ').append(outline.description).append(' ');
+        }
+        String label = "Stage 2b batch of " + batch.size() + " for '" + topic.title + "'";
 
-        // Add relevant content
-        addRelevantContentToPrompt(topic, documents, promptParts);
+        List<JSONObject> promptParts = new ArrayList<>();
+        promptParts.add(new JSONObject().put("text", buildChallengeBatchPrompt(topic.title, batch)));
+        addRelevantContentToPrompt(topic, query.toString(), CHALLENGE_CONTEXT_PAGES * batch.size(), documents,
+                promptParts, label, run);
+
+        return run.retryPolicy.execute(label, attempt -> {
+            String jsonResponse = callGemini(guidelinesContext(run), promptParts, attempt == 0, run);
+            JSONArray array;
+            if (jsonResponse.startsWith("[")) {
+                array = ModelJsonReader.readArray(jsonResponse);
+            } else {
+                JSONObject obj = ModelJsonReader.readObject(jsonResponse);
+                array = obj.has("cs") ? obj.getJSONArray("cs") : obj.optJSONArray("challenges");
+                if (array == null)
+                    array = new JSONArray();
+            }
 
-        int attempts = 0;
-        while (true) {
-            try {
-                String jsonResponse = callGemini(promptParts);
-                return parseChallengeOutlines(jsonResponse);
-            } catch (JSONException | IOException e) {
-                attempts++;
-                if (attempts > MAX_STRUCTURE_RETRIES) {
-                    throw e;
-                }
-                Log.w(TAG, "Stage 2a: Malformed challenge outlines for topic '" + topic.title + "' (" + e.getMessage()
-                        + "), retrying... (Attempt " + (attempts + 1) + "/" + (MAX_STRUCTURE_RETRIES + 1) + ")");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted during retry wait", ie);
+            List<JSONObject> results = new ArrayList<>();
+            int valid = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                JSONObject toonData = array.optJSONObject(i);
+                if (validateToonChallenge(toonData)) {
+                    JSONObject challenge = expandChallenge(toonData);
+                    journalChallenge(topic, batch.get(i), challenge, run);
+                    results.add(challenge);
+                    valid++;
+                } else {
+                    Log.w(TAG, label + ": challenge '" + batch.get(i).title + "' missing or invalid");
+                    results.add(null);
                 }
             }
+            if (valid == 0) {
+                throw new GeminiApiException(RetryPolicy.FailureClass.VALIDATION_FAILED,
+                        "Batched response contains no valid challenges");
+            }
+            return results;
+        });
+    }
+
+    private String buildChallengeBatchPrompt(String topicTitle, List<ChallengeOutline> batch) {
+        StringBuilder sb = new StringBuilder(String.format(
+                "Generate detailed learning content for %d Challenges within the Topic: \"%s\".\n",
+                batch.size(), topicTitle));
+        for (int i = 0; i < batch.size(); i++) {
+            ChallengeOutline outline = batch.get(i);
+            sb.append(String.format("%d. Challenge Title: \"%s\"\n   Challenge Description: \"%s\"\n", i + 1,
+                    outline.title, outline.description));
         }
+        sb.append("""
+
+                Return a JSON object { "cs": [ ... ] } holding one challenge object per challenge above, in the
+                same order. Every challenge object follows the TOON structure and rules given above.
+                """);
+        return sb.toString();
     }
 
     private JSONObject generateChallengeContent(TopicOutline topic, ChallengeOutline outline,
-            List<DocumentContent> documents)
+            List<DocumentContent> documents, GenerationRun run)
             throws IOException, JSONException {
-        List<JSONObject> promptParts = new ArrayList<>();
-        promptParts.add(new JSONObject().put("text", buildChallengeContainersPrompt(topic.title, outline)));
+        JSONObject journaled = journaledChallenge(topic, outline, run);
+        if (journaled != null)
+            return journaled;
 
-        // Add relevant content
-        addRelevantContentToPrompt(topic, documents, promptParts);
+        List<JSONObject> promptParts = buildChallengeParts(topic, outline, documents, run);
 
-        int attempts = 0;
-        while (true) {
-            try {
-                String jsonResponse = callGemini(promptParts);
-                JSONObject toonData = new JSONObject(jsonResponse);
+        try {
+            return run.retryPolicy.execute("Stage 2b '" + outline.title + "'", attempt -> {
+                String jsonResponse = streamingEnabled
+                        ? callGeminiStreaming(guidelinesContext(run), promptParts, attempt == 0,
+                                newContainerParser(topic, outline, attempt), run)
+                        : callGemini(guidelinesContext(run), promptParts, attempt == 0, run);
+                JSONObject toonData = ModelJsonReader.readObject(jsonResponse);
 
                 // Validate against guidelines
                 if (!validateToonChallenge(toonData)) {
-                    throw new JSONException(
+                    throw new GeminiApiException(RetryPolicy.FailureClass.VALIDATION_FAILED,
                             "Generated content does not meet guidelines (e.g. empty wordOptions or missing markers)");
                 }
 
-                return expandChallenge(toonData);
-            } catch (JSONException | IOException e) {
-                attempts++;
-                if (attempts > MAX_STRUCTURE_RETRIES) {
-                    Log.e(TAG, "Stage 2b: FINAL content failure for challenge '" + outline.title + "' after " + attempts
-                            + " attempts: " + e.getMessage());
-                    return null; // Return null to skip this challenge silently
-                }
-                Log.w(TAG, "Stage 2b: Content error for challenge '" + outline.title + "' (" + e.getMessage()
-                        + "), retrying... (Attempt " + (attempts + 1) + "/" + (MAX_STRUCTURE_RETRIES + 1) + ")");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted during retry wait", ie);
-                }
-            }
+                JSONObject challenge = expandChallenge(toonData);
+                journalChallenge(topic, outline, challenge, run);
+                return challenge;
+            });
+        } catch (JSONException | IOException e) {
+            if (RetryPolicy.isEndpointFailure(e))
+                throw e; // Fails the run, the journal keeps it resumable
+            Log.e(TAG, "Stage 2b: FINAL content failure for challenge '" + outline.title + "': " + e.getMessage());
+            return null; // Invalid content after all retries, leave this challenge out
         }
     }
 
-    private void addRelevantContentToPrompt(TopicOutline topic, List<DocumentContent> documents,
-            List<JSONObject> promptParts) throws JSONException {
-        Set<String> addedContent = new HashSet<>();
-        for (SectionRef ref : topic.sectionRefs) {
-            for (DocumentContent doc : documents) {
-                if (!doc.fileName.equals(ref.fileName) && !ref.fileName.isEmpty())
-                    continue;
+    /** Stage 2b prompt for one challenge, without the shared guidelines. */
+    private List<JSONObject> buildChallengeParts(TopicOutline topic, ChallengeOutline outline,
+            List<DocumentContent> documents, GenerationRun run) throws JSONException {
+        List<JSONObject> promptParts = new ArrayList<>();
+        promptParts.add(new JSONObject().put("text", buildChallengeContainersPrompt(topic.title, outline)));
 
-                if (doc.isImage) {
-                    String key = "img:" + doc.fileName;
-                    if (!addedContent.contains(key)) {
-                        promptParts.add(doc.imageData);
-                        addedContent.add(key);
-                    }
-                } else {
-                    StringBuilder relevantText = new StringBuilder();
-                    relevantText.append("\n\n=== ").append(doc.fileName).append(" ===\n");
-
-                    for (PageContent page : doc.pages) {
-                        if (page.pageNumber >= ref.startPage && page.pageNumber <= ref.endPage) {
-                            String key = doc.fileName + ":" + page.pageNumber;
-                            if (!addedContent.contains(key)) {
-                                relevantText.append("\n--- Page ").append(page.pageNumber).append(" ---\n");
-                                relevantText.append(page.text);
-                                addedContent.add(key);
-                            }
-                        }
-                    }
+        // Add only the pages of the topic that best match what this challenge covers
+        addRelevantContentToPrompt(topic, outline.title + " " + outline.description, CHALLENGE_CONTEXT_PAGES,
+                documents, promptParts, "Stage 2b '" + outline.title + "'", run);
+        return promptParts;
+    }
 
-                    if (relevantText.length() > 50) { // Only add if there's actual content
-                        promptParts.add(new JSONObject().put("text", relevantText.toString()));
-                    }
-                }
+    /**
+     * Parser for a streamed Stage 2b response: validates every container when it
+     * closes and hands the expanded container to the stream listener. Throwing
+     * from here aborts the stream so the retry starts without waiting for the rest.
+     * Tells the listener first that this attempt replaces any earlier one.
+     */
+    private IncrementalJsonParser newContainerParser(TopicOutline topic, ChallengeOutline outline, int attempt) {
+        ContainerStreamListener listener = containerStreamListener;
+        if (listener != null)
+            listener.onAttemptStarted(topic.title, outline.title, attempt);
+        return new IncrementalJsonParser("cn", (index, container) -> {
+            if (!validateToonContainer(container)) {
+                throw new GeminiApiException(RetryPolicy.FailureClass.VALIDATION_FAILED,
+                        "Streamed container " + index + " does not meet guidelines");
             }
-        }
-
-        // If no refs matched, include all content as fallback
-        if (addedContent.isEmpty()) {
-            for (DocumentContent doc : documents) {
-                if (doc.isImage) {
-                    promptParts.add(doc.imageData);
-                } else {
-                    StringBuilder allText = new StringBuilder();
-                    allText.append("\n\n=== ").append(doc.fileName).append(" ===\n");
-                    for (PageContent page : doc.pages) {
-                        allText.append("\n--- Page ").append(page.pageNumber).append(" ---\n");
-                        allText.append(page.text);
-                    }
-                    promptParts.add(new JSONObject().put("text", allText.toString()));
+            if (listener != null) {
+                JSONObject expanded = expandContainer(container);
+                if (expanded != null) {
+                    listener.onContainer(topic.title, outline.title, attempt, index, expanded);
                 }
             }
+        });
+    }
+
+    /**
+     * Adds the topic's referenced pages that fit the context token budget, most
+     * relevant to the query first, and at most maxPages of them (0 = no limit).
+     * Falls back to ranking the whole corpus when no reference matches.
+     */
+    private ContextPacker.Result addRelevantContentToPrompt(TopicOutline topic, String query, int maxPages,
+            List<DocumentContent> documents, List<JSONObject> promptParts, String label, GenerationRun run)
+            throws JSONException {
+        List<ContextPacker.PageRange> ranges = new ArrayList<>();
+        for (SectionRef ref : topic.sectionRefs) {
+            ranges.add(new ContextPacker.PageRange(ref.fileName, ref.startPage, ref.endPage));
         }
+
+        ContextPacker.Result packed = new ContextPacker(run.pageIndex, contextTokenBudget).pack(documents, ranges,
+                query, maxPages);
+        promptParts.addAll(packed.parts);
+        Log.i(TAG, String.format("%s: packed %d pages (~%d tokens%s), %d truncated, %d dropped over budget", label,
+                packed.pagesIncluded, packed.estimatedTokens, packed.usedFallback ? ", no refs matched" : "",
+                packed.pagesTruncated, packed.pagesDropped));
+        return packed;
     }
 
     private String buildChallengeOutlinesPrompt(String topicTitle) {
@@ -747,108 +2276,145 @@ public class GeminiContentProcessor {
     }
 
     private List<ChallengeOutline> parseChallengeOutlines(String jsonResponse) throws JSONException {
-        List<ChallengeOutline> outlines = new ArrayList<>();
         JSONArray array;
-        if (jsonResponse.trim().startsWith("[")) {
-            array = new JSONArray(jsonResponse);
+        if (jsonResponse.startsWith("[")) {
+            array = ModelJsonReader.readArray(jsonResponse);
         } else {
-            JSONObject obj = new JSONObject(jsonResponse);
+            JSONObject obj = ModelJsonReader.readObject(jsonResponse);
             array = obj.optJSONArray("challenges");
             if (array == null)
                 array = new JSONArray();
         }
+        return parseChallengeOutlineArray(array);
+    }
 
+    private List<ChallengeOutline> parseChallengeOutlineArray(JSONArray array) throws JSONException {
+        List<ChallengeOutline> outlines = new ArrayList<>();
         for (int i = 0; i < array.length(); i++) {
             JSONObject item = array.getJSONObject(i);
             outlines.add(new ChallengeOutline(
                     item.optString("t", "Challenge " + (i + 1)),
-                    item.optString("d", "")));
+                    item.optString("d", ""), i));
         }
         return outlines;
     }
 
+    /**
+     * Challenge-independent part of the Stage 2b prompt. It is the same for every
+     * request, so it is uploaded once per run as a shared context; it has to stay
+     * above the API's minimum cached prefix for that to happen.
+     */
+    private static final String CHALLENGE_GUIDELINES = """
+            Use ONLY the provided document context.
+            ALL generated text MUST BE IN ENGLISH, even if the source document is in another language.
+
+            Requirement: Output a JSON object for the challenge using TOON (Token Oriented Object Notation).
+
+            STRUCTURE DEFINITION & GUIDELINES (FOLLOW STRICTLY):
+            {
+              "t": "Challenge Title (MUST BE IN ENGLISH)",
+              "d": "Challenge Description (MUST BE IN ENGLISH)",
+              "cn": [
+                {
+                  "ty": "TITLE",
+                  "t": "Title text (Non-empty)"
+                },
+                {
+                  "ty": "TEXT",
+                  "tx": "Detailed explanatory text (Non-empty)"
+                },
+                {
+                  "ty": "MULTIPLE_CHOICE_QUIZ",
+                  "q": "Question text?",
+                  "os": ["Opt A", "Opt B", "Opt C", "Opt D"],
+                  "ci": [0],
+                  "am": false,
+                  "e": "Detailed explanation why answers are correct"
+                },
+                {
+                  "ty": "FILL_IN_THE_GAPS",
+                  "tt": "Template text with indexed markers: {1} is a {2}.",
+                  "cw": ["word1", "word2"],
+                  "wo": ["word1", "word2", "distractor1", "distractor2"]
+                },
+                {
+                  "ty": "SORTING_TASK",
+                  "co": ["First", "Second", "Third", "Fourth"],
+                  "in": "Instructions on what to sort"
+                },
+                {
+                  "ty": "ERROR_SPOTTING",
+                  "is": ["Correct1", "Correct2", "ERROR_ITEM", "Correct3"],
+                  "ei": 2,
+                  "in": "Instructions to find the error",
+                  "e": "Why this item is the error"
+                },
+                {
+                  "ty": "REVERSE_QUIZ",
+                  "a": "The Answer",
+                  "qo": ["Question1?", "Question2?", "Question3?"],
+                  "cqi": 0,
+                  "e": "Why this question matches the answer"
+                },
+                {
+                  "ty": "WIRE_CONNECTING",
+                  "li": ["Left1", "Left2", "Left3"],
+                  "ri": ["Right1", "Right2", "Right3"],
+                  "cm": {"0": 1, "1": 0, "2": 2},
+                  "in": "Instructions for matching"
+                },
+                {
+                  "ty": "RECAP",
+                  "rt": "Recap Title",
+                  "wc": { "ty": "TITLE", "t": "Inner Title" }
+                }
+              ]
+            }
+
+            KEYS (the short names stand for):
+            t = title, d = description, cn = containers, ty = container type, tx = text,
+            q = question, os = options, ci = indices of the correct options, am = more than one option is correct,
+            e = explanation, in = instructions, tt = text template, cw = correct words in marker order,
+            wo = word options shown to the learner, co = items in their correct order, is = items,
+            ei = index of the erroneous item, a = answer, qo = question options, cqi = index of the matching question,
+            li = left items, ri = right items, cm = left index -> right index, rt = recap title,
+            wc = the container the recap repeats.
+
+            CONTENT GUIDELINES:
+            - Start with a TITLE and one or two TEXT containers that explain the core idea before the first exercise.
+            - Alternate explanation and practice: every exercise must be answerable from text shown earlier in the
+              challenge or from the provided documents.
+            - Quiz distractors must be plausible for someone who skimmed the material, not obviously wrong or joking.
+            - Explanations (`e`) say why the correct answer is correct and, where useful, why a tempting wrong one is
+              not. Do not just restate the answer.
+            - Keep TEXT containers focused on one idea each, at most a short paragraph. Prefer concrete examples,
+              numbers and terms from the documents over general statements.
+            - SORTING_TASK lists its items in the correct order in `co`. The items must be distinct and the order
+              must follow from the material (steps of a process, a timeline, increasing size), not from opinion.
+            - FILL_IN_THE_GAPS gaps should hold key terms, not filler words; distractors belong to the same category
+              as the correct words so the learner has to know the content to choose.
+            - ERROR_SPOTTING contains exactly one wrong item, wrong in substance rather than in spelling.
+            - WIRE_CONNECTING pairs must be unambiguous: each left item matches exactly one right item.
+            - End the challenge with a RECAP that repeats its most important TITLE or TEXT container.
+            - Do not refer to page numbers, file names or "the document" in learner-facing text.
+
+            STRICT RULES:
+            1. ALL TEXT MUST BE IN ENGLISH.
+            2. FILL_IN_THE_GAPS: `wo` (wordOptions) MUST NOT be empty. It must contain ALL `cw` (correctWords) plus 2-4 distractors. `tt` must use {1}, {2}, etc.
+            3. MULTIPLE_CHOICE_QUIZ: Minimum 2 options. `ci` must contain valid indices into `os`.
+            4. SORTING_TASK: Minimum 3 items in `co`.
+            5. ERROR_SPOTTING: Minimum 3 items in `is`. `ei` must be the index of the incorrect item.
+            6. WIRE_CONNECTING: `li` and `ri` must have the same length (min 3). `cm` must map EVERY left index to its matching right index.
+            7. Diversify container types. Use roughly 10 containers per challenge.
+            8. Output valid JSON only, no other text.
+            """;
+
     private String buildChallengeContainersPrompt(String topicTitle, ChallengeOutline outline) {
         return String.format(
                 """
                         Generate detailed learning content for a specific Challenge within the Topic: "%s".
                         Challenge Title: "%s"
                         Challenge Description: "%s"
-
-                        Use ONLY the provided document context.
-                        ALL generated text MUST BE IN ENGLISH, even if the source document is in another language.
-
-                        Requirement: Output a JSON object for the challenge using TOON (Token Oriented Object Notation).
-
-                        STRUCTURE DEFINITION & GUIDELINES (FOLLOW STRICTLY):
-                        {
-                          "t": "Challenge Title (MUST BE IN ENGLISH)",
-                          "d": "Challenge Description (MUST BE IN ENGLISH)",
-                          "cn": [
-                            {
-                              "ty": "TITLE",
-                              "t": "Title text (Non-empty)"
-                            },
-                            {
-                              "ty": "TEXT",
-                              "tx": "Detailed explanatory text (Non-empty)"
-                            },
-                            {
-                              "ty": "MULTIPLE_CHOICE_QUIZ",
-                              "q": "Question text?",
-                              "os": ["Opt A", "Opt B", "Opt C", "Opt D"],
-                              "ci": [0],
-                              "am": false,
-                              "e": "Detailed explanation why answers are correct"
-                            },
-                            {
-                              "ty": "FILL_IN_THE_GAPS",
-                              "tt": "Template text with indexed markers: {1} is a {2}.",
-                              "cw": ["word1", "word2"],
-                              "wo": ["word1", "word2", "distractor1", "distractor2"]
-                            },
-                            {
-                              "ty": "SORTING_TASK",
-                              "co": ["First", "Second", "Third", "Fourth"],
-                              "in": "Instructions on what to sort"
-                            },
-                            {
-                              "ty": "ERROR_SPOTTING",
-                              "is": ["Correct1", "Correct2", "ERROR_ITEM", "Correct3"],
-                              "ei": 2,
-                              "in": "Instructions to find the error",
-                              "e": "Why this item is the error"
-                            },
-                            {
-                              "ty": "REVERSE_QUIZ",
-                              "a": "The Answer",
-                              "qo": ["Question1?", "Question2?", "Question3?"],
-                              "cqi": 0,
-                              "e": "Why this question matches the answer"
-                            },
-                            {
-                              "ty": "WIRE_CONNECTING",
-                              "li": ["Left1", "Left2", "Left3"],
-                              "ri": ["Right1", "Right2", "Right3"],
-                              "cm": {"0": 1, "1": 0, "2": 2},
-                              "in": "Instructions for matching"
-                            },
-                            {
-                              "ty": "RECAP",
-                              "rt": "Recap Title",
-                              "wc": { "ty": "TITLE", "t": "Inner Title" }
-                            }
-                          ]
-                        }
-
-                        STRICT RULES:
-                        1. ALL TEXT MUST BE IN ENGLISH.
-                        2. FILL_IN_THE_GAPS: `wo` (wordOptions) MUST NOT be empty. It must contain ALL `cw` (correctWords) plus 2-4 distractors. `tt` must use {1}, {2}, etc.
-                        3. MULTIPLE_CHOICE_QUIZ: Minimum 2 options. `ci` must contain valid indices into `os`.
-                        4. SORTING_TASK: Minimum 3 items in `co`.
-                        5. ERROR_SPOTTING: Minimum 3 items in `is`. `ei` must be the index of the incorrect item.
-                        6. WIRE_CONNECTING: `li` and `ri` must have the same length (min 3). `cm` must map EVERY left index to its matching right index.
-                        7. Diversify container types. Use roughly 10 containers per challenge.
-                        8. Output valid JSON only, no other text.
                         """,
                 topicTitle, outline.title, outline.description);
     }
@@ -867,98 +2433,111 @@ public class GeminiContentProcessor {
                 return false;
 
             for (int i = 0; i < cn.length(); i++) {
-                JSONObject container = cn.getJSONObject(i);
-                String type = container.optString("ty", "");
+                if (!validateToonContainer(cn.getJSONObject(i)))
+                    return false;
+            }
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Validation error: " + e.getMessage());
+            return false;
+        }
+    }
 
-                switch (type) {
-                    case "TITLE":
-                        if (container.optString("t", "").isEmpty())
-                            return false;
-                        break;
-                    case "TEXT":
-                        if (container.optString("tx", "").isEmpty())
-                            return false;
-                        break;
-                    case "MULTIPLE_CHOICE_QUIZ":
-                        if (container.optString("q", "").isEmpty())
-                            return false;
-                        JSONArray os = container.optJSONArray("os");
-                        JSONArray ci = container.optJSONArray("ci");
-                        if (os == null || os.length() < 2)
-                            return false;
-                        if (ci == null || ci.length() == 0)
-                            return false;
-                        for (int j = 0; j < ci.length(); j++) {
-                            int idx = ci.getInt(j);
-                            if (idx < 0 || idx >= os.length())
-                                return false;
-                        }
-                        break;
-                    case "FILL_IN_THE_GAPS":
-                        String tt = container.optString("tt", "");
-                        JSONArray cw = container.optJSONArray("cw");
-                        JSONArray wo = container.optJSONArray("wo");
-                        if (tt.isEmpty())
-                            return false;
-                        if (cw == null || cw.length() == 0)
-                            return false;
-                        if (wo == null || wo.length() == 0)
-                            return false;
-                        // Check if all correct words are in word options
-                        Set<String> optionsSet = new HashSet<>();
-                        for (int j = 0; j < wo.length(); j++)
-                            optionsSet.add(wo.getString(j).toLowerCase());
-                        for (int j = 0; j < cw.length(); j++) {
-                            if (!optionsSet.contains(cw.getString(j).toLowerCase()))
-                                return false;
-                        }
-                        // Check if markers {1}, {2}, etc. exist in template
-                        for (int j = 1; j <= cw.length(); j++) {
-                            if (!tt.contains("{" + j + "}"))
-                                return false;
-                        }
-                        break;
-                    case "SORTING_TASK":
-                        JSONArray co = container.optJSONArray("co");
-                        if (co == null || co.length() < 3)
-                            return false;
-                        break;
-                    case "ERROR_SPOTTING":
-                        JSONArray is = container.optJSONArray("is");
-                        if (is == null || is.length() < 3)
-                            return false;
-                        int ei = container.optInt("ei", -1);
-                        if (ei < 0 || ei >= is.length())
-                            return false;
-                        break;
-                    case "REVERSE_QUIZ":
-                        if (container.optString("a", "").isEmpty())
+    /** Checks a single TOON container, so streamed containers can be validated as they arrive. */
+    private boolean validateToonContainer(JSONObject container) {
+        if (container == null)
+            return false;
+        try {
+            String type = container.optString("ty", "");
+
+            switch (type) {
+                case "TITLE":
+                    if (container.optString("t", "").isEmpty())
+                        return false;
+                    break;
+                case "TEXT":
+                    if (container.optString("tx", "").isEmpty())
+                        return false;
+                    break;
+                case "MULTIPLE_CHOICE_QUIZ":
+                    if (container.optString("q", "").isEmpty())
+                        return false;
+                    JSONArray os = container.optJSONArray("os");
+                    JSONArray ci = container.optJSONArray("ci");
+                    if (os == null || os.length() < 2)
+                        return false;
+                    if (ci == null || ci.length() == 0)
+                        return false;
+                    for (int j = 0; j < ci.length(); j++) {
+                        int idx = ci.getInt(j);
+                        if (idx < 0 || idx >= os.length())
                             return false;
-                        JSONArray qo = container.optJSONArray("qo");
-                        if (qo == null || qo.length() < 2)
+                    }
+                    break;
+                case "FILL_IN_THE_GAPS":
+                    String tt = container.optString("tt", "");
+                    JSONArray cw = container.optJSONArray("cw");
+                    JSONArray wo = container.optJSONArray("wo");
+                    if (tt.isEmpty())
+                        return false;
+                    if (cw == null || cw.length() == 0)
+                        return false;
+                    if (wo == null || wo.length() == 0)
+                        return false;
+                    // Check if all correct words are in word options
+                    Set<String> optionsSet = new HashSet<>();
+                    for (int j = 0; j < wo.length(); j++)
+                        optionsSet.add(wo.getString(j).toLowerCase());
+                    for (int j = 0; j < cw.length(); j++) {
+                        if (!optionsSet.contains(cw.getString(j).toLowerCase()))
                             return false;
-                        int cqi = container.optInt("cqi", -1);
-                        if (cqi < 0 || cqi >= qo.length())
+                    }
+                    // Check if markers {1}, {2}, etc. exist in template
+                    for (int j = 1; j <= cw.length(); j++) {
+                        if (!tt.contains("{" + j + "}"))
                             return false;
-                        break;
-                    case "WIRE_CONNECTING":
-                        JSONArray li = container.optJSONArray("li");
-                        JSONArray ri = container.optJSONArray("ri");
-                        JSONObject cm = container.optJSONObject("cm");
-                        if (li == null || ri == null || cm == null)
+                    }
+                    break;
+                case "SORTING_TASK":
+                    JSONArray co = container.optJSONArray("co");
+                    if (co == null || co.length() < 3)
+                        return false;
+                    break;
+                case "ERROR_SPOTTING":
+                    JSONArray is = container.optJSONArray("is");
+                    if (is == null || is.length() < 3)
+                        return false;
+                    int ei = container.optInt("ei", -1);
+                    if (ei < 0 || ei >= is.length())
+                        return false;
+                    break;
+                case "REVERSE_QUIZ":
+                    if (container.optString("a", "").isEmpty())
+                        return false;
+                    JSONArray qo = container.optJSONArray("qo");
+                    if (qo == null || qo.length() < 2)
+                        return false;
+                    int cqi = container.optInt("cqi", -1);
+                    if (cqi < 0 || cqi >= qo.length())
+                        return false;
+                    break;
+                case "WIRE_CONNECTING":
+                    JSONArray li = container.optJSONArray("li");
+                    JSONArray ri = container.optJSONArray("ri");
+                    JSONObject cm = container.optJSONObject("cm");
+                    if (li == null || ri == null || cm == null)
+                        return false;
+                    if (li.length() != ri.length() || li.length() < 3)
+                        return false;
+                    // Check if all left indices are present in cm and map to valid right indices
+                    for (int j = 0; j < li.length(); j++) {
+                        if (!cm.has(String.valueOf(j)))
                             return false;
-                        if (li.length() != ri.length() || li.length() < 3)
+                        int rIdx = cm.getInt(String.valueOf(j));
+                        if (rIdx < 0 || rIdx >= ri.length())
                             return false;
-                        // Check if all left indices are present in cm and map to valid right indices
-                        for (int j = 0; j < li.length(); j++) {
-                            if (!cm.has(String.valueOf(j)))
-                                return false;
-                            int rIdx = cm.getInt(String.valueOf(j));
-                            if (rIdx < 0 || rIdx >= ri.length())
-                                return false;
-                        }
-                        break;
-                }
+                    }
+                    break;
             }
             return true;
         } catch (Exception e) {
@@ -1087,74 +2666,300 @@ public class GeminiContentProcessor {
 
     // --- Document Extraction ---
 
-    private List<DocumentContent> extractDocumentContents(List<SubjectFile> files) throws IOException {
-        List<DocumentContent> documents = new ArrayList<>();
+    /**
+     * Extracts all files in parallel on a bounded worker pool. Results keep the
+     * original file order; missing or oversized files are skipped.
+     * If a cache is given, unchanged files are served from it instead of being parsed.
+     */
+    private List<DocumentContent> extractDocumentContents(List<SubjectFile> files, ExtractionCache cache,
+            ProgressListener listener, boolean pruneCache, GenerationRun run) throws IOException {
+        int poolSize = Math.max(1, Math.min(files.size(),
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_EXTRACTION_THREADS)));
+        ExecutorService extractionExecutor = Executors.newFixedThreadPool(poolSize);
+        CancellationToken.Registration stopExtraction = run.cancellation.onCancel(extractionExecutor::shutdownNow);
+        List<Future<DocumentContent>> extractionFutures = new ArrayList<>();
+
+        AtomicInteger completedFiles = new AtomicInteger(0);
+        AtomicInteger cacheHits = new AtomicInteger(0);
+        AtomicInteger cacheMisses = new AtomicInteger(0); // Per file; uploads with the same content each count
+        Set<String> fileHashes = ConcurrentHashMap.newKeySet();
+        int totalFiles = files.size();
 
         for (SubjectFile file : files) {
-            File f = file.getFile();
-            if (!f.exists() || f.length() > MAX_FILE_SIZE)
-                continue;
-
-            String mime = getMimeType(f);
-            DocumentContent doc = new DocumentContent(file.getFileName());
-
-            if ("application/pdf".equals(mime)) {
-                // Extract each page individually for precise filtering
-                try (PDDocument pdfDoc = PDDocument.load(f)) {
-                    PDFTextStripper stripper = new PDFTextStripper();
-                    int totalPages = pdfDoc.getNumberOfPages();
-
-                    for (int page = 1; page <= totalPages; page++) {
-                        stripper.setStartPage(page);
-                        stripper.setEndPage(page);
-                        String text = stripper.getText(pdfDoc).trim();
-                        if (!text.isEmpty()) {
-                            doc.pages.add(new PageContent(page, text));
-                        }
+            extractionFutures.add(extractionExecutor.submit(() -> {
+                try {
+                    return extractDocument(file, cache, fileHashes, cacheHits, cacheMisses, run);
+                } finally {
+                    int completed = completedFiles.incrementAndGet();
+                    if (listener != null) {
+                        // Extraction owns the 5% -> 15% progress segment
+                        int progress = 5 + (completed * 10 / totalFiles);
+                        listener.onProgress(progress, String.format("Extracted %d/%d files (%s)", completed,
+                                totalFiles, file.getFileName()));
                     }
                 }
-                documents.add(doc);
+            }));
+        }
 
-            } else if (isBinaryMimeType(mime)) {
-                // Image file
+        List<DocumentContent> documents = new ArrayList<>();
+        try {
+            for (Future<DocumentContent> future : extractionFutures) {
                 try {
-                    JSONObject inlineData = new JSONObject()
-                            .put("mime_type", mime)
-                            .put("data", fileToBase64(f));
-                    doc.isImage = true;
-                    doc.imageData = new JSONObject().put("inline_data", inlineData);
-                    documents.add(doc);
-                } catch (JSONException e) {
-                    Log.e(TAG, "Failed to encode image: " + e.getMessage());
+                    DocumentContent doc = future.get();
+                    if (doc != null) {
+                        documents.add(doc);
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    Log.e(TAG, "Document extraction failed: " + cause.getMessage());
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    throw new IOException("Document extraction failed: " + cause.getMessage(), cause);
                 }
-
-            } else {
-                // Plain text file - treat as single page
-                String text = readFileContent(f);
-                doc.pages.add(new PageContent(1, text));
-                documents.add(doc);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during document extraction", e);
+        } finally {
+            stopExtraction.close();
+            extractionExecutor.shutdownNow();
+        }
+
+        if (cache != null) {
+            Log.i(TAG, String.format("Extraction cache: %d hits, %d misses", cacheHits.get(), cacheMisses.get()));
+            if (pruneCache)
+                cache.retainOnly(fileHashes);
         }
         return documents;
     }
 
+    /**
+     * Extracts a single file. Returns null if the file should be skipped.
+     */
+    private DocumentContent extractDocument(SubjectFile file, ExtractionCache cache, Set<String> fileHashes,
+            AtomicInteger cacheHits, AtomicInteger cacheMisses, GenerationRun run) throws IOException {
+        File f = file.getFile();
+        if (!f.exists() || f.length() > MAX_FILE_SIZE)
+            return null;
+
+        String hash = null;
+        if (cache != null) {
+            hash = fileutil.hashFile(f);
+            fileHashes.add(hash);
+            DocumentContent cached = cache.load(hash, file.getFileName());
+            if (cached != null) {
+                Log.i(TAG, "Extraction cache hit: " + file.getFileName() + " (" + cached.pages.size() + " pages)");
+                cacheHits.incrementAndGet();
+                if (cached.isImage) {
+                    try {
+                        cached.imageData = run.images.stage(cached.imageMimeType, f, hash);
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Failed to reference image: " + e.getMessage());
+                        return null;
+                    }
+                }
+                return cached;
+            }
+            Log.i(TAG, "Extraction cache miss: " + file.getFileName());
+            cacheMisses.incrementAndGet();
+        }
+
+        DocumentContent doc = parseDocument(file, f, hash, run);
+        if (doc != null && cache != null) {
+            cache.store(hash, doc, f.length());
+        }
+        return doc;
+    }
+
+    /** @param hash Content hash of the file, or null if it was not computed */
+    private DocumentContent parseDocument(SubjectFile file, File f, String hash, GenerationRun run) throws IOException {
+        String mime = getMimeType(f);
+        DocumentContent doc = new DocumentContent(file.getFileName());
+
+        if ("application/pdf".equals(mime)) {
+            // Stream the PDF once, collecting each page at its page boundary
+            try (PDDocument pdfDoc = PDDocument.load(f)) {
+                new PdfPageExtractor().extract(pdfDoc, doc.pages::add);
+            }
+            return doc;
+
+        } else if (isBinaryMimeType(mime)) {
+            // Image file
+            try {
+                doc.isImage = true;
+                doc.imageMimeType = mime;
+                doc.imageData = run.images.stage(mime, f, hash);
+                return doc;
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to reference image: " + e.getMessage());
+                return null;
+            }
+
+        } else {
+            // Plain text file - treat as single page
+            String text = readFileContent(f);
+            doc.pages.add(new PageContent(1, text));
+            return doc;
+        }
+    }
+
     // --- API Communication ---
 
-    private String callGemini(List<JSONObject> parts) throws IOException, JSONException {
+    /**
+     * Sends the shared context (may be null) followed by the parts and returns the
+     * response text. With useCache, an identical earlier request is answered from
+     * the response cache. Retries after a malformed or invalid response must pass
+     * false so the same bad answer is not replayed.
+     */
+    private String callGemini(SharedContext shared, List<JSONObject> parts, boolean useCache, GenerationRun run)
+            throws IOException, JSONException {
+        String cacheKey = responseCacheKey(shared, parts);
+        String cached = cachedResponse(cacheKey, useCache);
+        if (cached != null) {
+            return cached;
+        }
+
+        String result = sendWithSharedContext(shared, parts, ":generateContent",
+                api::readResponse, run);
+        if (cacheKey != null) {
+            responseCache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #callGemini} but over the SSE endpoint: text deltas are fed to the
+     * parser as they arrive. A cached response is replayed through the parser too,
+     * so the caller sees the same callbacks either way.
+     */
+    private String callGeminiStreaming(SharedContext shared, List<JSONObject> parts, boolean useCache,
+            IncrementalJsonParser parser, GenerationRun run) throws IOException, JSONException {
+        String cacheKey = responseCacheKey(shared, parts);
+        String cached = cachedResponse(cacheKey, useCache);
+        if (cached != null) {
+            GeminiApiClient.feedParser(parser, cached);
+            return cached;
+        }
+
+        String result = sendWithSharedContext(shared, parts, ":streamGenerateContent?alt=sse",
+                (body, reservation) -> api.readEventStream(body, reservation, parser), run);
+        if (cacheKey != null) {
+            responseCache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the request, referencing the shared context by handle if it has one. If
+     * the server no longer knows the handle (expired or deleted), the context is
+     * sent inline from then on.
+     */
+    private <T> T sendWithSharedContext(SharedContext shared, List<JSONObject> parts, String method,
+            GeminiApiClient.ResponseReader<T> reader, GenerationRun run) throws IOException, JSONException {
+        String handle = shared != null ? shared.handle : null;
+        try {
+            return api.post(method, requestBody(shared, handle, parts, run),
+                    estimateRequestTokens(shared, handle, parts), run.cancellation, reader);
+        } catch (GeminiApiException e) {
+            int status = e.getStatusCode();
+            if (handle == null || (status != 400 && status != 403 && status != 404))
+                throw e;
+            Log.w(TAG, "Cached context " + handle + " rejected (HTTP " + status + "), sending it inline");
+            shared.handle = null;
+            return api.post(method, requestBody(shared, null, parts, run), estimateRequestTokens(shared, null, parts),
+                    run.cancellation, reader);
+        }
+    }
+
+    /**
+     * Body that writes the request straight to the connection. The shared
+     * context's parts are encoded once per run and copied as bytes.
+     */
+    private HttpTransport.RequestBody requestBody(SharedContext shared, String handle, List<JSONObject> parts,
+            GenerationRun run) throws IOException, JSONException {
+        RequestBodyWriter.Fragment sharedParts = shared != null && handle == null ? shared.encoded() : null;
+        return api.requestBody(sharedParts, handle, parts, generationConfig(), run.images.files());
+    }
+
+    /**
+     * Request as a JSON object, for the batch job API which sends many of them in
+     * one document. Images are inlined as base64.
+     */
+    private JSONObject buildRequest(SharedContext shared, String handle, List<JSONObject> parts, GenerationRun run)
+            throws IOException, JSONException {
         JSONObject request = new JSONObject();
         JSONArray partsArray = new JSONArray();
-        for (JSONObject p : parts)
+        if (shared != null && handle == null) {
+            for (JSONObject p : run.images.materialize(shared.parts))
+                partsArray.put(p);
+        }
+        for (JSONObject p : run.images.materialize(parts))
             partsArray.put(p);
 
-        JSONObject content = new JSONObject().put("parts", partsArray);
+        JSONObject content = new JSONObject().put("role", "user").put("parts", partsArray);
         request.put("contents", new JSONArray().put(content));
+        if (handle != null) {
+            request.put("cachedContent", handle);
+        }
+        request.put("generationConfig", generationConfig());
+        return request;
+    }
 
+    private static JSONObject generationConfig() throws JSONException {
         JSONObject config = new JSONObject();
         config.put("temperature", 0.3); // Lower for more consistent structured output
-        config.put("maxOutputTokens", 8192);
-        request.put("generationConfig", config);
+        config.put("maxOutputTokens", MAX_OUTPUT_TOKENS);
+        return config;
+    }
+
+    /**
+     * Response cache key over the logical prompt. A shared context contributes its
+     * content hash, never its handle, so a response stays cached across runs even
+     * though every run uploads under a new handle.
+     */
+    private String responseCacheKey(SharedContext shared, List<JSONObject> parts) throws JSONException {
+        if (responseCache == null)
+            return null;
+        List<JSONObject> keyParts = new ArrayList<>();
+        if (shared != null) {
+            keyParts.add(new JSONObject().put("sharedContext", shared.contentHash));
+        }
+        keyParts.addAll(parts);
+        return ResponseCache.keyFor(MODEL, generationConfig(), keyParts);
+    }
+
+    private long estimateRequestTokens(SharedContext shared, String handle, List<JSONObject> parts) {
+        long tokens = estimatePromptTokens(parts);
+        if (shared != null && handle == null) {
+            tokens += estimatePromptTokens(shared.parts);
+        }
+        return tokens;
+    }
+
+    private String cachedResponse(String cacheKey, boolean useCache) {
+        if (cacheKey == null || !useCache || bypassResponseCache)
+            return null;
+        String cached = responseCache.get(cacheKey);
+        if (cached != null) {
+            responseCacheHits.incrementAndGet();
+            Log.i(TAG, "Response cache hit: " + cacheKey.substring(0, 12));
+        }
+        return cached;
+    }
 
-        return extractJsonFromResponse(makeApiCall(API_ENDPOINT, request));
+    private long estimatePromptTokens(List<JSONObject> parts) {
+        long tokens = 0;
+        for (JSONObject part : parts) {
+            JSONObject image = part.optJSONObject(RequestBodyWriter.INLINE_FILE);
+            if (image != null) {
+                tokens += image.optInt("tokens", IMAGE_TOKEN_ESTIMATE);
+            } else if (part.has("inline_data")) {
+                tokens += IMAGE_TOKEN_ESTIMATE;
+            } else {
+                tokens += part.optString("text", "").length() / CHARS_PER_TOKEN;
+            }
+        }
+        return tokens;
     }
 
     private String getMimeType(File file) {
@@ -1174,20 +2979,6 @@ public class GeminiContentProcessor {
         return mimeType.startsWith("image/");
     }
 
-    private String fileToBase64(File file) throws IOException {
-        byte[] bytes = new byte[(int) file.length()];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int readTotal = 0;
-            while (readTotal < bytes.length) {
-                int read = fis.read(bytes, readTotal, bytes.length - readTotal);
-                if (read == -1)
-                    break;
-                readTotal += read;
-            }
-        }
-        return Base64.encodeToString(bytes, Base64.NO_WRAP);
-    }
-
     private String readFileContent(File file) throws IOException {
         StringBuilder content = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(
@@ -1200,104 +2991,4 @@ public class GeminiContentProcessor {
         }
         return content.toString();
     }
-
-    private String makeApiCall(String endpoint, JSONObject request) throws IOException, JSONException {
-        long startTime = System.currentTimeMillis();
-        long currentDelay = INITIAL_RETRY_DELAY_MS;
-
-        activeThreads.incrementAndGet();
-        try {
-            while (true) {
-                URL url = new URL(endpoint + "?key=" + apiKey);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                try {
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "application/json");
-                    conn.setDoOutput(true);
-                    conn.setConnectTimeout(30000);
-                    conn.setReadTimeout(120000); // 2 min read timeout for large responses
-
-                    try (OutputStream os = conn.getOutputStream()) {
-                        byte[] input = request.toString().getBytes(StandardCharsets.UTF_8);
-                        os.write(input, 0, input.length);
-                    }
-
-                    int responseCode = conn.getResponseCode();
-
-                    if (responseCode == 429) {
-                        rateLimitedThreads.incrementAndGet();
-                        long elapsed = System.currentTimeMillis() - startTime;
-                        try {
-                            if (elapsed < MAX_RETRY_DURATION_MS) {
-                                Log.w(TAG, String.format("Rate limited. Retrying in %dms...", currentDelay));
-                                try {
-                                    Thread.sleep(currentDelay);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                    throw new IOException("Interrupted during rate limit wait", e);
-                                }
-                            } else {
-                                throw new IOException("Rate limit timeout after " + (elapsed / 1000) + "s");
-                            }
-                        } finally {
-                            rateLimitedThreads.decrementAndGet();
-                        }
-                        currentDelay = Math.min(currentDelay * 2, MAX_RETRY_DELAY_MS);
-                        continue;
-                    }
-
-                    if (responseCode >= 400) {
-                        // Read error response
-                        StringBuilder errorBody = new StringBuilder();
-                        try (BufferedReader br = new BufferedReader(
-                                new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                            String line;
-                            while ((line = br.readLine()) != null)
-                                errorBody.append(line);
-                        } catch (Exception ignored) {
-                        }
-                        throw new IOException("HTTP " + responseCode + ": " + errorBody);
-                    }
-
-                    try (BufferedReader br = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null)
-                            response.append(line);
-                        return response.toString();
-                    }
-                } finally {
-                    conn.disconnect();
-                }
-            }
-        } finally {
-            activeThreads.decrementAndGet();
-        }
-    }
-
-    private String extractJsonFromResponse(String response) throws IOException {
-        try {
-            JSONObject jsonResponse = new JSONObject(response);
-
-            // Extract and log token usage
-            if (jsonResponse.has("usageMetadata")) {
-                JSONObject usage = jsonResponse.getJSONObject("usageMetadata");
-                int promptTokens = usage.optInt("promptTokenCount", 0);
-                int candidateTokens = usage.optInt("candidatesTokenCount", 0);
-                int totalTokens = usage.optInt("totalTokenCount", 0);
-
-                totalTokensProcessed.addAndGet(totalTokens);
-                Log.i(TAG, String.format("Token Usage - Prompt: %d, Candidates: %d, Total: %d",
-                        promptTokens, candidateTokens, totalTokens));
-            }
-
-            String text = jsonResponse.getJSONArray("candidates").getJSONObject(0)
-                    .getJSONObject("content").getJSONArray("parts").getJSONObject(0).getString("text");
-            // Clean markdown code blocks if present
-            return text.replaceAll("```json\\s*", "").replaceAll("```\\s*", "").trim();
-        } catch (JSONException e) {
-            throw new IOException("Failed to parse Gemini response: " + e.getMessage(), e);
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+/** {@link ContextCache} backed by the Gemini cachedContents API.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+class GeminiContextCache implements ContextCache {
+
+    private final GeminiApiClient api;
+    private final CancellationToken cancellation;
+
+    /** @param cancellation The run's token; aborts an upload in flight */
+    GeminiContextCache(GeminiApiClient api, CancellationToken cancellation) {
+        this.api = api;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public String create(String model, List<JSONObject> parts, long ttlSeconds) throws IOException, JSONException {
+        JSONArray partsArray = new JSONArray();
+        for (JSONObject part : parts)
+            partsArray.put(part);
+
+        JSONObject request = new JSONObject();
+        request.put("model", "models/" + model);
+        request.put("contents", new JSONArray().put(new JSONObject().put("role", "user").put("parts", partsArray)));
+        request.put("ttl", ttlSeconds + "s");
+
+        // e.g. "cachedContents/abc123"
+        return api.send("POST", "/v1beta/cachedContents", request, cancellation).getString("name");
+    }
+
+    @Override
+    public void delete(String handle) throws IOException {
+        try {
+            // Runs when the run ends, cancelled or not, so it is not tied to the run's token
+            api.send("DELETE", "/v1beta/" + handle, null, new CancellationToken());
+        } catch (GeminiApiException e) {
+            if (e.getStatusCode() != 404) // Already expired is fine
+                throw e;
+        } catch (JSONException ignored) {
+            // Deleted, the response body is not needed
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/** Streaming decoder for GenerateContentResponse bodies, one complete response or one SSE chunk.
+ * Pulls the first candidate's text and the usage metadata out of the token stream in a single pass,
+ * skipping safety ratings, citations and everything else without building a document for them.
+ */
+package com.example.a5minutechallenge.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+class GenerateContentDecoder {
+
+    private static final JsonFactory FACTORY = new JsonFactory(); // Thread-safe, recycles its buffers
+
+    /** Token counts of a response. */
+    static class Usage {
+        int promptTokens;
+        int candidatesTokens;
+        int totalTokens;
+
+        /** Reads usageMetadata that was already parsed, e.g. from a batch job. */
+        static Usage of(JSONObject usageMetadata) {
+            Usage usage = new Usage();
+            usage.promptTokens = usageMetadata.optInt("promptTokenCount", 0);
+            usage.candidatesTokens = usageMetadata.optInt("candidatesTokenCount", 0);
+            usage.totalTokens = usageMetadata.optInt("totalTokenCount", 0);
+            return usage;
+        }
+    }
+
+    static class Result {
+        /** Text parts of the first candidate, concatenated; null if it has none. */
+        final String text;
+        /** Null if the response carries no usageMetadata. */
+        final Usage usage;
+
+        Result(String text, Usage usage) {
+            this.text = text;
+            this.usage = usage;
+        }
+    }
+
+    private GenerateContentDecoder() {
+    }
+
+    static Result decode(Reader reader) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(reader)) {
+            return decode(parser);
+        }
+    }
+
+    static Result decode(String json) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            return decode(parser);
+        }
+    }
+
+    /**
+     * Syntax errors are thrown as malformed responses; IO failures of the
+     * underlying stream pass through unchanged.
+     */
+    private static Result decode(JsonParser parser) throws IOException {
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE,
+                        "Gemini response is not a JSON object");
+            }
+            StringBuilder text = null;
+            Usage usage = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("candidates".equals(name) && value == JsonToken.START_ARRAY) {
+                    text = readCandidates(parser);
+                } else if ("usageMetadata".equals(name) && value == JsonToken.START_OBJECT) {
+                    usage = readUsage(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Result(text != null ? text.toString() : null, usage);
+        } catch (JsonProcessingException e) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE,
+                    "Failed to parse Gemini response: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    /** Text of the first candidate; the others are skipped. */
+    private static StringBuilder readCandidates(JsonParser parser) throws IOException {
+        StringBuilder text = null;
+        boolean first = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null)
+                throw truncated(parser);
+            if (first && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("content".equals(name) && value == JsonToken.START_OBJECT) {
+                        text = readContent(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+        return text;
+    }
+
+    private static StringBuilder readContent(JsonParser parser) throws IOException {
+        StringBuilder text = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (!"parts".equals(name) || value != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null)
+                    throw truncated(parser);
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                String partText = null;
+                boolean thought = false;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken fieldValue = parser.nextToken();
+                    if ("text".equals(field) && fieldValue == JsonToken.VALUE_STRING) {
+                        partText = parser.getText();
+                    } else if ("thought".equals(field)) {
+                        thought = fieldValue == JsonToken.VALUE_TRUE;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (partText != null && !thought) {
+                    if (text == null)
+                        text = new StringBuilder(partText.length());
+                    text.append(partText);
+                }
+            }
+        }
+        return text;
+    }
+
+    private static Usage readUsage(JsonParser parser) throws IOException {
+        Usage usage = new Usage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            switch (name) {
+                case "promptTokenCount":
+                    usage.promptTokens = parser.getValueAsInt();
+                    break;
+                case "candidatesTokenCount":
+                    usage.candidatesTokens = parser.getValueAsInt();
+                    break;
+                case "totalTokenCount":
+                    usage.totalTokens = parser.getValueAsInt();
+                    break;
+                default:
+                    parser.skipChildren(); // e.g. promptTokensDetails
+            }
+        }
+        return usage;
+    }
+
+    private static GeminiApiException truncated(JsonParser parser) {
+        return new GeminiApiException(RetryPolicy.FailureClass.MALFORMED_RESPONSE,
+                "Gemini response ended early at " + parser.currentLocation());
+    }
+}
@@ -0,0 +1,13 @@
+/** Thrown when a generation run stops because its {@link CancellationToken} was cancelled.
+ * An InterruptedIOException, so the retry policy never retries it and it passes every IOException signature.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.io.InterruptedIOException;
+
+public class GenerationCancelledException extends InterruptedIOException {
+
+    public GenerationCancelledException() {
+        super("Generation cancelled");
+    }
+}
@@ -0,0 +1,43 @@
+/** State of one generation run, from extraction to the last challenge.
+ * The processor only keeps settings; everything a run builds up lives here and is passed through the
+ * pipeline, so a finished or cancelled run leaves nothing behind for the next one to trip over.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.util.List;
+
+class GenerationRun {
+
+    final CancellationToken cancellation;
+    final RetryPolicy retryPolicy; // Backoff budget per request, one retry cap for the whole run
+    final InlineImages images;
+    final SharedContexts sharedContexts;
+    final List<String> existingTopicTitles; // Topics the subject already has, null for a run over all files
+
+    volatile PageIndex pageIndex; // Built once the documents are extracted
+    volatile RunJournal journal; // null if the run is not journaled
+    volatile SharedContext corpusContext; // Created by the first stage that needs it, guarded by the run
+    volatile SharedContext guidelinesContext;
+    volatile int lastReportedProgress; // So breaker state changes can be reported in place
+
+    GenerationRun(CancellationToken cancellation, RetryPolicy retryPolicy, InlineImages images,
+            SharedContexts sharedContexts, List<String> existingTopicTitles) {
+        this.cancellation = cancellation;
+        this.retryPolicy = retryPolicy;
+        this.images = images;
+        this.sharedContexts = sharedContexts;
+        this.existingTopicTitles = existingTopicTitles;
+    }
+
+    /** The journaled value, or null if there is none or the run is not journaled. */
+    String journalGet(String key) {
+        RunJournal journal = this.journal;
+        return journal != null ? journal.get(key) : null;
+    }
+
+    void journalPut(String key, String value) {
+        RunJournal journal = this.journal;
+        if (journal != null)
+            journal.put(key, value);
+    }
+}
@@ -0,0 +1,182 @@
+/** Process-wide scheduler for Gemini generation work.
+ * All topics and challenges share one bounded worker pool and task queue, so the number of threads and
+ * concurrent HTTP calls stays fixed no matter how many topics Stage 1 returns.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GenerationScheduler {
+
+    private static final String TAG = "GenerationScheduler";
+    private static final int DEFAULT_MAX_CONCURRENCY = 16;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private static GenerationScheduler instance;
+    private static int configuredMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+    private final ThreadPoolExecutor executor;
+
+    private GenerationScheduler(int maxConcurrency) {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "GenerationScheduler-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, IDLE_THREAD_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        // Idle workers are released between runs and recreated on demand
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the shared scheduler, creating a new one if none exists yet or the
+     * previous one was shut down.
+     */
+    public static synchronized GenerationScheduler getInstance() {
+        if (instance == null || instance.executor.isShutdown()) {
+            instance = new GenerationScheduler(configuredMaxConcurrency);
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the concurrency ceiling. Applies to the running scheduler immediately;
+     * queued tasks are picked up as soon as workers are available.
+     */
+    public static synchronized void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        configuredMaxConcurrency = maxConcurrency;
+        if (instance != null && !instance.executor.isShutdown()) {
+            ThreadPoolExecutor executor = instance.executor;
+            // Order matters: core size may never exceed maximum size
+            if (maxConcurrency > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxConcurrency);
+                executor.setCorePoolSize(maxConcurrency);
+            } else {
+                executor.setCorePoolSize(maxConcurrency);
+                executor.setMaximumPoolSize(maxConcurrency);
+            }
+        }
+    }
+
+    public static synchronized int getMaxConcurrency() {
+        return configuredMaxConcurrency;
+    }
+
+    /**
+     * Shuts down the shared scheduler, waiting briefly for running tasks. The next
+     * call to {@link #getInstance()} creates a fresh scheduler.
+     */
+    public static void shutdown() {
+        GenerationScheduler current;
+        synchronized (GenerationScheduler.class) {
+            current = instance;
+            instance = null;
+        }
+        if (current == null)
+            return;
+
+        current.executor.shutdown();
+        try {
+            if (!current.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Tasks still running after shutdown timeout, interrupting");
+                current.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a task on the shared pool. The returned future completes with the
+     * task's result or exception. Tasks must not block on other scheduled tasks;
+     * chain them with thenCompose instead.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (future.isDone())
+                return; // Cancelled while queued
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Like {@link #submit(Callable)}, but tied to a run's cancellation token. On
+     * cancellation, queued tasks are removed from the queue and running tasks have
+     * their worker interrupted; either way the future fails with
+     * {@link GenerationCancelledException}.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task, CancellationToken cancellation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CancellableTask<T> runnable = new CancellableTask<>(task, cancellation, future);
+        runnable.queued = cancellation.onCancel(() -> {
+            executor.remove(runnable);
+            future.completeExceptionally(new GenerationCancelledException());
+        });
+        if (!future.isDone()) {
+            executor.execute(runnable);
+        }
+        return future;
+    }
+
+    private static class CancellableTask<T> implements Runnable {
+        final Callable<T> task;
+        final CancellationToken cancellation;
+        final CompletableFuture<T> future;
+        volatile CancellationToken.Registration queued;
+
+        CancellableTask(Callable<T> task, CancellationToken cancellation, CompletableFuture<T> future) {
+            this.task = task;
+            this.cancellation = cancellation;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            if (queued != null)
+                queued.close();
+            if (future.isDone())
+                return; // Cancelled while queued
+
+            Thread worker = Thread.currentThread();
+            try (CancellationToken.Registration running = cancellation.onCancel(worker::interrupt)) {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(cancellation.isCancelled() ? new GenerationCancelledException() : t);
+            } finally {
+                // Do not hand a cancellation interrupt on to the next task
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /** Number of tasks waiting for a worker. */
+    public int getQueuedTaskCount() {
+        return executor.getQueue().size();
+    }
+
+    /** Number of tasks currently executing. */
+    public int getActiveTaskCount() {
+        return executor.getActiveCount();
+    }
+}
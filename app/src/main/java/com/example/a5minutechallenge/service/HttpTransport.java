@@ -0,0 +1,71 @@
+/** HTTP layer under the Gemini requests of {@link GeminiContentProcessor}.
+ * Implementations keep connections alive between calls so the TCP and TLS handshakes are paid once per
+ * connection rather than once per request. The default uses OkHttp with a connection pool and HTTP/2;
+ * {@link UrlConnectionTransport} is the platform fallback, and tests can plug in a local stand-in.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface HttpTransport {
+
+    /** Writes a request body. Must not close the stream. */
+    interface RequestBody {
+        /** Length in bytes, or -1 if not known up front. */
+        long contentLength();
+
+        /** Content-Encoding of the written bytes, e.g. "gzip", or null. */
+        default String contentEncoding() {
+            return null;
+        }
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** One request, prepared but not sent yet. */
+    interface Call {
+        /** Sends the request and waits for the response headers. */
+        Response execute() throws IOException;
+
+        /** Aborts the call from any thread; a blocked connect, write or read fails at once. */
+        void cancel();
+    }
+
+    /**
+     * Response of a call. Closing it after the body was read completely hands the
+     * connection back to the pool.
+     */
+    interface Response extends Closeable {
+        int code();
+
+        String header(String name);
+
+        /** Response body, or the error body for status codes of 400 and above. Never null. */
+        InputStream body() throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Prepares a request.
+     *
+     * @param method      HTTP method, e.g. "GET"
+     * @param contentType Content-Type of the body, or null without one
+     * @param body        Request body, or null to send none, e.g. for GET and DELETE
+     */
+    Call newCall(String method, String url, String contentType, RequestBody body);
+
+    default Call newPost(String url, String contentType, RequestBody body) {
+        return newCall("POST", url, contentType, body);
+    }
+
+    /**
+     * Opens a connection to the host ahead of the first request, in the
+     * background, so the first call of a run does not pay for the handshake.
+     */
+    void warmUp(String url);
+}
@@ -0,0 +1,291 @@
+/** Shrinks uploaded images before they are inlined into requests.
+ * An image is decoded with a power-of-two sample size so a 50 MB photo never needs its full resolution in
+ * the heap, scaled down to a maximum pixel count, turned upright from its EXIF orientation and re-encoded
+ * as WebP (JPEG if that fails) at a target quality. Results are kept on disk by source hash and settings,
+ * so later runs and cache hits reuse them without decoding again; so is the finding that an image is best
+ * sent as is. Images handed to a run are pinned until it releases them, eviction never deletes them.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.a5minutechallenge.util.fileutil.fileutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class ImagePreprocessor {
+
+    private static final String TAG = "ImagePreprocessor";
+    private static final long STALE_TEMP_FILE_MS = 60 * 60 * 1000; // 1 hour
+    private static final long SMALL_IMAGE_BYTES = 256 * 1024; // Sent as is when also within maxPixels
+    // Full decodes are the heap peak, one at a time keeps it at a single bitmap
+    private static final Object DECODE_LOCK = new Object();
+    // Prepared images in use by live runs, with their use counts; guarded by the class, like eviction
+    private static final Map<File, Integer> PINNED = new HashMap<>();
+
+    /** Image ready to be inlined. */
+    static class Prepared {
+        final File file;
+        final String mimeType;
+        final String hash; // SHA-256 of the file's bytes
+        final int width;
+        final int height;
+
+        Prepared(File file, String mimeType, String hash, int width, int height) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final File cacheDir;
+    private final long maxPixels;
+    private final int quality;
+    private final long maxBytes;
+
+    /**
+     * @param maxPixels Pixel count the images are scaled down to
+     * @param quality   Encoder quality, 0 to 100
+     * @param maxBytes  Byte budget of the prepared images on disk
+     */
+    ImagePreprocessor(File cacheDir, long maxPixels, int quality, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxPixels = maxPixels;
+        this.quality = quality;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the prepared form of the image, or null if it cannot be decoded
+     * or written, in which case the original should be sent. The original is
+     * also returned as is when re-encoding would not make it smaller. A prepared
+     * image is pinned until it is passed to {@link #release}.
+     *
+     * @param mimeType   MIME type of the source
+     * @param sourceHash SHA-256 of the source file
+     */
+    Prepared prepare(File source, String mimeType, String sourceHash) {
+        try {
+            Prepared cached = loadPrepared(sourceHash);
+            if (cached != null)
+                return cached;
+
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(source.getPath(), bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                Log.w(TAG, "Cannot decode " + source.getName() + ", sending it unchanged");
+                return null;
+            }
+            int rotation = rotationOf(source);
+            if ((long) bounds.outWidth * bounds.outHeight <= maxPixels && rotation == 0
+                    && source.length() <= SMALL_IMAGE_BYTES) {
+                // Already small in pixels and bytes, re-encoding would only cost quality
+                return new Prepared(source, mimeType, sourceHash, bounds.outWidth, bounds.outHeight);
+            }
+            File original = entryFile(sourceHash, "original");
+            if (original.isFile()) {
+                // An earlier run found that re-encoding does not make it smaller
+                original.setLastModified(System.currentTimeMillis());
+                return new Prepared(source, mimeType, sourceHash, bounds.outWidth, bounds.outHeight);
+            }
+
+            File target;
+            synchronized (DECODE_LOCK) {
+                target = encode(source, bounds, rotation, sourceHash);
+            }
+            if (target == null)
+                return null;
+            if (target.length() >= source.length() && rotation == 0
+                    && (long) bounds.outWidth * bounds.outHeight <= maxPixels) {
+                target.delete();
+                if (!original.createNewFile() && !original.isFile())
+                    Log.w(TAG, "Could not remember to send " + source.getName() + " unchanged");
+                return new Prepared(source, mimeType, sourceHash, bounds.outWidth, bounds.outHeight);
+            }
+            Prepared prepared = loadPrepared(sourceHash);
+            if (prepared != null) {
+                Log.i(TAG, String.format("Prepared %s: %d -> %d bytes, %dx%d", source.getName(), source.length(),
+                        prepared.file.length(), prepared.width, prepared.height));
+            }
+            // Only now, so the new image is pinned before it could be evicted
+            evictToBudget();
+            return prepared;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to prepare " + source.getName() + ", sending it unchanged: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Decodes, scales, rotates and writes the image; null if it cannot be decoded. */
+    private File encode(File source, BitmapFactory.Options bounds, int rotation, String sourceHash)
+            throws IOException {
+        // Largest power-of-two sample that still leaves at least maxPixels to scale down from
+        int sample = 1;
+        while ((long) (bounds.outWidth / (sample * 2)) * (bounds.outHeight / (sample * 2)) >= maxPixels)
+            sample *= 2;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeFile(source.getPath(), options);
+        if (bitmap == null)
+            return null;
+
+        try {
+            long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+            float scale = pixels > maxPixels ? (float) Math.sqrt((double) maxPixels / pixels) : 1f;
+            if (scale < 1f || rotation != 0) {
+                Matrix matrix = new Matrix();
+                matrix.postScale(scale, scale);
+                matrix.postRotate(rotation);
+                Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix,
+                        true);
+                if (transformed != bitmap) {
+                    bitmap.recycle();
+                    bitmap = transformed;
+                }
+            }
+
+            if (!cacheDir.exists() && !cacheDir.mkdirs())
+                throw new IOException("Could not create " + cacheDir);
+            File webp = entryFile(sourceHash, "webp");
+            if (write(bitmap, webpFormat(), webp))
+                return webp;
+            File jpeg = entryFile(sourceHash, "jpg");
+            if (write(bitmap, Bitmap.CompressFormat.JPEG, jpeg))
+                return jpeg;
+            return null;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /** Writes atomically so a crash never leaves a truncated image behind; false if it could not be written. */
+    private boolean write(Bitmap bitmap, Bitmap.CompressFormat format, File target) {
+        try {
+            fileutil.writeAtomically(target, out -> {
+                if (!bitmap.compress(format, quality, out))
+                    throw new IOException("Encoder rejected " + format);
+            });
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + target.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** The prepared image of the source under the current settings, pinned, or null. */
+    private Prepared loadPrepared(String sourceHash) throws IOException {
+        for (String extension : new String[] { "webp", "jpg" }) {
+            File file = entryFile(sourceHash, extension);
+            if (!pin(file))
+                continue;
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                unpin(file);
+                file.delete();
+                continue;
+            }
+            file.setLastModified(System.currentTimeMillis()); // Recently used, evicted last
+            try {
+                return new Prepared(file, "webp".equals(extension) ? "image/webp" : "image/jpeg",
+                        fileutil.hashFile(file), bounds.outWidth, bounds.outHeight);
+            } catch (IOException e) {
+                unpin(file);
+                throw e;
+            }
+        }
+        return null;
+    }
+
+    /** Lets eviction delete the prepared image again once no run uses it; ignores originals. */
+    static void release(Prepared prepared) {
+        unpin(prepared.file);
+    }
+
+    /** Pins the file if it exists; atomic with eviction, which holds the same lock. */
+    private static boolean pin(File file) {
+        synchronized (ImagePreprocessor.class) {
+            if (!file.isFile())
+                return false;
+            PINNED.merge(file, 1, Integer::sum);
+            return true;
+        }
+    }
+
+    private static void unpin(File file) {
+        synchronized (ImagePreprocessor.class) {
+            PINNED.computeIfPresent(file, (f, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    private File entryFile(String sourceHash, String extension) {
+        return new File(cacheDir, sourceHash + "-" + maxPixels + "-q" + quality + "." + extension);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        // Before API 30 WEBP is lossy for any quality below 100
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.WEBP;
+    }
+
+    /** Clockwise rotation that turns the image upright, from its EXIF orientation. */
+    private static int rotationOf(File source) {
+        try {
+            int orientation = new ExifInterface(source.getPath()).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            return 0; // No readable EXIF, e.g. a PNG
+        }
+    }
+
+    /**
+     * Deletes the least recently used prepared images until the directory fits
+     * its budget, skipping those pinned by a live run.
+     */
+    private void evictToBudget() {
+        synchronized (ImagePreprocessor.class) {
+            File[] files = cacheDir.listFiles();
+            if (files == null)
+                return;
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            long totalBytes = 0;
+            for (File f : files)
+                totalBytes += f.length();
+            for (File f : files) {
+                if (totalBytes <= maxBytes)
+                    break;
+                if (f.getName().endsWith(".tmp") && f.lastModified() > System.currentTimeMillis() - STALE_TEMP_FILE_MS)
+                    continue; // Another thread is still writing it
+                if (PINNED.containsKey(f))
+                    continue;
+                totalBytes -= f.length();
+                f.delete();
+            }
+        }
+    }
+}
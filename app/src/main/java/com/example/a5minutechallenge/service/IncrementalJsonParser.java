@@ -0,0 +1,131 @@
+/** Incremental parser for JSON text that arrives in chunks, e.g. from a streaming Gemini response.
+ * Watches one array (either the top-level array or the array under a key of the top-level object) and
+ * emits every object element as soon as its closing brace arrives, while later elements are still being
+ * generated. Text before the first '{' or '[' (such as a markdown fence) is ignored.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class IncrementalJsonParser {
+
+    /** Receives each completed element of the watched array, in order. */
+    public interface ElementListener {
+        void onElement(int index, JSONObject element) throws Exception;
+    }
+
+    private final String arrayKey;
+    private final ElementListener listener;
+    private final StringBuilder text = new StringBuilder();
+
+    private int scanPosition = 0;
+    private boolean started = false;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private int stringStart = -1;
+    private String lastString = null;
+    private String currentKey = null;
+    private int arrayDepth = -1; // Depth inside the watched array, -1 until it is found
+    private int elementStart = -1;
+    private int elementCount = 0;
+
+    /**
+     * @param arrayKey Key of the watched array in the top-level object, or null to
+     *                 watch a top-level array
+     * @param listener Receives each completed object element
+     */
+    public IncrementalJsonParser(String arrayKey, ElementListener listener) {
+        this.arrayKey = arrayKey;
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a chunk of text and emits every element completed by it. Exceptions
+     * thrown by the listener propagate to the caller, which can use them to abort
+     * the stream.
+     */
+    public void feed(CharSequence chunk) throws Exception {
+        text.append(chunk);
+        for (; scanPosition < text.length(); scanPosition++) {
+            char c = text.charAt(scanPosition);
+
+            if (!started) {
+                if (c != '{' && c != '[')
+                    continue;
+                started = true;
+                if (c == '[' && arrayKey == null) {
+                    arrayDepth = 1;
+                }
+            }
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 1) {
+                        lastString = text.substring(stringStart + 1, scanPosition);
+                    }
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                    inString = true;
+                    stringStart = scanPosition;
+                    break;
+                case ':':
+                    if (depth == 1) {
+                        currentKey = lastString;
+                    }
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    if (c == '[' && depth == 2 && arrayDepth < 0 && arrayKey != null && arrayKey.equals(currentKey)) {
+                        arrayDepth = 2;
+                    } else if (c == '{' && arrayDepth > 0 && depth == arrayDepth + 1) {
+                        elementStart = scanPosition;
+                    }
+                    break;
+                case '}':
+                case ']':
+                    if (c == '}' && arrayDepth > 0 && depth == arrayDepth + 1 && elementStart >= 0) {
+                        emit(text.substring(elementStart, scanPosition + 1));
+                        elementStart = -1;
+                    } else if (c == ']' && depth == arrayDepth) {
+                        arrayDepth = 0; // Watched array closed, nothing more to emit
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void emit(String elementText) throws Exception {
+        JSONObject element;
+        try {
+            element = ModelJsonReader.readObject(elementText);
+        } catch (JSONException e) {
+            throw new JSONException("Malformed streamed element " + elementCount + ": " + e.getMessage());
+        }
+        listener.onElement(elementCount++, element);
+    }
+
+    /** All text fed so far. */
+    public String getText() {
+        return text.toString();
+    }
+
+    /** Number of elements emitted so far. */
+    public int getElementCount() {
+        return elementCount;
+    }
+}
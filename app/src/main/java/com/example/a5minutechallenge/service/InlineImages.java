@@ -0,0 +1,102 @@
+/** Images of one generation run, staged for inlining into requests.
+ * Every image is registered under its content hash, after the preprocessor shrank it if one is set, and
+ * prompts refer to it by an inline_file part. Streamed request bodies read the registered file while they
+ * are written; APIs that take the whole JSON document get the parts materialized as base64 inline_data.
+ * Prepared images stay pinned against eviction until the run releases them.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Base64;
+
+import com.example.a5minutechallenge.util.fileutil.fileutil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class InlineImages {
+
+    private static final int IMAGE_TILE_TOKENS = 258;
+    private static final int IMAGE_TILE_SIZE = 768; // Larger images are billed per tile of this size
+
+    private final ImagePreprocessor preprocessor;
+    // Image files by content hash, streamed into requests from their inline_file parts
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private final List<ImagePreprocessor.Prepared> prepared = Collections.synchronizedList(new ArrayList<>());
+
+    /** @param preprocessor Shrinks images before they are staged, or null to send them as uploaded */
+    InlineImages(ImagePreprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+    }
+
+    /**
+     * Stages the image and returns the part referring to it by content hash.
+     * The image is shrunk by the preprocessor first, if there is one; its data
+     * is only read and base64-encoded when a request carrying the part is
+     * written.
+     *
+     * @param hash Content hash of the file, or null to compute it
+     */
+    JSONObject stage(String mimeType, File file, String hash) throws IOException, JSONException {
+        if (hash == null)
+            hash = fileutil.hashFile(file);
+        ImagePreprocessor.Prepared image = preprocessor != null ? preprocessor.prepare(file, mimeType, hash) : null;
+        if (image == null) {
+            files.put(hash, file);
+            return RequestBodyWriter.inlineFilePart(mimeType, hash, GeminiContentProcessor.IMAGE_TOKEN_ESTIMATE);
+        }
+        prepared.add(image);
+        files.put(image.hash, image.file);
+        return RequestBodyWriter.inlineFilePart(image.mimeType, image.hash, estimateTokens(image.width, image.height));
+    }
+
+    /** Unpins the prepared images once the run no longer sends them. */
+    void release() {
+        synchronized (prepared) {
+            for (ImagePreprocessor.Prepared image : prepared)
+                ImagePreprocessor.release(image);
+            prepared.clear();
+        }
+    }
+
+    /** The staged files by content hash, for {@link RequestBodyWriter}. */
+    Map<String, File> files() {
+        return files;
+    }
+
+    /** Replaces inline_file parts with inline_data for APIs that take the JSON document. */
+    List<JSONObject> materialize(List<JSONObject> parts) throws IOException, JSONException {
+        List<JSONObject> materialized = new ArrayList<>(parts.size());
+        for (JSONObject part : parts) {
+            JSONObject ref = part.optJSONObject(RequestBodyWriter.INLINE_FILE);
+            if (ref == null) {
+                materialized.add(part);
+                continue;
+            }
+            File file = files.get(ref.getString("sha256"));
+            if (file == null)
+                throw new IOException("Image for inline part is not registered: " + ref.getString("sha256"));
+            JSONObject inlineData = new JSONObject()
+                    .put("mime_type", ref.getString("mime_type"))
+                    .put("data", Base64.encodeToString(fileutil.readFile(file), Base64.NO_WRAP));
+            materialized.add(new JSONObject().put("inline_data", inlineData));
+        }
+        return materialized;
+    }
+
+    /** Images up to 384px on both sides are one tile, larger ones are cut into 768px tiles. */
+    private static int estimateTokens(int width, int height) {
+        if (width <= IMAGE_TILE_SIZE / 2 && height <= IMAGE_TILE_SIZE / 2)
+            return IMAGE_TILE_TOKENS;
+        int columns = (width + IMAGE_TILE_SIZE - 1) / IMAGE_TILE_SIZE;
+        int rows = (height + IMAGE_TILE_SIZE - 1) / IMAGE_TILE_SIZE;
+        return columns * rows * IMAGE_TILE_TOKENS;
+    }
+}
@@ -0,0 +1,122 @@
+/** Lenient reader for the JSON the model writes into its response text.
+ * Builds the org.json tree straight from a streaming parse that accepts what models commonly get wrong:
+ * markdown fences or prose around the value, trailing commas, comments, single quotes and raw control
+ * characters inside strings. Only the first complete value is read; anything after it is ignored.
+ */
+package com.example.a5minutechallenge.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+class ModelJsonReader {
+
+    private static final JsonFactory FACTORY = JsonFactory.builder()
+            .enable(JsonReadFeature.ALLOW_TRAILING_COMMA)
+            .enable(JsonReadFeature.ALLOW_JAVA_COMMENTS)
+            .enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)
+            .enable(JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS)
+            .enable(JsonReadFeature.ALLOW_BACKSLASH_ESCAPING_ANY_CHARACTER)
+            .build();
+
+    private ModelJsonReader() {
+    }
+
+    /**
+     * The text from the first '{' or '[' to the last '}' or ']', e.g. without
+     * the markdown fence around it. Returns the trimmed text if it has no such
+     * span.
+     */
+    static String extractValue(String text) {
+        int start = valueStart(text);
+        int end = Math.max(text.lastIndexOf('}'), text.lastIndexOf(']'));
+        if (start < 0 || end < start)
+            return text.trim();
+        return start == 0 && end == text.length() - 1 ? text : text.substring(start, end + 1);
+    }
+
+    static JSONObject readObject(String text) throws JSONException {
+        Object value = read(text);
+        if (!(value instanceof JSONObject))
+            throw new JSONException("Expected a JSON object in the model response");
+        return (JSONObject) value;
+    }
+
+    static JSONArray readArray(String text) throws JSONException {
+        Object value = read(text);
+        if (!(value instanceof JSONArray))
+            throw new JSONException("Expected a JSON array in the model response");
+        return (JSONArray) value;
+    }
+
+    /** Reads the first object or array in the text. */
+    static Object read(String text) throws JSONException {
+        int start = valueStart(text);
+        if (start < 0)
+            throw new JSONException("No JSON value in the model response");
+        StringReader reader = new StringReader(text);
+        try {
+            reader.skip(start);
+            try (JsonParser parser = FACTORY.createParser(reader)) {
+                return readValue(parser, parser.nextToken());
+            }
+        } catch (IOException e) {
+            throw new JSONException("Malformed JSON in the model response: " + e.getMessage());
+        }
+    }
+
+    private static int valueStart(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{' || c == '[')
+                return i;
+        }
+        return -1;
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException, JSONException {
+        if (token == null)
+            throw new JSONException("Truncated JSON in the model response");
+        switch (token) {
+            case START_OBJECT: {
+                JSONObject object = new JSONObject();
+                while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    object.put(name, readValue(parser, parser.nextToken()));
+                }
+                if (token != JsonToken.END_OBJECT)
+                    throw new JSONException("Truncated JSON in the model response");
+                return object;
+            }
+            case START_ARRAY: {
+                JSONArray array = new JSONArray();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    array.put(readValue(parser, token));
+                }
+                return array;
+            }
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue(); // Integer, Long or BigInteger by magnitude
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected " + token + " in the model response");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/** {@link HttpTransport} on OkHttp, the default.
+ * One client per process with a pool of keep-alive connections. With HTTP/2 the concurrent requests of
+ * a run are multiplexed over a single connection to the Gemini host; without it each concurrent request
+ * gets its own pooled HTTP/1.1 connection.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okio.BufferedSink;
+
+public class OkHttpTransport implements HttpTransport {
+
+    private static final String TAG = "OkHttpTransport";
+    private static final int MAX_IDLE_CONNECTIONS = 8; // Only HTTP/1.1 needs more than one
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private final OkHttpClient client;
+
+    /**
+     * @param http2 Negotiates HTTP/2 where the server supports it; otherwise
+     *              every connection uses HTTP/1.1
+     */
+    public OkHttpTransport(boolean http2, int connectTimeoutMs, int readTimeoutMs) {
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true) // Only for stale pooled connections, before anything was sent
+                .build();
+    }
+
+    @Override
+    public Call newCall(String method, String url, String contentType, RequestBody body) {
+        okhttp3.RequestBody requestBody = null;
+        if (body != null) {
+            MediaType mediaType = MediaType.get(contentType);
+            requestBody = new okhttp3.RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return mediaType;
+                }
+
+                @Override
+                public long contentLength() {
+                    return body.contentLength();
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    body.writeTo(sink.outputStream());
+                }
+            };
+        }
+        Request.Builder request = new Request.Builder().url(url).method(method, requestBody);
+        if (body != null && body.contentEncoding() != null)
+            request.header("Content-Encoding", body.contentEncoding());
+        okhttp3.Call call = client.newCall(request.build());
+
+        return new Call() {
+            @Override
+            public Response execute() throws IOException {
+                okhttp3.Response response = call.execute();
+                return new Response() {
+                    @Override
+                    public int code() {
+                        return response.code();
+                    }
+
+                    @Override
+                    public String header(String name) {
+                        return response.header(name);
+                    }
+
+                    @Override
+                    public InputStream body() {
+                        return response.body().byteStream();
+                    }
+
+                    @Override
+                    public void close() {
+                        response.close();
+                    }
+                };
+            }
+
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void warmUp(String url) {
+        // Any answer will do, the connection stays in the pool afterwards
+        client.newCall(new Request.Builder().url(url).head().build()).enqueue(new Callback() {
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response response) {
+                response.close();
+            }
+
+            @Override
+            public void onFailure(okhttp3.Call call, IOException e) {
+                Log.d(TAG, "Warm-up of " + url + " failed: " + e.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,108 @@
+/** In-memory inverted index over the extracted pages of one generation run.
+ * Built once after extraction and queried with BM25 to find the pages most relevant to a topic or
+ * challenge. Image documents have no text and are not indexed.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+class PageIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MIN_TERM_LENGTH = 3;
+
+    /** Restricts scoring to some pages, e.g. the ranges a topic refers to. */
+    interface PageFilter {
+        boolean accept(String fileName, int pageNumber);
+    }
+
+    private final List<GeminiContentProcessor.DocumentContent> pageDocuments = new ArrayList<>();
+    private final List<GeminiContentProcessor.PageContent> pages = new ArrayList<>();
+    private final Map<String, List<int[]>> postings = new HashMap<>(); // term -> (page id, term frequency)
+    private final int[] pageLengths;
+    private final double averagePageLength;
+
+    PageIndex(List<GeminiContentProcessor.DocumentContent> documents) {
+        for (GeminiContentProcessor.DocumentContent doc : documents) {
+            if (doc.isImage)
+                continue;
+            for (GeminiContentProcessor.PageContent page : doc.pages) {
+                pageDocuments.add(doc);
+                pages.add(page);
+            }
+        }
+
+        pageLengths = new int[pages.size()];
+        long totalLength = 0;
+        for (int id = 0; id < pages.size(); id++) {
+            List<String> terms = terms(pages.get(id).text);
+            pageLengths[id] = terms.size();
+            totalLength += terms.size();
+
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String term : terms)
+                frequencies.merge(term, 1, Integer::sum);
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+                        .add(new int[] { id, entry.getValue() });
+            }
+        }
+        averagePageLength = pages.isEmpty() ? 0 : (double) totalLength / pages.size();
+    }
+
+    int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * BM25 score of every page that shares at least one term with the query and
+     * passes the filter. Pages without a match are absent from the map.
+     */
+    Map<GeminiContentProcessor.PageContent, Double> score(String query, PageFilter filter) {
+        double[] scores = new double[pages.size()];
+        boolean[] matched = new boolean[pages.size()];
+        int pageCount = pages.size();
+
+        for (String term : new LinkedHashSet<>(terms(query))) {
+            List<int[]> termPostings = postings.get(term);
+            if (termPostings == null)
+                continue;
+            double idf = Math.log(1 + (pageCount - termPostings.size() + 0.5) / (termPostings.size() + 0.5));
+            for (int[] posting : termPostings) {
+                int id = posting[0];
+                int tf = posting[1];
+                double norm = K1 * (1 - B + B * pageLengths[id] / averagePageLength);
+                scores[id] += idf * tf * (K1 + 1) / (tf + norm);
+                matched[id] = true;
+            }
+        }
+
+        Map<GeminiContentProcessor.PageContent, Double> result = new IdentityHashMap<>();
+        for (int id = 0; id < pageCount; id++) {
+            if (matched[id] && (filter == null || filter.accept(pageDocuments.get(id).fileName,
+                    pages.get(id).pageNumber))) {
+                result.put(pages.get(id), scores[id]);
+            }
+        }
+        return result;
+    }
+
+    /** Lower-cased letter/digit runs of at least three characters. */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null)
+            return terms;
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() >= MIN_TERM_LENGTH)
+                terms.add(token);
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,62 @@
+/** Single-pass PDF text extractor that reports the text of every page as soon as the page is finished.
+ * Replaces the old per-page getText() loop, which re-walked the whole page tree for every page.
+ */
+package com.example.a5minutechallenge.service;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+class PdfPageExtractor extends PDFTextStripper {
+
+    /**
+     * Callback invoked at every page boundary with the trimmed text of that page.
+     * Pages without any text are not reported.
+     */
+    interface PageListener {
+        void onPage(GeminiContentProcessor.PageContent page) throws IOException;
+    }
+
+    private final StringWriter pageBuffer = new StringWriter();
+    private PageListener listener;
+
+    PdfPageExtractor() throws IOException {
+        super();
+    }
+
+    /**
+     * Streams the document once and emits one PageContent per non-empty page,
+     * in page order.
+     */
+    void extract(PDDocument document, PageListener listener) throws IOException {
+        this.listener = listener;
+        setStartPage(1);
+        setEndPage(Integer.MAX_VALUE);
+        try {
+            writeText(document, pageBuffer);
+        } finally {
+            this.listener = null;
+            pageBuffer.getBuffer().setLength(0);
+        }
+    }
+
+    @Override
+    protected void startPage(PDPage page) throws IOException {
+        pageBuffer.getBuffer().setLength(0);
+        super.startPage(page);
+    }
+
+    @Override
+    protected void endPage(PDPage page) throws IOException {
+        super.endPage(page);
+        // Same trimming as the former getText() per page, so page text stays identical
+        String text = pageBuffer.toString().trim();
+        pageBuffer.getBuffer().setLength(0);
+        if (!text.isEmpty() && listener != null) {
+            listener.onPage(new GeminiContentProcessor.PageContent(getCurrentPageNo(), text));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/** Chooses how a generation run is executed, based on the size of the extracted documents.
+ * Small inputs fit in a single request that returns topics, challenges and containers at once (fused
+ * plan). Larger inputs go through the staged pipeline: structure, topics, outlines, then content per
+ * challenge.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.util.List;
+
+class PipelinePlanner {
+
+    enum Plan {
+        FUSED, MULTI_STAGE
+    }
+
+    /** The chosen plan and the input size it was based on, for the run log. */
+    static class Decision {
+        final Plan plan;
+        final int pageCount;
+        final long estimatedTokens;
+
+        Decision(Plan plan, int pageCount, long estimatedTokens) {
+            this.plan = plan;
+            this.pageCount = pageCount;
+            this.estimatedTokens = estimatedTokens;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d pages, ~%d tokens)", plan, pageCount, estimatedTokens);
+        }
+    }
+
+    private final long maxFusedTokens;
+    private final int maxFusedPages;
+
+    /**
+     * @param maxFusedTokens Largest estimated input that still uses the fused plan
+     * @param maxFusedPages  Most pages (images count as one) for the fused plan
+     */
+    PipelinePlanner(long maxFusedTokens, int maxFusedPages) {
+        this.maxFusedTokens = maxFusedTokens;
+        this.maxFusedPages = maxFusedPages;
+    }
+
+    Decision choose(List<GeminiContentProcessor.DocumentContent> documents) {
+        int pageCount = 0;
+        long tokens = 0;
+        for (GeminiContentProcessor.DocumentContent doc : documents) {
+            if (doc.isImage) {
+                pageCount++;
+                tokens += GeminiContentProcessor.imageTokens(doc);
+            } else {
+                for (GeminiContentProcessor.PageContent page : doc.pages) {
+                    pageCount++;
+                    tokens += page.text.length() / GeminiContentProcessor.CHARS_PER_TOKEN;
+                }
+            }
+        }
+
+        Plan plan = tokens <= maxFusedTokens && pageCount <= maxFusedPages ? Plan.FUSED : Plan.MULTI_STAGE;
+        return new Decision(plan, pageCount, tokens);
+    }
+}
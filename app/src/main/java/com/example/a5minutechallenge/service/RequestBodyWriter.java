@@ -0,0 +1,326 @@
+/** Streams a GenerateContent request body straight to the connection instead of building the JSON text.
+ * Prompt parts are escaped and UTF-8 encoded through one small buffer. Images are referenced by an
+ * internal "inline_file" part and base64-encoded from the file while the body is written, so their data
+ * never sits in the heap as a string. Parts shared by many requests (e.g. the document corpus) are
+ * encoded once into a {@link Fragment} and copied as bytes from then on.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+class RequestBodyWriter {
+
+    /** Part key of an image the writer streams from its file. Never sent as is. */
+    static final String INLINE_FILE = "inline_file";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int BASE64_CHUNK = 6144; // Multiple of 3, encodes without padding in between
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /** Pre-encoded parts: byte runs of JSON text, with the streamed images in between. */
+    static class Fragment {
+        private final List<Object> segments; // byte[] or JSONObject (inline_file)
+
+        private Fragment(List<Object> segments) {
+            this.segments = segments;
+        }
+    }
+
+    private final Map<String, File> inlineFiles;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    /**
+     * @param inlineFiles Image files by the content hash their inline_file
+     *                    parts refer to
+     */
+    RequestBodyWriter(Map<String, File> inlineFiles, OutputStream out) {
+        this.inlineFiles = inlineFiles;
+        this.out = out;
+    }
+
+    /**
+     * Builds an inline_file part for an image whose file is registered under the
+     * hash. The token estimate travels with the part for request sizing and is
+     * not sent.
+     */
+    static JSONObject inlineFilePart(String mimeType, String sha256, int tokens) throws JSONException {
+        return new JSONObject().put(INLINE_FILE,
+                new JSONObject().put("mime_type", mimeType).put("sha256", sha256).put("tokens", tokens));
+    }
+
+    /**
+     * Encodes the parts once, comma separated, for {@link #writeRequest}. Image
+     * references stay references and are streamed on every write.
+     */
+    static Fragment encode(List<JSONObject> parts) throws IOException, JSONException {
+        List<Object> segments = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RequestBodyWriter writer = new RequestBodyWriter(null, bytes);
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0)
+                writer.writeRaw(",");
+            JSONObject part = parts.get(i);
+            if (part.has(INLINE_FILE)) {
+                writer.flush();
+                segments.add(bytes.toByteArray());
+                bytes.reset();
+                segments.add(part);
+            } else {
+                writer.writeValue(part);
+            }
+        }
+        writer.flush();
+        segments.add(bytes.toByteArray());
+        return new Fragment(segments);
+    }
+
+    /**
+     * Writes {"contents":[{"role":"user","parts":[shared..., parts...]}],
+     * "cachedContent":..., "generationConfig":...} and flushes.
+     *
+     * @param shared        Pre-encoded parts sent first, or null
+     * @param cachedContent Handle of a cached context, or null
+     */
+    void writeRequest(Fragment shared, List<JSONObject> parts, String cachedContent, JSONObject generationConfig)
+            throws IOException, JSONException {
+        writeRaw("{\"contents\":[{\"role\":\"user\",\"parts\":[");
+        boolean first = true;
+        if (shared != null) {
+            for (Object segment : shared.segments) {
+                if (segment instanceof byte[]) {
+                    writeBytes((byte[]) segment);
+                } else {
+                    writePart((JSONObject) segment);
+                }
+            }
+            first = false;
+        }
+        for (JSONObject part : parts) {
+            if (!first)
+                writeRaw(",");
+            first = false;
+            writePart(part);
+        }
+        writeRaw("]}]");
+        if (cachedContent != null) {
+            writeRaw(",\"cachedContent\":");
+            writeString(cachedContent);
+        }
+        writeRaw(",\"generationConfig\":");
+        writeValue(generationConfig);
+        writeRaw("}");
+        flush();
+    }
+
+    private void writePart(JSONObject part) throws IOException, JSONException {
+        JSONObject file = part.optJSONObject(INLINE_FILE);
+        if (file == null) {
+            writeValue(part);
+            return;
+        }
+        File image = inlineFiles != null ? inlineFiles.get(file.getString("sha256")) : null;
+        if (image == null) {
+            throw new GeminiApiException(RetryPolicy.FailureClass.FATAL,
+                    "Image for inline part is not registered: " + file.getString("sha256"));
+        }
+        writeRaw("{\"inline_data\":{\"mime_type\":");
+        writeString(file.getString("mime_type"));
+        writeRaw(",\"data\":\"");
+        writeBase64(image);
+        writeRaw("\"}}");
+    }
+
+    /**
+     * Base64 of the file, encoded chunk by chunk as it is read. Failing to read the
+     * file is a local, fatal failure; only failures writing to out are the
+     * connection's.
+     */
+    private void writeBase64(File file) throws IOException {
+        byte[] chunk = new byte[BASE64_CHUNK];
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            throw unreadable(file, e);
+        }
+        try (in) {
+            int filled = 0;
+            while (true) {
+                int read;
+                try {
+                    read = in.read(chunk, filled, chunk.length - filled);
+                } catch (IOException e) {
+                    throw unreadable(file, e);
+                }
+                if (read == -1)
+                    break;
+                filled += read;
+                if (filled == chunk.length) {
+                    writeBytes(Base64.encode(chunk, 0, filled, Base64.NO_WRAP));
+                    filled = 0;
+                }
+            }
+            if (filled > 0) {
+                writeBytes(Base64.encode(chunk, 0, filled, Base64.NO_WRAP));
+            }
+        }
+    }
+
+    private static GeminiApiException unreadable(File file, IOException e) {
+        return new GeminiApiException(RetryPolicy.FailureClass.FATAL,
+                "Failed to read image " + file.getName() + ": " + e.getMessage(), e);
+    }
+
+    private void writeValue(Object value) throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writeRaw("{");
+            boolean first = true;
+            for (Iterator<String> it = object.keys(); it.hasNext();) {
+                String key = it.next();
+                if (!first)
+                    writeRaw(",");
+                first = false;
+                writeString(key);
+                writeRaw(":");
+                writeValue(object.get(key));
+            }
+            writeRaw("}");
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writeRaw("[");
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0)
+                    writeRaw(",");
+                writeValue(array.get(i));
+            }
+            writeRaw("]");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Number) {
+            writeRaw(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            writeRaw(value.toString());
+        } else if (value == null || value == JSONObject.NULL) {
+            writeRaw("null");
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /** Writes a quoted, escaped JSON string as UTF-8 without an intermediate copy. */
+    private void writeString(String s) throws IOException {
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    writeByte('\\');
+                    writeByte('"');
+                    break;
+                case '\\':
+                    writeByte('\\');
+                    writeByte('\\');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writeUnicodeEscape(c);
+                    } else if (c < 0x80) {
+                        writeByte(c);
+                    } else if (c < 0x800) {
+                        writeByte(0xC0 | (c >> 6));
+                        writeByte(0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                            && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                        writeByte(0xF0 | (codePoint >> 18));
+                        writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                        writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                        writeByte(0x80 | (codePoint & 0x3F));
+                    } else if (Character.isSurrogate(c)) {
+                        writeUnicodeEscape(c); // Unpaired, not encodable as UTF-8
+                    } else {
+                        writeByte(0xE0 | (c >> 12));
+                        writeByte(0x80 | ((c >> 6) & 0x3F));
+                        writeByte(0x80 | (c & 0x3F));
+                    }
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeUnicodeEscape(char c) throws IOException {
+        writeByte('\\');
+        writeByte('u');
+        writeByte(HEX[(c >> 12) & 0xF]);
+        writeByte(HEX[(c >> 8) & 0xF]);
+        writeByte(HEX[(c >> 4) & 0xF]);
+        writeByte(HEX[c & 0xF]);
+    }
+
+    /** ASCII-only structural text. */
+    private void writeRaw(String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); i++) {
+            writeByte(ascii.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (count == buffer.length) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - count) {
+            out.write(buffer, 0, count);
+            count = 0;
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,210 @@
+/** Disk-backed cache for Gemini responses with a byte budget and least-recently-used eviction.
+ * Keys are a canonical SHA-256 of the request (model, generationConfig and prompt parts), so a restarted
+ * or regenerated run replays identical requests locally instead of paying for them again. One instance is
+ * shared by the whole process, so concurrent runs keep a single index and byte budget for the directory.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import com.example.a5minutechallenge.util.fileutil.fileutil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class ResponseCache {
+
+    private static final String TAG = "ResponseCache";
+    private static final String ENTRY_SUFFIX = ".resp";
+    private static final long STALE_TEMP_FILE_MS = 60 * 60 * 1000; // 1 hour
+
+    private static ResponseCache instance;
+
+    private final File cacheDir;
+    private final long maxBytes;
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private boolean indexLoaded = false;
+
+    ResponseCache(File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the shared cache, creating it on first use or when asked for a
+     * different directory.
+     */
+    static synchronized ResponseCache getInstance(File cacheDir, long maxBytes) {
+        if (instance == null || !instance.cacheDir.equals(cacheDir)) {
+            instance = new ResponseCache(cacheDir, maxBytes);
+        }
+        return instance;
+    }
+
+    /**
+     * Builds the cache key for a request. Object keys are sorted recursively so
+     * the key does not depend on JSON field order.
+     */
+    static String keyFor(String model, JSONObject generationConfig, List<JSONObject> parts) throws JSONException {
+        MessageDigest digest = fileutil.newSha256();
+        update(digest, "model:" + model + "\n");
+        update(digest, "config:");
+        digestCanonical(digest, generationConfig);
+        update(digest, "\nparts:");
+        for (JSONObject part : parts) {
+            digestCanonical(digest, part);
+            update(digest, "\n");
+        }
+        return fileutil.toHex(digest.digest());
+    }
+
+    private static void digestCanonical(MessageDigest digest, Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            List<String> keys = new ArrayList<>();
+            Iterator<String> it = obj.keys();
+            while (it.hasNext())
+                keys.add(it.next());
+            Collections.sort(keys);
+
+            update(digest, "{");
+            for (String key : keys) {
+                update(digest, JSONObject.quote(key));
+                update(digest, ":");
+                digestCanonical(digest, obj.get(key));
+                update(digest, ",");
+            }
+            update(digest, "}");
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            update(digest, "[");
+            for (int i = 0; i < array.length(); i++) {
+                digestCanonical(digest, array.get(i));
+                update(digest, ",");
+            }
+            update(digest, "]");
+        } else if (value instanceof String) {
+            update(digest, JSONObject.quote((String) value));
+        } else {
+            update(digest, String.valueOf(value));
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the cached response for the key, or null on a miss.
+     */
+    String get(String key) {
+        synchronized (this) {
+            loadIndex();
+            if (entrySizes.get(key) == null)
+                return null;
+        }
+
+        File entry = entryFile(key);
+        byte[] bytes;
+        try {
+            bytes = fileutil.readFile(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cached response: " + e.getMessage());
+            remove(key);
+            return null;
+        }
+
+        entry.setLastModified(System.currentTimeMillis());
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores a response and evicts least recently used entries until the cache
+     * fits its byte budget again.
+     */
+    void put(String key, String response) {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxBytes)
+            return;
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.w(TAG, "Could not create cache directory: " + cacheDir);
+            return;
+        }
+
+        try {
+            fileutil.writeAtomically(entryFile(key), out -> out.write(bytes));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cached response: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            loadIndex();
+            Long previous = entrySizes.put(key, (long) bytes.length);
+            totalBytes += bytes.length - (previous != null ? previous : 0);
+            evictToBudget();
+        }
+    }
+
+    synchronized void remove(String key) {
+        loadIndex();
+        Long size = entrySizes.remove(key);
+        if (size != null)
+            totalBytes -= size;
+        entryFile(key).delete();
+    }
+
+    private void evictToBudget() {
+        Iterator<Map.Entry<String, Long>> it = entrySizes.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            entryFile(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Rebuilds the LRU order from file modification times on first use.
+     */
+    private void loadIndex() {
+        if (indexLoaded)
+            return;
+        indexLoaded = true;
+
+        File[] files = cacheDir.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                entrySizes.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), f.length());
+                totalBytes += f.length();
+            } else if (f.lastModified() < System.currentTimeMillis() - STALE_TEMP_FILE_MS) {
+                f.delete(); // Leftover temp file from an interrupted write
+            }
+        }
+        evictToBudget();
+    }
+
+    private File entryFile(String key) {
+        return new File(cacheDir, key + ENTRY_SUFFIX);
+    }
+}
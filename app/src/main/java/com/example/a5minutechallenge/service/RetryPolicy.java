@@ -0,0 +1,195 @@
+/** Single retry engine for all Gemini stages.
+ * Failures are classified (rate limit, server error, timeout, malformed JSON, validation failure) and
+ * every class has its own attempt budget and backoff range. Delays use decorrelated jitter so parallel
+ * threads do not retry in lockstep and server-requested delays are honoured. Every operation may spend
+ * a limited time waiting in backoff, and all operations of a run share a cap on the number of retries.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryPolicy {
+
+    private static final String TAG = "RetryPolicy";
+
+    public enum FailureClass {
+        RATE_LIMITED(8, 2000, 30000),
+        SERVER_ERROR(4, 1000, 20000),
+        TIMEOUT(3, 1000, 10000),
+        MALFORMED_RESPONSE(2, 250, 2000),
+        VALIDATION_FAILED(2, 250, 2000),
+        CIRCUIT_OPEN(40, 1000, 5000), // Endpoint known to be down, wait for the half-open probe
+        FATAL(0, 0, 0);
+
+        final int maxRetries;
+        final long baseDelayMs;
+        final long maxDelayMs;
+
+        FailureClass(int maxRetries, long baseDelayMs, long maxDelayMs) {
+            this.maxRetries = maxRetries;
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+        }
+    }
+
+    /** One attempt of a retried operation; attempt numbers start at 0. */
+    public interface Attempt<T> {
+        T run(int attempt) throws Exception;
+    }
+
+    private final long operationBackoffBudgetMs;
+    private final int maxRunRetries;
+    private final AtomicInteger runRetries = new AtomicInteger(0);
+    private final CancellationToken cancellation;
+
+    /**
+     * @param operationBackoffBudgetMs Time one operation may spend sleeping
+     *                                 between its attempts; time spent in the
+     *                                 requests themselves does not count
+     * @param maxRunRetries            Retries all operations run through this
+     *                                 policy may make together
+     */
+    public RetryPolicy(long operationBackoffBudgetMs, int maxRunRetries) {
+        this(operationBackoffBudgetMs, maxRunRetries, new CancellationToken());
+    }
+
+    /**
+     * @param cancellation Stops further attempts and ends retry waits at once
+     *                     when cancelled
+     */
+    public RetryPolicy(long operationBackoffBudgetMs, int maxRunRetries, CancellationToken cancellation) {
+        this.operationBackoffBudgetMs = operationBackoffBudgetMs;
+        this.maxRunRetries = maxRunRetries;
+        this.cancellation = cancellation;
+    }
+
+    /** Retries made so far by all operations of this policy. */
+    public int getRunRetries() {
+        return runRetries.get();
+    }
+
+    /** Maps an exception to the failure class that decides whether and how to retry. */
+    public static FailureClass classify(Throwable e) {
+        if (e instanceof GeminiApiException)
+            return ((GeminiApiException) e).getFailureClass();
+        if (e instanceof JSONException)
+            return FailureClass.MALFORMED_RESPONSE;
+        if (e instanceof SocketTimeoutException)
+            return FailureClass.TIMEOUT;
+        if (e instanceof InterruptedIOException)
+            return FailureClass.FATAL; // Thread was interrupted, do not retry
+        if (e instanceof FileNotFoundException)
+            return FailureClass.FATAL; // A local file, e.g. a staged image, not the endpoint
+        if (e instanceof IOException)
+            return FailureClass.SERVER_ERROR; // Connection reset, DNS failure, ...
+        return FailureClass.FATAL;
+    }
+
+    /**
+     * Whether the failure says the endpoint is unavailable rather than that the
+     * request or its answer was bad. Work that fails this way must not be dropped;
+     * retrying the run later can still produce it.
+     */
+    public static boolean isEndpointFailure(Throwable e) {
+        switch (classify(e)) {
+            case RATE_LIMITED:
+            case SERVER_ERROR:
+            case TIMEOUT:
+            case CIRCUIT_OPEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Runs the operation until it succeeds, its failure class runs out of attempts,
+     * its backoff budget is spent, the run's retry cap is reached, or a
+     * non-retryable failure occurs. The last failure is rethrown.
+     */
+    public <T> T execute(String label, Attempt<T> operation) throws IOException, JSONException {
+        Map<FailureClass, Integer> retriesByClass = new EnumMap<>(FailureClass.class);
+        long previousDelayMs = 0;
+        long backoffSpentMs = 0;
+        int attempt = 0;
+
+        while (true) {
+            cancellation.throwIfCancelled();
+            try {
+                return operation.run(attempt);
+            } catch (Exception e) {
+                // A cancelled request fails with whatever its aborted connection threw
+                cancellation.throwIfCancelled();
+                FailureClass failureClass = classify(e);
+                int retries = retriesByClass.getOrDefault(failureClass, 0);
+                if (retries >= failureClass.maxRetries) {
+                    throw rethrow(e);
+                }
+
+                long delayMs = nextDelay(failureClass, previousDelayMs, e);
+                if (backoffSpentMs + delayMs > operationBackoffBudgetMs) {
+                    Log.w(TAG, label + ": retry time budget exhausted after " + (attempt + 1) + " attempts");
+                    throw rethrow(e);
+                }
+                // Waiting out an open circuit sends nothing, so it does not use up the run's retries
+                if (failureClass != FailureClass.CIRCUIT_OPEN && runRetries.incrementAndGet() > maxRunRetries) {
+                    Log.w(TAG, label + ": run retry cap of " + maxRunRetries + " reached");
+                    throw rethrow(e);
+                }
+
+                retriesByClass.put(failureClass, retries + 1);
+                previousDelayMs = delayMs;
+                attempt++;
+                Log.w(TAG, String.format("%s: %s (%s), retrying in %dms... (Attempt %d, %s %d/%d)", label,
+                        failureClass, e.getMessage(), delayMs, attempt + 1, failureClass, retries + 1,
+                        failureClass.maxRetries));
+                long sleepStartMs = System.currentTimeMillis();
+                cancellation.sleep(delayMs);
+                backoffSpentMs += System.currentTimeMillis() - sleepStartMs;
+            }
+        }
+    }
+
+    /**
+     * Decorrelated jitter: a random delay between the base delay and three times
+     * the previous delay, capped per class. A server-requested delay is used as
+     * the lower bound, with a little jitter so waiting threads do not wake together.
+     */
+    private long nextDelay(FailureClass failureClass, long previousDelayMs, Exception e) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long base = failureClass.baseDelayMs;
+        long upper = Math.max(base + 1, Math.min(failureClass.maxDelayMs, previousDelayMs * 3));
+        long delay = Math.min(failureClass.maxDelayMs, random.nextLong(base, upper + 1));
+
+        if (e instanceof GeminiApiException) {
+            long retryAfterMs = ((GeminiApiException) e).getRetryAfterMs();
+            if (retryAfterMs > 0) {
+                delay = Math.max(delay, retryAfterMs + random.nextLong(0, retryAfterMs / 10 + 1));
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Rethrows JSON and runtime exceptions as they are; returns anything else as an
+     * IOException for the caller to throw.
+     */
+    private static IOException rethrow(Exception e) throws JSONException {
+        if (e instanceof JSONException)
+            throw (JSONException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        return e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+}
@@ -0,0 +1,125 @@
+/** Checkpoint journal of a generation run, stored under subject_<id>/run_journal/.
+ * Every finished stage output and every generated challenge is written as its own entry as soon as it
+ * is known, so a run that dies part way can be resumed and only repeats the unfinished work. The
+ * journal is tied to a fingerprint of the run's input; resuming with different input starts over.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import com.example.a5minutechallenge.util.fileutil.fileutil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+class RunJournal {
+
+    private static final String TAG = "RunJournal";
+    private static final String JOURNAL_DIR_NAME = "run_journal";
+    private static final String MANIFEST_FILE = "journal.json";
+    private static final String ENTRY_SUFFIX = ".json";
+
+    private final File journalDir;
+
+    RunJournal(File subjectDir) {
+        this.journalDir = new File(subjectDir, JOURNAL_DIR_NAME);
+    }
+
+    /** Key for an entry identified by free text, e.g. a topic or challenge title. */
+    static String key(String prefix, String text) {
+        byte[] digest = fileutil.newSha256().digest(text.getBytes(StandardCharsets.UTF_8));
+        return prefix + "-" + fileutil.toHex(digest).substring(0, 16);
+    }
+
+    /** Whether the journal of an unfinished run is present. */
+    boolean exists() {
+        return new File(journalDir, MANIFEST_FILE).isFile();
+    }
+
+    /**
+     * Starts using the journal for a run. With resume, entries of an earlier run
+     * with the same fingerprint are kept; otherwise the journal starts empty.
+     *
+     * @return true if earlier entries are being resumed
+     */
+    boolean begin(String fingerprint, boolean resume) {
+        File manifest = new File(journalDir, MANIFEST_FILE);
+        if (resume && manifest.isFile()) {
+            try {
+                String previous = new JSONObject(read(manifest)).optString("fingerprint", "");
+                if (previous.equals(fingerprint)) {
+                    return true;
+                }
+                Log.i(TAG, "Input changed since the journaled run, starting over");
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Discarding unreadable journal: " + e.getMessage());
+            }
+        }
+
+        clear();
+        if (!journalDir.mkdirs()) {
+            Log.w(TAG, "Could not create journal directory: " + journalDir);
+            return false;
+        }
+        try {
+            write(manifest, new JSONObject()
+                    .put("fingerprint", fingerprint)
+                    .put("startedAt", System.currentTimeMillis())
+                    .toString());
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to write journal manifest: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /** Returns a journaled entry, or null if it was not written or is unreadable. */
+    String get(String key) {
+        File entry = new File(journalDir, key + ENTRY_SUFFIX);
+        if (!entry.isFile())
+            return null;
+        try {
+            return read(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable journal entry " + key + ": " + e.getMessage());
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry. Written to a temp file first so a crash never leaves a
+     * truncated entry behind. Failures are logged; the run goes on without it.
+     */
+    void put(String key, String value) {
+        if (!journalDir.isDirectory())
+            return; // Not begun, or cleared after the run finished
+        try {
+            write(new File(journalDir, key + ENTRY_SUFFIX), value);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to journal " + key + ": " + e.getMessage());
+        }
+    }
+
+    /** Deletes the journal, e.g. once the run's result has been saved. */
+    void clear() {
+        File[] entries = journalDir.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                entry.delete();
+            }
+        }
+        journalDir.delete();
+    }
+
+    private static void write(File file, String value) throws IOException {
+        fileutil.writeAtomically(file, out -> out.write(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(fileutil.readFile(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,34 @@
+/** Prompt content that many requests of a run start with, e.g. the document corpus.
+ * Sent by cached-content handle while the server has it, otherwise inline from bytes encoded once.
+ */
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+class SharedContext {
+
+    final List<JSONObject> parts;
+    final String contentHash; // Stands in for the parts in response cache keys
+    volatile String handle; // null while the parts have to be sent inline
+    private volatile RequestBodyWriter.Fragment encoded;
+
+    SharedContext(List<JSONObject> parts, String contentHash, String handle) {
+        this.parts = parts;
+        this.contentHash = contentHash;
+        this.handle = handle;
+    }
+
+    /** The parts as JSON bytes, encoded by the first request that sends them inline. */
+    RequestBodyWriter.Fragment encoded() throws IOException, JSONException {
+        RequestBodyWriter.Fragment fragment = encoded;
+        if (fragment == null) {
+            fragment = RequestBodyWriter.encode(parts);
+            encoded = fragment;
+        }
+        return fragment;
+    }
+}
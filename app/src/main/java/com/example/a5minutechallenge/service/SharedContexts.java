@@ -0,0 +1,82 @@
+/** Creates the shared contexts of one run and deletes their cached contents when it ends.
+ * Contexts large enough for the API's prefix cache are uploaded once and referenced by handle; smaller
+ * ones, and any whose upload fails, are sent inline. Handles outlive a crashed run only until their TTL.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+class SharedContexts {
+
+    private static final String TAG = "SharedContexts";
+    private static final long MIN_CACHED_CONTEXT_TOKENS = 1024; // Smallest prefix the API accepts for caching
+    private static final long CACHED_CONTEXT_TTL_SECONDS = 3600; // Safety net if a run dies before cleanup
+
+    private final ContextCache cache;
+    private final String model;
+    private final InlineImages images;
+    private final List<String> handles = new ArrayList<>();
+
+    /**
+     * @param cache  Where contexts are uploaded, or null to send every context
+     *               inline
+     * @param images The run's images, inlined into uploaded contexts
+     */
+    SharedContexts(ContextCache cache, String model, InlineImages images) {
+        this.cache = cache;
+        this.model = model;
+        this.images = images;
+    }
+
+    /**
+     * Uploads the parts as cached contents if they are large enough and caching
+     * is enabled. Failures are logged and leave the context to be sent inline.
+     *
+     * @param tokens Estimated prompt tokens of the parts
+     */
+    SharedContext create(String label, List<JSONObject> parts, long tokens) throws JSONException {
+        String contentHash = ResponseCache.keyFor(model, new JSONObject(), parts);
+        if (cache == null) {
+            return new SharedContext(parts, contentHash, null);
+        }
+        if (tokens < MIN_CACHED_CONTEXT_TOKENS) {
+            Log.i(TAG, String.format("Not caching %s, ~%d tokens is below the minimum", label, tokens));
+            return new SharedContext(parts, contentHash, null);
+        }
+
+        try {
+            String handle = cache.create(model, images.materialize(parts), CACHED_CONTEXT_TTL_SECONDS);
+            synchronized (handles) {
+                handles.add(handle);
+            }
+            Log.i(TAG, String.format("Cached %s (~%d tokens) as %s", label, tokens, handle));
+            return new SharedContext(parts, contentHash, handle);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not cache " + label + ", sending it inline: " + e.getMessage());
+            return new SharedContext(parts, contentHash, null);
+        }
+    }
+
+    /** Deletes the cached contents created so far; the TTL covers anything missed. */
+    void release() {
+        List<String> released;
+        synchronized (handles) {
+            released = new ArrayList<>(handles);
+            handles.clear();
+        }
+        for (String handle : released) {
+            try {
+                cache.delete(handle);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to delete cached context " + handle + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/** Map-reduce support for Stage 0 on corpora that do not fit one request.
+ * The corpus is split into page windows that each stay under a token and page limit. A file may span
+ * several windows and a window may hold several files. Every window is analysed on its own, and the
+ * section lists are merged in document order. A section cut by a window boundary is stitched back
+ * together with its continuation in the next window.
+ */
+package com.example.a5minutechallenge.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+class StructureMapReduce {
+
+    private final long maxWindowTokens;
+    private final int maxWindowPages;
+
+    /**
+     * @param maxWindowTokens Estimated document tokens per window
+     * @param maxWindowPages  Most pages (images count as one) per window, keeps the
+     *                        section list of one response short enough not to be cut off
+     */
+    StructureMapReduce(long maxWindowTokens, int maxWindowPages) {
+        this.maxWindowTokens = maxWindowTokens;
+        this.maxWindowPages = maxWindowPages;
+    }
+
+    /**
+     * Splits the documents into windows at page boundaries. Each window is a list of
+     * partial documents holding only that window's pages, so it can be prompted and
+     * parsed like a complete corpus. A single page larger than the budget gets a
+     * window of its own.
+     */
+    List<List<GeminiContentProcessor.DocumentContent>> split(List<GeminiContentProcessor.DocumentContent> documents) {
+        List<List<GeminiContentProcessor.DocumentContent>> windows = new ArrayList<>();
+        List<GeminiContentProcessor.DocumentContent> window = new ArrayList<>();
+        long windowTokens = 0;
+        int windowPages = 0;
+
+        for (GeminiContentProcessor.DocumentContent doc : documents) {
+            if (doc.isImage) {
+                if (!window.isEmpty() && (windowTokens + GeminiContentProcessor.imageTokens(doc) > maxWindowTokens
+                        || windowPages + 1 > maxWindowPages)) {
+                    windows.add(window);
+                    window = new ArrayList<>();
+                    windowTokens = 0;
+                    windowPages = 0;
+                }
+                window.add(doc);
+                windowTokens += GeminiContentProcessor.imageTokens(doc);
+                windowPages++;
+                continue;
+            }
+
+            GeminiContentProcessor.DocumentContent slice = null;
+            for (GeminiContentProcessor.PageContent page : doc.pages) {
+                long pageTokens = page.text.length() / GeminiContentProcessor.CHARS_PER_TOKEN;
+                if (windowPages > 0 && (windowTokens + pageTokens > maxWindowTokens
+                        || windowPages + 1 > maxWindowPages)) {
+                    windows.add(window);
+                    window = new ArrayList<>();
+                    windowTokens = 0;
+                    windowPages = 0;
+                    slice = null;
+                }
+                if (slice == null) {
+                    slice = new GeminiContentProcessor.DocumentContent(doc.fileName);
+                    window.add(slice);
+                }
+                slice.pages.add(page);
+                windowTokens += pageTokens;
+                windowPages++;
+            }
+        }
+        if (!window.isEmpty()) {
+            windows.add(window);
+        }
+        return windows;
+    }
+
+    /**
+     * Keeps only sections that fall into the window's pages and clamps their ranges
+     * to it, so a model that strays outside its window cannot overlap its neighbours.
+     */
+    static List<GeminiContentProcessor.SemanticSection> clampToWindow(
+            List<GeminiContentProcessor.SemanticSection> sections,
+            List<GeminiContentProcessor.DocumentContent> window) {
+        List<GeminiContentProcessor.SemanticSection> clamped = new ArrayList<>();
+        for (GeminiContentProcessor.SemanticSection section : sections) {
+            for (GeminiContentProcessor.DocumentContent slice : window) {
+                if (slice.isImage || slice.pages.isEmpty() || !slice.fileName.equals(section.fileName))
+                    continue;
+                int first = slice.pages.get(0).pageNumber;
+                int last = slice.pages.get(slice.pages.size() - 1).pageNumber;
+                int start = Math.max(first, Math.min(section.startPage, section.endPage));
+                int end = Math.min(last, Math.max(section.startPage, section.endPage));
+                if (start <= end) {
+                    clamped.add(new GeminiContentProcessor.SemanticSection(section.title, section.fileName, start,
+                            end, section.continued));
+                }
+                break;
+            }
+        }
+        return clamped;
+    }
+
+    /**
+     * Concatenates the per-window section lists in window order. The first section
+     * of a file in a window is merged into the last section of the same file when it
+     * starts right where that one ended and is either marked as continued or has the
+     * same title.
+     */
+    static List<GeminiContentProcessor.SemanticSection> stitch(
+            List<List<GeminiContentProcessor.SemanticSection>> windowSections) {
+        List<GeminiContentProcessor.SemanticSection> merged = new ArrayList<>();
+        for (List<GeminiContentProcessor.SemanticSection> sections : windowSections) {
+            List<String> filesSeenInWindow = new ArrayList<>();
+            for (GeminiContentProcessor.SemanticSection section : sections) {
+                boolean firstOfFile = !filesSeenInWindow.contains(section.fileName);
+                filesSeenInWindow.add(section.fileName);
+
+                GeminiContentProcessor.SemanticSection previous = firstOfFile ? lastOfFile(merged, section.fileName)
+                        : null;
+                if (previous != null && section.startPage <= previous.endPage + 1
+                        && (section.continued || normalize(section.title).equals(normalize(previous.title)))) {
+                    previous.endPage = Math.max(previous.endPage, section.endPage);
+                } else {
+                    merged.add(section);
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static GeminiContentProcessor.SemanticSection lastOfFile(
+            List<GeminiContentProcessor.SemanticSection> sections, String fileName) {
+        for (int i = sections.size() - 1; i >= 0; i--) {
+            if (sections.get(i).fileName.equals(fileName))
+                return sections.get(i);
+        }
+        return null;
+    }
+
+    private static String normalize(String title) {
+        return title.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -21,7 +21,12 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -32,6 +37,7 @@ public class SubjectGenerationService {
     private final GeminiContentProcessor geminiProcessor;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<CancellationToken> activeRuns = ConcurrentHashMap.newKeySet();
 
     /**
      * Callback interface for generation results.
@@ -48,6 +54,56 @@ public class SubjectGenerationService {
         this.geminiProcessor = new GeminiContentProcessor();
     }
 
+    /**
+     * Forces the next generation to ignore cached Gemini responses and call the
+     * API for every request.
+     */
+    public void setForceFreshGeneration(boolean forceFresh) {
+        geminiProcessor.setBypassResponseCache(forceFresh);
+    }
+
+    /**
+     * Lets content generation for each topic start while the topic list is still
+     * being produced, instead of waiting for the complete list.
+     */
+    public void setPipelinedGeneration(boolean pipelined) {
+        geminiProcessor.setPipelinedEnabled(pipelined);
+    }
+
+    /**
+     * Submits all challenge content requests of a run as one asynchronous batch
+     * job instead of calling the API interactively. Slower, but cheaper for bulk
+     * pre-generation.
+     */
+    public void setBatchGeneration(boolean batch) {
+        geminiProcessor.setBatchJobEnabled(batch);
+    }
+
+    /**
+     * Opens the connection to Gemini ahead of time, so a generation started soon
+     * after does not wait for the TLS handshake. Returns immediately.
+     */
+    public static void prewarmConnection() {
+        GeminiContentProcessor.prewarmConnection();
+    }
+
+    /**
+     * Stops every run of this service that is queued or in progress. Open
+     * requests are aborted and the run's workers are freed; the callback gets
+     * {@link GenerationCancelledException} and nothing is saved.
+     */
+    public void cancel() {
+        for (CancellationToken run : activeRuns) {
+            run.cancel();
+        }
+    }
+
+    /** Cancels all runs and stops the service's thread. The service cannot be used afterwards. */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
     /**
      * Asynchronously generates content for a Subject from its uploaded files.
      * The result is delivered via the callback on the main UI thread.
@@ -57,33 +113,80 @@ public class SubjectGenerationService {
      * @param callback Callback to handle success or failure
      */
     public void generateContent(final Subject subject, final Context context, final GenerationCallback callback) {
+        runGeneration(subject, context, callback, false);
+    }
+
+    /**
+     * Like {@link #generateContent}, but continues an earlier run of this subject
+     * that did not finish: stages and challenges it already completed are taken
+     * from its run journal instead of being generated again.
+     */
+    public void resumeContent(final Subject subject, final Context context, final GenerationCallback callback) {
+        runGeneration(subject, context, callback, true);
+    }
+
+    /** Whether an earlier generation run of the subject was interrupted and can be resumed. */
+    public boolean hasResumableRun(Subject subject, Context context) {
+        return GeminiContentProcessor.hasResumableRun(getSubjectDir(subject, context));
+    }
+
+    private File getSubjectDir(Subject subject, Context context) {
+        return new File(context.getFilesDir(), "subject_" + subject.getSubjectId());
+    }
+
+    /**
+     * Brings the subject's content up to date with its uploads. Only files added
+     * since the last generation go through Gemini; their topics are merged into
+     * the existing ones, and existing challenges keep their progress. Topics
+     * generated only from files that were removed are dropped. If the uploads did
+     * not change, the callback succeeds immediately. Subjects without an upload
+     * manifest or content are generated in full, resuming an interrupted run.
+     */
+    public void generateContentIncremental(final Subject subject, final Context context,
+            final GenerationCallback callback) {
+        CancellationToken cancellation = startRun();
         executor.execute(() -> {
             try {
-                // Get files for this subject
+                cancellation.throwIfCancelled();
                 ArrayList<SubjectFile> files = subject.getFiles(context);
                 if (files == null || files.isEmpty()) {
                     throw new IOException("No files found for subject");
                 }
 
-                // Process files with Gemini (This runs in the background)
-                String jsonResponse = geminiProcessor.processFiles(files, subject.getTitle(context), context,
-                        (progress, message) -> handler.post(() -> callback.onProgress(progress, message)));
-
-                // Clear old generated content before saving new results
-                subject.clearGeneratedContent(context);
-
-                // Save the raw JSON as content.json (single source of truth)
-                try {
-                    subject.saveGeneratedJson(context, jsonResponse, "content.json");
-                } catch (Exception e) {
-                    Log.w(TAG, "Failed to save generated JSON: " + e.getMessage());
+                File subjectDir = getSubjectDir(subject, context);
+                UploadManifest manifest = UploadManifest.load(subjectDir);
+                ArrayList<Topic> existingTopics = subject.reloadTopics(context);
+                if (manifest == null || existingTopics.isEmpty()) {
+                    Log.i(TAG, "No earlier generation to build on, generating all files");
+                    generateAll(subject, context, callback,
+                            GeminiContentProcessor.hasResumableRun(subjectDir), cancellation);
+                } else {
+                    generateChanges(subject, context, callback, files, subjectDir, manifest, existingTopics,
+                            cancellation);
                 }
 
-                // Parse and populate subject
-                parseAndPopulateSubject(subject, jsonResponse);
+                handler.post(() -> callback.onGenerationSuccess(subject));
+            } catch (Exception e) {
+                handler.post(() -> callback.onGenerationFailure(e));
+            } finally {
+                activeRuns.remove(cancellation);
+            }
+        });
+    }
 
-                // Save formatted progress structure
-                subject.saveToStorage(context);
+    private CancellationToken startRun() {
+        CancellationToken cancellation = new CancellationToken();
+        activeRuns.add(cancellation);
+        return cancellation;
+    }
+
+    private void runGeneration(final Subject subject, final Context context, final GenerationCallback callback,
+            final boolean resume) {
+        CancellationToken cancellation = startRun();
+        executor.execute(() -> {
+            try {
+                cancellation.throwIfCancelled();
+                generateAll(subject, context, callback, resume, cancellation);
 
                 // Post success result back to the main thread
                 handler.post(() -> callback.onGenerationSuccess(subject));
@@ -91,10 +194,175 @@ public class SubjectGenerationService {
             } catch (Exception e) {
                 // Post failure result back to the main thread
                 handler.post(() -> callback.onGenerationFailure(e));
+            } finally {
+                activeRuns.remove(cancellation);
             }
         });
     }
 
+    /** Generates the subject's content from all of its files, replacing what was there. */
+    private void generateAll(Subject subject, Context context, GenerationCallback callback, boolean resume,
+            CancellationToken cancellation) throws IOException, JSONException {
+        // Get files for this subject
+        ArrayList<SubjectFile> files = subject.getFiles(context);
+        if (files == null || files.isEmpty()) {
+            throw new IOException("No files found for subject");
+        }
+
+        // Process files with Gemini (This runs in the background)
+        File subjectDir = getSubjectDir(subject, context);
+        GeminiContentProcessor.ProgressListener progressListener = (progress, message) -> handler
+                .post(() -> callback.onProgress(progress, message));
+        String jsonResponse = resume
+                ? geminiProcessor.resumeFiles(files, subject.getTitle(context), subjectDir, context,
+                        progressListener, cancellation)
+                : geminiProcessor.processFiles(files, subject.getTitle(context), subjectDir, context,
+                        progressListener, cancellation);
+
+        // Clear old generated content before saving new results
+        subject.clearGeneratedContent(context);
+
+        // Save the raw JSON as content.json (single source of truth)
+        try {
+            subject.saveGeneratedJson(context, jsonResponse, "content.json");
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to save generated JSON: " + e.getMessage());
+        }
+
+        // Parse and populate subject
+        parseAndPopulateSubject(subject, jsonResponse);
+
+        // Save formatted progress structure
+        subject.saveToStorage(context);
+
+        // Remember what the content was generated from for later incremental runs
+        Map<String, String> fileHashes = UploadManifest.hashFiles(files);
+        Map<String, Set<String>> topicSources = new LinkedHashMap<>();
+        JSONArray topicsArray = new JSONObject(jsonResponse).getJSONArray("topics");
+        for (int i = 0; i < topicsArray.length(); i++) {
+            JSONObject topicJson = topicsArray.getJSONObject(i);
+            topicSources.put(UploadManifest.topicKey(topicJson.getString("title")),
+                    UploadManifest.sourcesOf(topicJson, fileHashes, fileHashes.values()));
+        }
+        new UploadManifest(fileHashes, topicSources).save(subjectDir);
+
+        // The result is saved, nothing left to resume
+        GeminiContentProcessor.discardRunJournal(subjectDir);
+    }
+
+    /**
+     * Updates existing content for the files added and removed since the
+     * manifest was written. Returns without any request if nothing changed.
+     */
+    private void generateChanges(Subject subject, Context context, GenerationCallback callback,
+            List<SubjectFile> files, File subjectDir, UploadManifest manifest, ArrayList<Topic> existingTopics,
+            CancellationToken cancellation) throws IOException, JSONException {
+        Map<String, String> fileHashes = UploadManifest.hashFiles(files);
+        UploadManifest.Diff diff = manifest.diff(fileHashes);
+        if (diff.isEmpty()) {
+            Log.i(TAG, "Uploads unchanged since the last generation, nothing to do");
+            return;
+        }
+        Log.i(TAG, String.format("Incremental generation: %d files added, %d removed", diff.addedHashes.size(),
+                diff.removedHashes.size()));
+
+        // Drop topics whose material was removed entirely, forget removed files elsewhere
+        ArrayList<Topic> topics = new ArrayList<>();
+        Map<String, Set<String>> topicSources = new LinkedHashMap<>();
+        for (Topic topic : existingTopics) {
+            String key = UploadManifest.topicKey(topic.getTitle());
+            Set<String> sources = manifest.topicSources.get(key);
+            if (sources != null && !sources.isEmpty() && diff.removedHashes.containsAll(sources)) {
+                Log.i(TAG, "Dropping topic of removed files: " + topic.getTitle());
+                continue;
+            }
+            Set<String> remaining = new HashSet<>();
+            if (sources != null) {
+                remaining.addAll(sources);
+                remaining.removeAll(diff.removedHashes);
+            }
+            topics.add(topic);
+            topicSources.put(key, remaining);
+        }
+
+        // One file per added hash, a copy under another name is the same material
+        List<SubjectFile> addedFiles = new ArrayList<>();
+        Set<String> seenHashes = new HashSet<>();
+        for (SubjectFile file : files) {
+            String hash = fileHashes.get(file.getFileName());
+            if (hash != null && diff.addedHashes.contains(hash) && seenHashes.add(hash)) {
+                addedFiles.add(file);
+            }
+        }
+
+        if (!addedFiles.isEmpty()) {
+            List<String> existingTitles = new ArrayList<>();
+            for (Topic topic : topics) {
+                existingTitles.add(topic.getTitle());
+            }
+
+            GeminiContentProcessor.ProgressListener progressListener = (progress, message) -> handler
+                    .post(() -> callback.onProgress(progress, message));
+            String jsonResponse = geminiProcessor.processAddedFiles(addedFiles, existingTitles,
+                    subject.getTitle(context), subjectDir, context, progressListener, cancellation);
+
+            JSONArray topicsArray = new JSONObject(jsonResponse).getJSONArray("topics");
+            int added = 0;
+            for (int i = 0; i < topicsArray.length(); i++) {
+                JSONObject topicJson = topicsArray.getJSONObject(i);
+                Topic newTopic = parseTopic(topicJson);
+                String key = UploadManifest.topicKey(newTopic.getTitle());
+                Set<String> sources = UploadManifest.sourcesOf(topicJson, fileHashes, diff.addedHashes);
+
+                Topic existing = findTopic(topics, key);
+                if (existing == null) {
+                    topics.add(newTopic);
+                    topicSources.put(key, sources);
+                    added++;
+                } else {
+                    // Same topic again, keep its challenges and progress and add only new challenges
+                    mergeChallenges(existing, newTopic);
+                    topicSources.computeIfAbsent(key, k -> new HashSet<>()).addAll(sources);
+                }
+            }
+            Log.i(TAG, "Incremental generation: " + added + " new topics for subject: " + subject.getTitle(null));
+        }
+
+        subject.setTopics(topics);
+        if (topics.isEmpty()) {
+            // Every file the content came from is gone
+            subject.clearGeneratedContent(context);
+        } else {
+            subject.saveToStorage(context);
+        }
+        new UploadManifest(fileHashes, topicSources).save(subjectDir);
+
+        // The result is saved, nothing left to resume
+        GeminiContentProcessor.discardRunJournal(subjectDir);
+    }
+
+    private static Topic findTopic(List<Topic> topics, String key) {
+        for (Topic topic : topics) {
+            if (UploadManifest.topicKey(topic.getTitle()).equals(key)) {
+                return topic;
+            }
+        }
+        return null;
+    }
+
+    /** Adds the challenges of the new topic whose titles the existing topic does not have yet. */
+    private static void mergeChallenges(Topic existing, Topic newTopic) {
+        Set<String> titles = new HashSet<>();
+        for (Challenge challenge : existing.getChallenges()) {
+            titles.add(UploadManifest.topicKey(challenge.getTitle()));
+        }
+        for (Challenge challenge : newTopic.getChallenges()) {
+            if (titles.add(UploadManifest.topicKey(challenge.getTitle()))) {
+                existing.addChallenge(challenge);
+            }
+        }
+    }
+
     /**
      * Parses JSON response and populates Subject with Topics, Challenges, and
      * Containers
@@ -0,0 +1,113 @@
+/** Dual token-bucket limiter for the Gemini requests-per-minute and input-tokens-per-minute quotas.
+ * Each request reserves one request token and its estimated prompt tokens before it is sent; the token
+ * reservation is corrected from usageMetadata once the real prompt size is known.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+class TokenBucketRateLimiter {
+
+    private static final String TAG = "TokenBucketRateLimiter";
+    private static final double NANOS_PER_MINUTE = 60_000_000_000.0;
+
+    private final double requestsPerMinute;
+    private final double tokensPerMinute;
+    private double availableRequests;
+    private double availableTokens;
+    private long lastRefillNanos;
+
+    /** Capacity reserved for one request. */
+    final class Reservation {
+        private final long estimatedTokens;
+        private boolean settled = false;
+
+        private Reservation(long estimatedTokens) {
+            this.estimatedTokens = estimatedTokens;
+        }
+
+        long getEstimatedTokens() {
+            return estimatedTokens;
+        }
+
+        /** See {@link TokenBucketRateLimiter#settle(Reservation, long)}. */
+        void settle(long actualTokens) {
+            TokenBucketRateLimiter.this.settle(this, actualTokens);
+        }
+
+        /** See {@link TokenBucketRateLimiter#cancel(Reservation)}. */
+        void cancel() {
+            TokenBucketRateLimiter.this.cancel(this);
+        }
+    }
+
+    TokenBucketRateLimiter(int requestsPerMinute, long tokensPerMinute) {
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        // Start full so the first minute is not throttled needlessly
+        this.availableRequests = requestsPerMinute;
+        this.availableTokens = tokensPerMinute;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until both buckets can cover the request, then takes one request and
+     * the estimated tokens. Requests larger than the whole TPM budget are clamped
+     * so they can still go out once the bucket is full.
+     */
+    synchronized Reservation reserve(long estimatedTokens) throws InterruptedException {
+        long tokens = Math.min(Math.max(estimatedTokens, 1), (long) tokensPerMinute);
+        while (true) {
+            refill();
+            if (availableRequests >= 1 && availableTokens >= tokens) {
+                availableRequests -= 1;
+                availableTokens -= tokens;
+                return new Reservation(tokens);
+            }
+
+            double requestWaitNanos = availableRequests >= 1 ? 0
+                    : (1 - availableRequests) * NANOS_PER_MINUTE / requestsPerMinute;
+            double tokenWaitNanos = availableTokens >= tokens ? 0
+                    : (tokens - availableTokens) * NANOS_PER_MINUTE / tokensPerMinute;
+            long waitMs = Math.max(1, (long) Math.ceil(Math.max(requestWaitNanos, tokenWaitNanos) / 1_000_000));
+            wait(waitMs);
+        }
+    }
+
+    /**
+     * Corrects a reservation with the prompt token count the API reported. Unused
+     * tokens go back to the bucket, an underestimate is charged as debt.
+     */
+    synchronized void settle(Reservation reservation, long actualTokens) {
+        if (reservation == null || reservation.settled || actualTokens <= 0)
+            return;
+        reservation.settled = true;
+        refill();
+        availableTokens = Math.min(tokensPerMinute, availableTokens + reservation.estimatedTokens - actualTokens);
+        if (Math.abs(actualTokens - reservation.estimatedTokens) > reservation.estimatedTokens / 2) {
+            Log.d(TAG, String.format("Token estimate off: estimated %d, actual %d", reservation.estimatedTokens,
+                    actualTokens));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the tokens of a request the API rejected (429) or never received.
+     * The request slot is kept, as the quota counts every attempt.
+     */
+    synchronized void cancel(Reservation reservation) {
+        if (reservation == null || reservation.settled)
+            return;
+        reservation.settled = true;
+        availableTokens = Math.min(tokensPerMinute, availableTokens + reservation.estimatedTokens);
+        notifyAll();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsedMinutes = (now - lastRefillNanos) / NANOS_PER_MINUTE;
+        lastRefillNanos = now;
+        availableRequests = Math.min(requestsPerMinute, availableRequests + elapsedMinutes * requestsPerMinute);
+        availableTokens = Math.min(tokensPerMinute, availableTokens + elapsedMinutes * tokensPerMinute);
+    }
+}
@@ -0,0 +1,158 @@
+/** Record of the uploads the current content of a subject was generated from, stored as
+ * subject_<id>/upload_manifest.json.
+ * Files are identified by the SHA-256 of their bytes, so a renamed but unchanged file is not new
+ * material. For every topic the manifest keeps the files it was generated from, which tells an
+ * incremental run which topics lost all of their sources when files were removed.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import com.example.a5minutechallenge.datawrapper.subject.SubjectFile;
+import com.example.a5minutechallenge.util.fileutil.fileutil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+class UploadManifest {
+
+    private static final String TAG = "UploadManifest";
+    private static final String MANIFEST_FILE = "upload_manifest.json";
+
+    /** Content hash by file name. */
+    final Map<String, String> fileHashes;
+    /** Content hashes of the source files by lower-cased topic title. */
+    final Map<String, Set<String>> topicSources;
+
+    UploadManifest(Map<String, String> fileHashes, Map<String, Set<String>> topicSources) {
+        this.fileHashes = fileHashes;
+        this.topicSources = topicSources;
+    }
+
+    /** What changed between the manifest and the current uploads. */
+    static class Diff {
+        final List<String> addedHashes = new ArrayList<>();
+        final Set<String> removedHashes = new HashSet<>();
+
+        boolean isEmpty() {
+            return addedHashes.isEmpty() && removedHashes.isEmpty();
+        }
+    }
+
+    /** Hashes the files that exist, by file name. */
+    static Map<String, String> hashFiles(List<SubjectFile> files) throws IOException {
+        Map<String, String> hashes = new LinkedHashMap<>();
+        for (SubjectFile file : files) {
+            if (file.exists()) {
+                hashes.put(file.getFileName(), fileutil.hashFile(file.getFile()));
+            }
+        }
+        return hashes;
+    }
+
+    static String topicKey(String title) {
+        return title.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** Files are matched by content; a file whose bytes changed counts as removed and added. */
+    Diff diff(Map<String, String> currentHashes) {
+        Diff diff = new Diff();
+        Set<String> previous = new HashSet<>(fileHashes.values());
+        Set<String> current = new HashSet<>(currentHashes.values());
+        for (String hash : currentHashes.values()) {
+            if (!previous.contains(hash) && !diff.addedHashes.contains(hash))
+                diff.addedHashes.add(hash);
+        }
+        for (String hash : previous) {
+            if (!current.contains(hash))
+                diff.removedHashes.add(hash);
+        }
+        return diff;
+    }
+
+    /** Loads the manifest, or returns null if the subject has none or it is unreadable. */
+    static UploadManifest load(File subjectDir) {
+        File file = new File(subjectDir, MANIFEST_FILE);
+        if (!file.isFile())
+            return null;
+
+        try {
+            JSONObject root = new JSONObject(new String(fileutil.readFile(file), StandardCharsets.UTF_8));
+
+            Map<String, String> fileHashes = new LinkedHashMap<>();
+            JSONObject files = root.getJSONObject("files");
+            for (Iterator<String> it = files.keys(); it.hasNext();) {
+                String name = it.next();
+                fileHashes.put(name, files.getString(name));
+            }
+
+            Map<String, Set<String>> topicSources = new LinkedHashMap<>();
+            JSONObject topics = root.getJSONObject("topics");
+            for (Iterator<String> it = topics.keys(); it.hasNext();) {
+                String title = it.next();
+                JSONArray sources = topics.getJSONArray(title);
+                Set<String> hashes = new HashSet<>();
+                for (int i = 0; i < sources.length(); i++)
+                    hashes.add(sources.getString(i));
+                topicSources.put(title, hashes);
+            }
+            return new UploadManifest(fileHashes, topicSources);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable upload manifest: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Writes the manifest through a temp file so a crash never leaves half of it behind. */
+    void save(File subjectDir) {
+        try {
+            JSONObject files = new JSONObject();
+            for (Map.Entry<String, String> entry : fileHashes.entrySet())
+                files.put(entry.getKey(), entry.getValue());
+            JSONObject topics = new JSONObject();
+            for (Map.Entry<String, Set<String>> entry : topicSources.entrySet())
+                topics.put(entry.getKey(), new JSONArray(entry.getValue()));
+
+            if (!subjectDir.exists())
+                subjectDir.mkdirs();
+            byte[] bytes = new JSONObject().put("files", files).put("topics", topics).toString()
+                    .getBytes(StandardCharsets.UTF_8);
+            fileutil.writeAtomically(new File(subjectDir, MANIFEST_FILE), out -> out.write(bytes));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to write upload manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Source hashes of a generated topic, from the file names the processor lists
+     * in its "sourceFiles". Falls back to all given hashes when none of the names
+     * is known, e.g. for topics of the fused plan.
+     */
+    static Set<String> sourcesOf(JSONObject topicJson, Map<String, String> hashesByName,
+            Collection<String> runHashes) {
+        Set<String> sources = new HashSet<>();
+        JSONArray names = topicJson.optJSONArray("sourceFiles");
+        for (int i = 0; names != null && i < names.length(); i++) {
+            String hash = hashesByName.get(names.optString(i, ""));
+            if (hash != null && runHashes.contains(hash))
+                sources.add(hash);
+        }
+        if (sources.isEmpty())
+            sources.addAll(runHashes);
+        return sources;
+    }
+}
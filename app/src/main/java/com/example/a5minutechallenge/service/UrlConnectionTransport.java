@@ -0,0 +1,168 @@
+/** {@link HttpTransport} on the platform HttpURLConnection.
+ * The connection is never disconnected after a complete response; the platform keeps its socket alive
+ * and reuses it for the next request to the same host. Only HTTP/1.1.
+ */
+package com.example.a5minutechallenge.service;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+public class UrlConnectionTransport implements HttpTransport {
+
+    private static final String TAG = "UrlConnectionTransport";
+    private static final int MAX_DRAIN_BYTES = 8192; // Larger leftovers are cheaper to drop with the connection
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public UrlConnectionTransport(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public Call newCall(String method, String url, String contentType, RequestBody body) {
+        return new Call() {
+            private volatile HttpURLConnection conn;
+            private volatile boolean cancelled;
+
+            @Override
+            public Response execute() throws IOException {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                conn = connection;
+                if (cancelled) {
+                    connection.disconnect();
+                    throw new IOException("Canceled");
+                }
+                connection.setRequestMethod(method);
+                connection.setConnectTimeout(connectTimeoutMs);
+                connection.setReadTimeout(readTimeoutMs);
+                if (body != null) {
+                    connection.setRequestProperty("Content-Type", contentType);
+                    if (body.contentEncoding() != null)
+                        connection.setRequestProperty("Content-Encoding", body.contentEncoding());
+                    connection.setDoOutput(true);
+                    long length = body.contentLength();
+                    if (length >= 0) {
+                        connection.setFixedLengthStreamingMode(length);
+                    } else {
+                        connection.setChunkedStreamingMode(0); // Default chunk size, never buffers the whole body
+                    }
+                }
+
+                try {
+                    if (body != null) {
+                        try (OutputStream os = connection.getOutputStream()) {
+                            body.writeTo(os);
+                        }
+                    }
+                    int code = connection.getResponseCode();
+                    return new ConnectionResponse(connection, code);
+                } catch (IOException | RuntimeException e) {
+                    connection.disconnect();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                HttpURLConnection connection = conn;
+                if (connection != null)
+                    connection.disconnect();
+            }
+        };
+    }
+
+    @Override
+    public void warmUp(String url) {
+        Thread warmer = new Thread(() -> {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setRequestMethod("HEAD");
+                connection.setConnectTimeout(connectTimeoutMs);
+                connection.setReadTimeout(connectTimeoutMs);
+                connection.getResponseCode();
+                // Left open, the socket goes back to the platform's keep-alive pool
+                if (!drainAndClose(connection.getErrorStream()))
+                    connection.disconnect();
+            } catch (IOException e) {
+                Log.d(TAG, "Warm-up of " + url + " failed: " + e.getMessage());
+            }
+        }, "UrlConnectionTransport-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * Reads what is left of a body so the connection can be reused, then closes
+     * it. Returns false if too much was left or reading failed.
+     */
+    private static boolean drainAndClose(InputStream stream) {
+        if (stream == null)
+            return true;
+        byte[] buffer = new byte[MAX_DRAIN_BYTES];
+        try (InputStream in = stream) {
+            int drained = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES)
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class ConnectionResponse implements Response {
+        private final HttpURLConnection connection;
+        private final int code;
+        private InputStream body;
+
+        ConnectionResponse(HttpURLConnection connection, int code) {
+            this.connection = connection;
+            this.code = code;
+        }
+
+        @Override
+        public int code() {
+            return code;
+        }
+
+        @Override
+        public String header(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream body() throws IOException {
+            if (body == null) {
+                InputStream stream = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                body = stream != null ? stream : new ByteArrayInputStream(new byte[0]);
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            boolean reusable;
+            try {
+                reusable = drainAndClose(body());
+            } catch (IOException e) {
+                reusable = false;
+            }
+            if (!reusable) {
+                // A body abandoned half way, e.g. an aborted stream, is not worth reading to the end
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -1,7 +1,24 @@
 package com.example.a5minutechallenge.util.fileutil;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
 public class fileutil {
 
+    /**
+     * Writes the content of a file to a stream.
+     */
+    public interface StreamWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     /**
      * Sanitizes a filename by removing path separators and other dangerous characters
      * @param fileName The filename to sanitize
@@ -27,4 +44,79 @@ public class fileutil {
         return sanitized;
     }
 
+    /**
+     * Writes a file through a temp file in the same directory and renames it over
+     * the target, so a crash never leaves a truncated file behind. The temp file
+     * is per thread, so concurrent writes of the same target never share one.
+     * @param target The file to write
+     * @param writer Writes the new content
+     * @throws IOException If the content cannot be written or the rename fails; the
+     *                     target is then unchanged
+     */
+    public static void writeAtomically(File target, StreamWriter writer) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            writer.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Failed to commit " + target.getName());
+        }
+    }
+
+    /**
+     * Reads the whole file into memory. If the file shrinks while it is read,
+     * only the bytes that were there are returned.
+     * @param file The file to read
+     * @return The file's bytes
+     */
+    public static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        int readTotal = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            while (readTotal < bytes.length) {
+                int read = in.read(bytes, readTotal, bytes.length - readTotal);
+                if (read == -1)
+                    break;
+                readTotal += read;
+            }
+        }
+        return readTotal == bytes.length ? bytes : Arrays.copyOf(bytes, readTotal);
+    }
+
+    /**
+     * Computes the SHA-256 of the file contents.
+     * @param file The file to hash
+     * @return The hash as a lowercase hex string
+     */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = newSha256();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,62 @@
+package com.example.a5minutechallenge.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link BatchPlanner}.
+ */
+public class BatchPlannerTest {
+
+    @Test
+    public void packsItemsInOrderUpToTheOutputBudget() {
+        // 1000 tokens with 0.5 headroom leaves 500 per batch
+        BatchPlanner planner = new BatchPlanner(1000, 0.5, 10);
+
+        List<List<Long>> batches = planner.plan(Arrays.asList(200L, 200L, 200L, 100L, 300L), Long::longValue);
+
+        assertEquals(Arrays.asList(Arrays.asList(200L, 200L), Arrays.asList(200L, 100L), Arrays.asList(300L)),
+                batches);
+    }
+
+    @Test
+    public void limitsItemsPerBatch() {
+        BatchPlanner planner = new BatchPlanner(1000, 1.0, 2);
+
+        List<List<Long>> batches = planner.plan(Arrays.asList(1L, 1L, 1L, 1L, 1L), Long::longValue);
+
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(2).size());
+    }
+
+    @Test
+    public void oversizedItemGetsABatchOfItsOwn() {
+        BatchPlanner planner = new BatchPlanner(100, 1.0, 10);
+
+        List<List<Long>> batches = planner.plan(Arrays.asList(10L, 500L, 10L), Long::longValue);
+
+        assertEquals(Arrays.asList(Collections.singletonList(10L), Collections.singletonList(500L),
+                Collections.singletonList(10L)), batches);
+    }
+
+    @Test
+    public void keepsContextWithinItsBudget() {
+        BatchPlanner planner = new BatchPlanner(1000, 1.0, 10);
+
+        List<List<Long>> batches = planner.plan(Arrays.asList(1L, 2L, 3L), item -> 10, item -> item * 100, 300);
+
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L), Collections.singletonList(3L)), batches);
+    }
+
+    @Test
+    public void noItemsNoBatches() {
+        BatchPlanner planner = new BatchPlanner(1000, 1.0, 10);
+
+        assertTrue(planner.plan(Collections.<Long>emptyList(), Long::longValue).isEmpty());
+    }
+}
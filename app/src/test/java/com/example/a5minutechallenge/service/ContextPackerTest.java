@@ -0,0 +1,145 @@
+package com.example.a5minutechallenge.service;
+
+import com.example.a5minutechallenge.service.GeminiContentProcessor.DocumentContent;
+import com.example.a5minutechallenge.service.GeminiContentProcessor.PageContent;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ContextPacker}.
+ */
+public class ContextPackerTest {
+
+    /** Text of about the given number of tokens, made of whole words. */
+    private static String words(String word, int tokens) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < tokens * GeminiContentProcessor.CHARS_PER_TOKEN)
+            sb.append(word).append(' ');
+        return sb.substring(0, tokens * GeminiContentProcessor.CHARS_PER_TOKEN);
+    }
+
+    private static DocumentContent document(String fileName, String... pages) {
+        DocumentContent doc = new DocumentContent(fileName);
+        for (int i = 0; i < pages.length; i++)
+            doc.pages.add(new PageContent(i + 1, pages[i]));
+        return doc;
+    }
+
+    private static DocumentContent image(String fileName, String sha256) throws Exception {
+        DocumentContent doc = new DocumentContent(fileName);
+        doc.isImage = true;
+        doc.imageData = RequestBodyWriter.inlineFilePart("image/png", sha256, 258);
+        return doc;
+    }
+
+    private static ContextPacker.Result pack(List<DocumentContent> documents, long budget,
+            List<ContextPacker.PageRange> ranges, String query, int maxPages) throws Exception {
+        return new ContextPacker(new PageIndex(documents), budget).pack(documents, ranges, query, maxPages);
+    }
+
+    private static String text(ContextPacker.Result result) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (JSONObject part : result.parts)
+            sb.append(part.optString("text"));
+        return sb.toString();
+    }
+
+    @Test
+    public void includesOnlyReferencedPagesInDocumentOrder() throws Exception {
+        List<DocumentContent> documents = Collections.singletonList(
+                document("a.pdf", "alpha page", "beta page", "gamma page", "delta page"));
+
+        ContextPacker.Result result = pack(documents, 10000,
+                Arrays.asList(new ContextPacker.PageRange("a.pdf", 4, 3), new ContextPacker.PageRange("a.pdf", 1, 1)),
+                "delta", 0);
+
+        String text = text(result);
+        assertEquals(3, result.pagesIncluded);
+        assertFalse(text.contains("beta"));
+        assertTrue(text.indexOf("--- Page 1 ---") < text.indexOf("--- Page 3 ---"));
+        assertTrue(text.indexOf("--- Page 3 ---") < text.indexOf("--- Page 4 ---"));
+        assertTrue(text.startsWith("\n\n=== a.pdf ===\n"));
+    }
+
+    @Test
+    public void pageLimitKeepsTheBestMatches() throws Exception {
+        List<DocumentContent> documents = Collections.singletonList(
+                document("a.pdf", "enzymes and proteins", "enzymes catalyse enzymes reactions", "lipids"));
+
+        ContextPacker.Result result = pack(documents, 10000,
+                Collections.singletonList(new ContextPacker.PageRange("a.pdf", 1, 3)), "enzymes", 1);
+
+        assertEquals(1, result.pagesIncluded);
+        assertEquals(2, result.pagesDropped);
+        assertTrue(text(result).contains("--- Page 2 ---"));
+    }
+
+    @Test
+    public void cutsThePageThatCrossesTheBudget() throws Exception {
+        List<DocumentContent> documents = Collections.singletonList(
+                document("a.pdf", words("one", 250), words("two", 250), words("three", 250), words("four", 250)));
+
+        ContextPacker.Result result = pack(documents, 700,
+                Collections.singletonList(new ContextPacker.PageRange("a.pdf", 1, 4)), "unrelated", 0);
+
+        String text = text(result);
+        assertEquals(3, result.pagesIncluded);
+        assertEquals(1, result.pagesTruncated);
+        assertEquals(1, result.pagesDropped);
+        assertTrue(text.endsWith(" [...]"));
+        assertFalse(text.contains("four"));
+    }
+
+    @Test
+    public void fallsBackToTheWholeCorpusWhenNoRangeMatches() throws Exception {
+        List<DocumentContent> documents = Collections.singletonList(document("a.pdf", "alpha", "beta"));
+
+        ContextPacker.Result result = pack(documents, 10000,
+                Collections.singletonList(new ContextPacker.PageRange("missing.pdf", 1, 2)), "alpha", 0);
+
+        assertTrue(result.usedFallback);
+        assertEquals(2, result.pagesIncluded);
+    }
+
+    @Test
+    public void sendsAnImageUploadedTwiceOnce() throws Exception {
+        List<DocumentContent> documents = Arrays.asList(image("a.png", "abc"), image("copy.png", "abc"),
+                document("b.pdf", "text"));
+
+        ContextPacker.Result result = pack(documents, 10000,
+                Collections.singletonList(new ContextPacker.PageRange("", 1, 1)), "text", 0);
+
+        assertEquals(2, result.pagesIncluded);
+        assertTrue(result.parts.get(0).has(RequestBodyWriter.INLINE_FILE));
+    }
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        List<ContextPacker.PageRange> merged = ContextPacker.mergeRanges(Arrays.asList(
+                new ContextPacker.PageRange("a.pdf", 5, 6),
+                new ContextPacker.PageRange("a.pdf", 1, 2),
+                new ContextPacker.PageRange("b.pdf", 1, 1),
+                new ContextPacker.PageRange("a.pdf", 3, 3),
+                new ContextPacker.PageRange("a.pdf", 9, 10)));
+
+        assertEquals(4, merged.size());
+        assertEquals(1, merged.get(0).startPage);
+        assertEquals(3, merged.get(0).endPage);
+        assertEquals(5, merged.get(1).startPage);
+        assertEquals(9, merged.get(2).startPage);
+        assertEquals("b.pdf", merged.get(3).fileName);
+    }
+
+    @Test
+    public void truncatesAtAWordBoundary() {
+        assertEquals("alpha beta [...]", ContextPacker.truncate("alpha beta gamma delta", 18));
+        assertEquals("short", ContextPacker.truncate("short", 100));
+    }
+}
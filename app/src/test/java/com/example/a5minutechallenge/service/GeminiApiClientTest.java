@@ -0,0 +1,261 @@
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GeminiApiClient} over a stand-in
+ * {@link HttpTransport} that answers every call with a canned response.
+ */
+public class GeminiApiClientTest {
+
+    private static final String GENERATE_METHOD = ":generateContent";
+    private static final String STREAM_METHOD = ":streamGenerateContent?alt=sse";
+
+    /** Answers each call with the same status, headers and body; remembers the methods and URLs. */
+    private static class CannedTransport implements HttpTransport {
+        final List<String> methods = new ArrayList<>();
+        final List<String> urls = new ArrayList<>();
+        int code = 200;
+        String retryAfter;
+        String body = "";
+
+        @Override
+        public Call newCall(String method, String url, String contentType, RequestBody requestBody) {
+            methods.add(method);
+            urls.add(url);
+            return new Call() {
+                @Override
+                public Response execute() throws IOException {
+                    if (requestBody != null)
+                        requestBody.writeTo(OutputStream.nullOutputStream());
+                    return new Response() {
+                        @Override
+                        public int code() {
+                            return code;
+                        }
+
+                        @Override
+                        public String header(String name) {
+                            return "Retry-After".equals(name) ? retryAfter : null;
+                        }
+
+                        @Override
+                        public InputStream body() {
+                            return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    };
+                }
+
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+
+        @Override
+        public void warmUp(String url) {
+        }
+    }
+
+    private final CannedTransport transport = new CannedTransport();
+    private final List<JSONObject> elements = new ArrayList<>();
+    private GeminiApiClient client;
+
+    @Before
+    public void setUp() {
+        GeminiApiClient.setHttpTransport(transport);
+        client = new GeminiApiClient("test-model", "test-key");
+    }
+
+    @After
+    public void tearDown() {
+        GeminiApiClient.setHttp2Enabled(true);
+    }
+
+    /** A GenerateContentResponse, or one chunk of a streamed one, with a single text part. */
+    private static JSONObject response(String text, JSONObject usage) throws Exception {
+        JSONObject part = new JSONObject().put("text", text);
+        JSONObject candidate = new JSONObject().put("content",
+                new JSONObject().put("parts", new JSONArray().put(part)));
+        JSONObject response = new JSONObject().put("candidates", new JSONArray().put(candidate));
+        if (usage != null)
+            response.put("usageMetadata", usage);
+        return response;
+    }
+
+    /** One SSE event carrying a GenerateContentResponse chunk. */
+    private static String event(String text, JSONObject usage) throws Exception {
+        return "data: " + response(text, usage) + "\r\n\r\n";
+    }
+
+    private static JSONObject usage(int prompt, int candidates) throws Exception {
+        return new JSONObject().put("promptTokenCount", prompt).put("candidatesTokenCount", candidates)
+                .put("totalTokenCount", prompt + candidates);
+    }
+
+    private HttpTransport.RequestBody request() throws Exception {
+        return client.requestBody(null, null, Collections.singletonList(new JSONObject().put("text", "prompt")),
+                new JSONObject(), null);
+    }
+
+    private String generate() throws Exception {
+        return client.post(GENERATE_METHOD, request(), 100, new CancellationToken(), client::readResponse);
+    }
+
+    private String stream() throws Exception {
+        IncrementalJsonParser parser = new IncrementalJsonParser(null, (index, element) -> elements.add(element));
+        return client.post(STREAM_METHOD, request(), 100, new CancellationToken(),
+                (body, reservation) -> client.readEventStream(body, reservation, parser));
+    }
+
+    @Test
+    public void postsToTheModelMethodAndReturnsTheCleanedText() throws Exception {
+        transport.body = response("```json\n[1, 2]\n```", usage(120, 20)).toString();
+
+        String text = generate();
+
+        assertEquals(2, new JSONArray(text).length());
+        assertEquals(120, client.getPromptTokensSent());
+        assertTrue(transport.urls.get(0).endsWith("/v1beta/models/test-model" + GENERATE_METHOD + "?key=test-key"));
+    }
+
+    @Test
+    public void errorStatusIsClassified() throws Exception {
+        transport.code = 503;
+        transport.retryAfter = "3";
+        transport.body = "{\"error\":{\"message\":\"overloaded\"}}";
+
+        try {
+            generate();
+            fail("Expected the server error");
+        } catch (GeminiApiException e) {
+            assertEquals(RetryPolicy.FailureClass.SERVER_ERROR, e.getFailureClass());
+            assertEquals(503, e.getStatusCode());
+            assertEquals(3000, e.getRetryAfterMs());
+            assertTrue(e.getMessage().contains("overloaded"));
+        }
+    }
+
+    @Test
+    public void sendsManagementCallsUnderTheApiRoot() throws Exception {
+        transport.body = "{\"name\":\"cachedContents/abc\"}";
+
+        JSONObject created = client.send("POST", "/v1beta/cachedContents", new JSONObject(), new CancellationToken());
+        transport.body = "";
+        JSONObject deleted = client.send("DELETE", "/v1beta/cachedContents/abc", null, new CancellationToken());
+
+        assertEquals("cachedContents/abc", created.getString("name"));
+        assertEquals(0, deleted.length());
+        assertEquals(Arrays.asList("POST", "DELETE"), transport.methods);
+        assertTrue(transport.urls.get(1).endsWith("/v1beta/cachedContents/abc?key=test-key"));
+    }
+
+    @Test
+    public void contextCacheDeleteToleratesAnExpiredCache() throws Exception {
+        transport.code = 404;
+
+        new GeminiContextCache(client, new CancellationToken()).delete("cachedContents/abc");
+
+        assertEquals("DELETE", transport.methods.get(0));
+    }
+
+    @Test
+    public void batchJobPollReadsTheInlinedResponses() throws Exception {
+        JSONObject item = new JSONObject().put("response", response("[]", null))
+                .put("metadata", new JSONObject().put("key", "t0c0"));
+        transport.body = new JSONObject()
+                .put("metadata", new JSONObject().put("state", "BATCH_STATE_SUCCEEDED"))
+                .put("response", new JSONObject().put("inlinedResponses",
+                        new JSONObject().put("inlinedResponses", new JSONArray().put(item))))
+                .toString();
+
+        BatchJobClient.JobStatus status = new GeminiBatchJobClient(client, new CancellationToken()).poll("batches/1");
+
+        assertEquals(BatchJobClient.State.SUCCEEDED, status.state);
+        assertTrue(status.responses.containsKey("t0c0"));
+        assertEquals("GET", transport.methods.get(0));
+        assertTrue(transport.urls.get(0).endsWith("/v1beta/batches/1?key=test-key"));
+    }
+
+    @Test
+    public void unreadableStagedImageIsFatal() throws Exception {
+        JSONObject image = RequestBodyWriter.inlineFilePart("image/webp", "abc", 10);
+        HttpTransport.RequestBody request = client.requestBody(null, null, Collections.singletonList(image),
+                new JSONObject(), Collections.singletonMap("abc", new File("/nonexistent/abc.webp")));
+
+        try {
+            client.post(GENERATE_METHOD, request, 100, new CancellationToken(), client::readResponse);
+            fail("Expected the missing image to fail the request");
+        } catch (GeminiApiException e) {
+            assertEquals(RetryPolicy.FailureClass.FATAL, e.getFailureClass());
+            assertFalse(RetryPolicy.isEndpointFailure(e));
+        }
+    }
+
+    @Test
+    public void feedsStreamedTextToTheParser() throws Exception {
+        transport.body = ": keep-alive\r\n\r\n"
+                + event("```json\n[{\"t\":\"a\"},", usage(120, 5))
+                + event("{\"t\":\"b\"}", usage(120, 15))
+                + event("]\n```", usage(120, 20));
+
+        String text = stream();
+
+        assertEquals(2, elements.size());
+        assertEquals("a", elements.get(0).getString("t"));
+        assertEquals("b", elements.get(1).getString("t"));
+        assertEquals(2, new JSONArray(text).length());
+    }
+
+    @Test
+    public void streamedRequestsAppendTheKeyToTheQuery() throws Exception {
+        transport.body = event("[]", null);
+
+        stream();
+
+        assertTrue(transport.urls.get(0).endsWith("/v1beta/models/test-model" + STREAM_METHOD + "&key=test-key"));
+    }
+
+    @Test
+    public void recordsOnlyTheLastCumulativeUsage() throws Exception {
+        transport.body = event("[{\"t\":\"a\"}", usage(120, 5)) + event("]", usage(120, 20));
+
+        stream();
+
+        assertEquals(120, client.getPromptTokensSent());
+        assertEquals(140, client.getTotalTokensProcessed());
+    }
+
+    @Test
+    public void streamWithoutTextIsMalformed() throws Exception {
+        transport.body = "data: {\"candidates\":[]}\r\n\r\n";
+
+        try {
+            stream();
+            fail("Expected a malformed response");
+        } catch (GeminiApiException e) {
+            assertEquals(RetryPolicy.FailureClass.MALFORMED_RESPONSE, e.getFailureClass());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link IncrementalJsonParser}, fed the way a streamed
+ * response arrives: in chunks cut at arbitrary positions.
+ */
+public class IncrementalJsonParserTest {
+
+    private final List<JSONObject> elements = new ArrayList<>();
+    private final List<Integer> indexes = new ArrayList<>();
+
+    private IncrementalJsonParser parser(String arrayKey) {
+        return new IncrementalJsonParser(arrayKey, (index, element) -> {
+            indexes.add(index);
+            elements.add(element);
+        });
+    }
+
+    @Test
+    public void emitsElementsOfTopLevelArray() throws Exception {
+        IncrementalJsonParser parser = parser(null);
+        parser.feed("[{\"t\":\"a\"},{\"t\":\"b\"}]");
+
+        assertEquals(2, elements.size());
+        assertEquals("a", elements.get(0).getString("t"));
+        assertEquals("b", elements.get(1).getString("t"));
+        assertEquals(2, parser.getElementCount());
+    }
+
+    @Test
+    public void emitsEachElementAsSoonAsItCloses() throws Exception {
+        IncrementalJsonParser parser = parser(null);
+        parser.feed("[{\"t\":\"a\"");
+        assertTrue(elements.isEmpty());
+
+        parser.feed("},{\"t\":");
+        assertEquals(1, elements.size());
+
+        parser.feed("\"b\"}]");
+        assertEquals(2, elements.size());
+        assertEquals(Integer.valueOf(0), indexes.get(0));
+        assertEquals(Integer.valueOf(1), indexes.get(1));
+    }
+
+    @Test
+    public void sameResultForEveryChunkBoundary() throws Exception {
+        String json = "{\"topics\":[{\"t\":\"x\",\"refs\":[{\"f\":\"a.pdf\"}]},{\"t\":\"y\",\"refs\":[]}]}";
+        for (int cut = 0; cut <= json.length(); cut++) {
+            elements.clear();
+            IncrementalJsonParser parser = parser("topics");
+            parser.feed(json.substring(0, cut));
+            parser.feed(json.substring(cut));
+
+            assertEquals("cut at " + cut, 2, elements.size());
+            assertEquals("x", elements.get(0).getString("t"));
+            assertEquals("a.pdf", elements.get(0).getJSONArray("refs").getJSONObject(0).getString("f"));
+            assertEquals("y", elements.get(1).getString("t"));
+        }
+    }
+
+    @Test
+    public void watchesOnlyTheArrayUnderItsKey() throws Exception {
+        IncrementalJsonParser parser = parser("topics");
+        parser.feed("{\"other\":[{\"t\":\"skip\"}],\"meta\":{\"topics\":[{\"t\":\"nested\"}]},"
+                + "\"topics\":[{\"t\":\"keep\"}]}");
+
+        assertEquals(1, elements.size());
+        assertEquals("keep", elements.get(0).getString("t"));
+    }
+
+    @Test
+    public void ignoresBracesAndQuotesInsideStrings() throws Exception {
+        IncrementalJsonParser parser = parser(null);
+        parser.feed("[{\"t\":\"a } ] { [\",\"d\":\"say \\\"hi\\\" \\\\\"},{\"t\":\"b\"}]");
+
+        assertEquals(2, elements.size());
+        assertEquals("a } ] { [", elements.get(0).getString("t"));
+        assertEquals("say \"hi\" \\", elements.get(0).getString("d"));
+        assertEquals("b", elements.get(1).getString("t"));
+    }
+
+    @Test
+    public void skipsTextBeforeTheJson() throws Exception {
+        IncrementalJsonParser parser = parser(null);
+        parser.feed("```json\n[{\"t\":\"a\"}]\n```");
+
+        assertEquals(1, elements.size());
+        assertEquals("```json\n[{\"t\":\"a\"}]\n```", parser.getText());
+    }
+
+    @Test
+    public void stopsAfterTheWatchedArrayCloses() throws Exception {
+        IncrementalJsonParser parser = parser("topics");
+        parser.feed("{\"topics\":[{\"t\":\"a\"}],\"later\":[{\"t\":\"b\"}]}");
+
+        assertEquals(1, elements.size());
+    }
+
+    @Test
+    public void listenerFailureAbortsTheFeed() {
+        IncrementalJsonParser parser = new IncrementalJsonParser(null, (index, element) -> {
+            throw new IllegalStateException("stop");
+        });
+        try {
+            parser.feed("[{\"t\":\"a\"}]");
+            fail("Expected the listener's exception");
+        } catch (Exception e) {
+            assertEquals("stop", e.getMessage());
+        }
+    }
+}
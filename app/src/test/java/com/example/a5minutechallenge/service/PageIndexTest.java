@@ -0,0 +1,77 @@
+package com.example.a5minutechallenge.service;
+
+import com.example.a5minutechallenge.service.GeminiContentProcessor.DocumentContent;
+import com.example.a5minutechallenge.service.GeminiContentProcessor.PageContent;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PageIndex}.
+ */
+public class PageIndexTest {
+
+    private final DocumentContent notes = new DocumentContent("notes.pdf");
+    private final DocumentContent slides = new DocumentContent("slides.pdf");
+    private final PageContent photosynthesis = new PageContent(1,
+            "Photosynthesis turns light into chemical energy. Photosynthesis happens in chloroplasts.");
+    private final PageContent respiration = new PageContent(2, "Cellular respiration releases the energy again.");
+    private final PageContent summary = new PageContent(1, "Summary of photosynthesis and respiration.");
+
+    private PageIndex index() {
+        notes.pages.add(photosynthesis);
+        notes.pages.add(respiration);
+        slides.pages.add(summary);
+        DocumentContent image = new DocumentContent("diagram.png");
+        image.isImage = true;
+        image.pages.add(new PageContent(1, "photosynthesis"));
+        return new PageIndex(Arrays.asList(notes, slides, image));
+    }
+
+    @Test
+    public void indexesTextPagesOnly() {
+        assertEquals(3, index().getPageCount());
+    }
+
+    @Test
+    public void scoresOnlyMatchingPages() {
+        Map<PageContent, Double> scores = index().score("photosynthesis", null);
+
+        assertEquals(2, scores.size());
+        assertTrue(scores.containsKey(photosynthesis));
+        assertTrue(scores.containsKey(summary));
+        assertFalse(scores.containsKey(respiration));
+    }
+
+    @Test
+    public void ranksPagesWithMoreOccurrencesHigher() {
+        Map<PageContent, Double> scores = index().score("Photosynthesis?", null);
+
+        assertTrue(scores.get(photosynthesis) > scores.get(summary));
+    }
+
+    @Test
+    public void filterRestrictsTheScoredPages() {
+        Map<PageContent, Double> scores = index().score("photosynthesis respiration",
+                (fileName, pageNumber) -> fileName.equals("notes.pdf") && pageNumber == 2);
+
+        assertEquals(1, scores.size());
+        assertTrue(scores.containsKey(respiration));
+    }
+
+    @Test
+    public void noMatchNoScores() {
+        assertTrue(index().score("mitochondria", null).isEmpty());
+        assertTrue(index().score(null, null).isEmpty());
+    }
+
+    @Test
+    public void termsAreLowerCasedWordsOfThreeOrMoreCharacters() {
+        assertEquals(Arrays.asList("atp", "energy", "größe", "2024"),
+                PageIndex.terms("ATP is energy: Größe, 2024 (a.k.a. x)"));
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.a5minutechallenge.service;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link RetryPolicy}: failure classification, the
+ * per-operation backoff budget and the run-wide retry cap.
+ */
+public class RetryPolicyTest {
+
+    private static final long BUDGET_MS = 60000;
+
+    @Test
+    public void classifiesFailures() {
+        assertEquals(RetryPolicy.FailureClass.RATE_LIMITED,
+                RetryPolicy.classify(GeminiApiException.forHttpStatus(429, "", null)));
+        assertEquals(RetryPolicy.FailureClass.SERVER_ERROR,
+                RetryPolicy.classify(GeminiApiException.forHttpStatus(503, "", null)));
+        assertEquals(RetryPolicy.FailureClass.TIMEOUT,
+                RetryPolicy.classify(GeminiApiException.forHttpStatus(408, "", null)));
+        assertEquals(RetryPolicy.FailureClass.FATAL,
+                RetryPolicy.classify(GeminiApiException.forHttpStatus(400, "", null)));
+        assertEquals(RetryPolicy.FailureClass.MALFORMED_RESPONSE, RetryPolicy.classify(new JSONException("bad")));
+        assertEquals(RetryPolicy.FailureClass.TIMEOUT, RetryPolicy.classify(new SocketTimeoutException()));
+        assertEquals(RetryPolicy.FailureClass.FATAL, RetryPolicy.classify(new InterruptedIOException()));
+        assertEquals(RetryPolicy.FailureClass.FATAL, RetryPolicy.classify(new FileNotFoundException("image.webp")));
+        assertEquals(RetryPolicy.FailureClass.SERVER_ERROR, RetryPolicy.classify(new IOException("reset")));
+        assertEquals(RetryPolicy.FailureClass.FATAL, RetryPolicy.classify(new IllegalStateException()));
+    }
+
+    @Test
+    public void endpointFailuresAreTheRetryableTransportClasses() {
+        assertTrue(RetryPolicy.isEndpointFailure(GeminiApiException.forHttpStatus(429, "", null)));
+        assertTrue(RetryPolicy.isEndpointFailure(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isEndpointFailure(GeminiApiException.forOpenCircuit("open", 1000)));
+        assertFalse(RetryPolicy.isEndpointFailure(new JSONException("bad")));
+        assertFalse(RetryPolicy.isEndpointFailure(GeminiApiException.forHttpStatus(400, "", null)));
+    }
+
+    @Test
+    public void readsServerRequestedDelay() {
+        assertEquals(37000, GeminiApiException.forHttpStatus(429, "{\"retryDelay\": \"37s\"}", null)
+                .getRetryAfterMs());
+        assertEquals(2000, GeminiApiException.forHttpStatus(429, "{\"retryDelay\": \"37s\"}", "2")
+                .getRetryAfterMs());
+    }
+
+    @Test
+    public void returnsFirstSuccessWithoutRetrying() throws Exception {
+        RetryPolicy policy = new RetryPolicy(BUDGET_MS, 10);
+
+        assertEquals("ok", policy.execute("test", attempt -> "ok"));
+        assertEquals(0, policy.getRunRetries());
+    }
+
+    @Test
+    public void retriesRetryableFailure() throws Exception {
+        RetryPolicy policy = new RetryPolicy(BUDGET_MS, 10);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = policy.execute("test", attempt -> {
+            if (attempts.getAndIncrement() == 0)
+                throw new JSONException("truncated");
+            return "attempt " + attempt;
+        });
+
+        assertEquals("attempt 1", result);
+        assertEquals(1, policy.getRunRetries());
+    }
+
+    @Test
+    public void doesNotRetryFatalFailure() {
+        RetryPolicy policy = new RetryPolicy(BUDGET_MS, 10);
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            policy.execute("test", attempt -> {
+                attempts.incrementAndGet();
+                throw GeminiApiException.forHttpStatus(400, "bad request", null);
+            });
+            fail("Expected the fatal failure");
+        } catch (IOException | JSONException e) {
+            assertEquals(1, attempts.get());
+            assertEquals(400, ((GeminiApiException) e).getStatusCode());
+        }
+    }
+
+    @Test
+    public void stopsWhenBackoffBudgetIsSpent() {
+        // Below the smallest delay of any class, so the first retry is already over budget
+        RetryPolicy policy = new RetryPolicy(100, 10);
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            policy.execute("test", attempt -> {
+                attempts.incrementAndGet();
+                throw new JSONException("truncated");
+            });
+            fail("Expected the failure once the budget is spent");
+        } catch (IOException | JSONException e) {
+            assertTrue(e instanceof JSONException);
+            assertEquals(1, attempts.get());
+            assertEquals(0, policy.getRunRetries());
+        }
+    }
+
+    @Test
+    public void operationsShareTheRunRetryCap() throws Exception {
+        RetryPolicy policy = new RetryPolicy(BUDGET_MS, 1);
+        AtomicInteger firstAttempts = new AtomicInteger();
+        policy.execute("first", attempt -> {
+            if (firstAttempts.getAndIncrement() == 0)
+                throw new JSONException("truncated");
+            return null;
+        });
+
+        AtomicInteger secondAttempts = new AtomicInteger();
+        try {
+            policy.execute("second", attempt -> {
+                secondAttempts.incrementAndGet();
+                throw new JSONException("truncated");
+            });
+            fail("Expected the failure once the run's retries are used up");
+        } catch (IOException | JSONException e) {
+            assertEquals(1, secondAttempts.get());
+        }
+    }
+
+    @Test
+    public void waitsOutOpenCircuitWithoutUsingRunRetries() throws Exception {
+        RetryPolicy policy = new RetryPolicy(BUDGET_MS, 0);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = policy.execute("test", attempt -> {
+            if (attempts.getAndIncrement() == 0)
+                throw GeminiApiException.forOpenCircuit("open", 10);
+            return "ok";
+        });
+
+        assertEquals("ok", result);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void cancellationEndsTheOperation() {
+        CancellationToken cancellation = new CancellationToken();
+        RetryPolicy policy = new RetryPolicy(BUDGET_MS, 10, cancellation);
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            policy.execute("test", attempt -> {
+                attempts.incrementAndGet();
+                cancellation.cancel();
+                throw new IOException("connection closed");
+            });
+            fail("Expected the run to be cancelled");
+        } catch (IOException | JSONException e) {
+            assertTrue(e instanceof GenerationCancelledException);
+            assertEquals(1, attempts.get());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.a5minutechallenge.service;
+
+import com.example.a5minutechallenge.service.GeminiContentProcessor.DocumentContent;
+import com.example.a5minutechallenge.service.GeminiContentProcessor.PageContent;
+import com.example.a5minutechallenge.service.GeminiContentProcessor.SemanticSection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link StructureMapReduce}: splitting the corpus into
+ * windows and merging the per-window section lists.
+ */
+public class StructureMapReduceTest {
+
+    /** A document whose pages are numbered from 1, each about tokensPerPage tokens. */
+    private static DocumentContent document(String fileName, int pageCount, int tokensPerPage) {
+        DocumentContent doc = new DocumentContent(fileName);
+        char[] text = new char[tokensPerPage * GeminiContentProcessor.CHARS_PER_TOKEN];
+        Arrays.fill(text, 'x');
+        for (int page = 1; page <= pageCount; page++)
+            doc.pages.add(new PageContent(page, new String(text)));
+        return doc;
+    }
+
+    private static List<SemanticSection> sections(SemanticSection... sections) {
+        return new ArrayList<>(Arrays.asList(sections));
+    }
+
+    @Test
+    public void splitsAtTheTokenLimit() {
+        StructureMapReduce mapReduce = new StructureMapReduce(250, 100);
+
+        List<List<DocumentContent>> windows = mapReduce.split(Collections.singletonList(document("a.pdf", 5, 100)));
+
+        assertEquals(3, windows.size());
+        assertEquals(2, windows.get(0).get(0).pages.size());
+        assertEquals(3, windows.get(1).get(0).pages.get(0).pageNumber);
+        assertEquals(1, windows.get(2).get(0).pages.size());
+    }
+
+    @Test
+    public void splitsAtThePageLimitAndSharesWindowsBetweenFiles() {
+        StructureMapReduce mapReduce = new StructureMapReduce(10000, 3);
+
+        List<List<DocumentContent>> windows = mapReduce.split(Arrays.asList(document("a.pdf", 2, 10),
+                document("b.pdf", 2, 10)));
+
+        assertEquals(2, windows.size());
+        assertEquals(2, windows.get(0).size());
+        assertEquals("a.pdf", windows.get(0).get(0).fileName);
+        assertEquals("b.pdf", windows.get(0).get(1).fileName);
+        assertEquals(1, windows.get(0).get(1).pages.size());
+        assertEquals(2, windows.get(1).get(0).pages.get(0).pageNumber);
+    }
+
+    @Test
+    public void oversizedPageGetsAWindowOfItsOwn() {
+        StructureMapReduce mapReduce = new StructureMapReduce(100, 10);
+
+        List<List<DocumentContent>> windows = mapReduce.split(Collections.singletonList(document("a.pdf", 2, 500)));
+
+        assertEquals(2, windows.size());
+    }
+
+    @Test
+    public void clampsSectionsToTheWindow() {
+        DocumentContent slice = new DocumentContent("a.pdf");
+        slice.pages.add(new PageContent(3, "x"));
+        slice.pages.add(new PageContent(4, "x"));
+
+        List<SemanticSection> clamped = StructureMapReduce.clampToWindow(sections(
+                new SemanticSection("Overlaps", "a.pdf", 1, 3),
+                new SemanticSection("Reversed", "a.pdf", 9, 4),
+                new SemanticSection("Outside", "a.pdf", 7, 8),
+                new SemanticSection("Other file", "b.pdf", 3, 4)), Collections.singletonList(slice));
+
+        assertEquals(2, clamped.size());
+        assertEquals(3, clamped.get(0).startPage);
+        assertEquals(3, clamped.get(0).endPage);
+        assertEquals(4, clamped.get(1).startPage);
+        assertEquals(4, clamped.get(1).endPage);
+    }
+
+    @Test
+    public void stitchesContinuedSectionAcrossWindows() {
+        List<SemanticSection> merged = StructureMapReduce.stitch(Arrays.asList(
+                sections(new SemanticSection("Intro", "a.pdf", 1, 2), new SemanticSection("Methods", "a.pdf", 3, 5)),
+                sections(new SemanticSection("Methods (cont.)", "a.pdf", 6, 7, true),
+                        new SemanticSection("Results", "a.pdf", 8, 9))));
+
+        assertEquals(3, merged.size());
+        assertEquals("Methods", merged.get(1).title);
+        assertEquals(7, merged.get(1).endPage);
+        assertEquals("Results", merged.get(2).title);
+    }
+
+    @Test
+    public void stitchesSameTitleIgnoringCase() {
+        List<SemanticSection> merged = StructureMapReduce.stitch(Arrays.asList(
+                sections(new SemanticSection("Methods", "a.pdf", 1, 5)),
+                sections(new SemanticSection(" methods ", "a.pdf", 6, 8))));
+
+        assertEquals(1, merged.size());
+        assertEquals(8, merged.get(0).endPage);
+    }
+
+    @Test
+    public void keepsSectionsThatDoNotContinue() {
+        List<SemanticSection> merged = StructureMapReduce.stitch(Arrays.asList(
+                sections(new SemanticSection("Methods", "a.pdf", 1, 5)),
+                // Gap after page 5, and a different file that happens to continue
+                sections(new SemanticSection("Methods", "a.pdf", 7, 8),
+                        new SemanticSection("Methods", "b.pdf", 1, 2, true))));
+
+        assertEquals(3, merged.size());
+        assertEquals(5, merged.get(0).endPage);
+    }
+}
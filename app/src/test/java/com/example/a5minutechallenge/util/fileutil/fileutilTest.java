@@ -0,0 +1,62 @@
+package com.example.a5minutechallenge.util.fileutil;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the file helpers in {@link fileutil}.
+ */
+public class fileutilTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writeAtomicallyReplacesTheTarget() throws Exception {
+        File target = new File(folder.getRoot(), "entry.json");
+        fileutil.writeAtomically(target, out -> out.write(bytes("old")));
+
+        fileutil.writeAtomically(target, out -> out.write(bytes("new")));
+
+        assertArrayEquals(bytes("new"), fileutil.readFile(target));
+        assertArrayEquals(new String[] { "entry.json" }, folder.getRoot().list());
+    }
+
+    @Test
+    public void failedWriteLeavesTheTargetAndNoTempFile() throws Exception {
+        File target = new File(folder.getRoot(), "entry.json");
+        fileutil.writeAtomically(target, out -> out.write(bytes("old")));
+
+        try {
+            fileutil.writeAtomically(target, out -> {
+                out.write(bytes("half"));
+                throw new IOException("disk full");
+            });
+            fail("Expected the write to fail");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+
+        assertArrayEquals(bytes("old"), fileutil.readFile(target));
+        assertArrayEquals(new String[] { "entry.json" }, folder.getRoot().list());
+    }
+
+    @Test
+    public void hashesTheFileContent() throws Exception {
+        File file = folder.newFile("a.txt");
+        fileutil.writeAtomically(file, out -> out.write(bytes("abc")));
+
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", fileutil.hashFile(file));
+    }
+}